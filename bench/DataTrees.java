@@ -0,0 +1,100 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Synthetic data folders for the benchmarks
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.Random;
+
+/**
+* Builds the data folder shapes the benchmarks run on. Content is random
+* with a fixed seed, so every run and every fork sees the same bytes.
+*
+*   large: 10 files of 256 KB
+*   tiny:  10,000 files of 100 bytes, 100 per folder
+*   deep:  a binary tree of folders 8 levels deep, one 2 KB file in each
+*/
+class DataTrees {
+  static final String LARGE = "large";
+  static final String TINY = "tiny";
+  static final String DEEP = "deep";
+
+  private DataTrees() {
+  }
+
+  static File create(String shape) throws IOException {
+    File folder = File.createTempFile("esp32fs-bench-", "");
+    if (!folder.delete() || !folder.mkdirs()) throw new IOException("Cannot create " + folder);
+    Random random = new Random(42);
+    if (LARGE.equals(shape)) {
+      for (int i = 0; i < 10; i++) write(new File(folder, "large" + i + ".bin"), 256 * 1024, random);
+    } else if (TINY.equals(shape)) {
+      for (int d = 0; d < 100; d++) {
+        File dir = new File(folder, "t" + d);
+        dir.mkdir();
+        for (int i = 0; i < 100; i++) write(new File(dir, i + ".txt"), 100, random);
+      }
+    } else if (DEEP.equals(shape)) {
+      deep(folder, 8, random);
+    } else {
+      throw new IllegalArgumentException("unknown shape " + shape);
+    }
+    return folder;
+  }
+
+  /**
+  * Partition size that fits the shape on every filesystem. Tiny files
+  * take a 4 KB cluster each on FAT, so that volume is larger than any
+  * ESP32 flash; the builder does not mind. Deep folders cost a metadata
+  * pair each on LittleFS and a cluster each on FAT.
+  */
+  static long partitionSize(String shape, String typefs) {
+    if (TINY.equals(shape)) return "FatFS".equals(typefs) ? 48 << 20 : 15 << 20;
+    if (DEEP.equals(shape)) return 8 << 20;
+    return 4 << 20;
+  }
+
+  // names stay short, SPIFFS keeps the whole path in 32 bytes
+  private static void deep(File dir, int depth, Random random) throws IOException {
+    write(new File(dir, "f.txt"), 2048, random);
+    if (depth == 0) return;
+    for (int i = 0; i < 2; i++) {
+      File child = new File(dir, Integer.toString(i));
+      child.mkdir();
+      deep(child, depth - 1, random);
+    }
+  }
+
+  private static void write(File file, int size, Random random) throws IOException {
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+  }
+
+  static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) delete(f);
+    }
+    file.delete();
+  }
+}
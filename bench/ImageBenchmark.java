@@ -0,0 +1,69 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Benchmarks of image creation
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* End-to-end build of an image with the built-in writers, for every
+* filesystem and data folder shape. The image cache is not involved.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+  @Param({ "LittleFS", "SPIFFS", "FatFS" })
+  public String typefs;
+
+  @Param({ DataTrees.LARGE, DataTrees.TINY, DataTrees.DEEP })
+  public String shape;
+
+  private File dataFolder;
+  private File imageFile;
+  private FsImageBuilder builder;
+
+  @Setup
+  public void setup() throws IOException {
+    dataFolder = DataTrees.create(shape);
+    imageFile = File.createTempFile("esp32fs-bench-", ".bin");
+    long size = DataTrees.partitionSize(shape, typefs);
+    if ("LittleFS".equals(typefs)) builder = new LittleFsImageBuilder(256, 4096, size);
+    else if ("SPIFFS".equals(typefs)) builder = new SpiffsImageBuilder(256, 4096, size);
+    else builder = new FatImageBuilder(size);
+  }
+
+  @TearDown
+  public void tearDown() {
+    DataTrees.delete(dataFolder);
+    imageFile.delete();
+  }
+
+  @Benchmark
+  public long build() throws IOException {
+    builder.build(dataFolder, imageFile);
+    return imageFile.length();
+  }
+}
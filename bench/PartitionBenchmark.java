@@ -0,0 +1,75 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Benchmarks of partition table parsing
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Parsing of the partition csv as done for every upload. "default" is the
+* table of the default scheme, "large" a table with 64 data partitions.
+* load() is the cached path, parseCsv() reads the file every time.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionBenchmark {
+  @Param({ "default", "large" })
+  public String table;
+
+  private File csv;
+
+  @Setup
+  public void setup() throws IOException {
+    csv = File.createTempFile("esp32fs-bench-", ".csv");
+    try (PrintWriter out = new PrintWriter(new FileWriter(csv))) {
+      out.println("# Name,   Type, SubType, Offset,  Size, Flags");
+      out.println("nvs,      data, nvs,     0x9000,  0x5000,");
+      out.println("otadata,  data, ota,     0xe000,  0x2000,");
+      out.println("app0,     app,  ota_0,   0x10000, 0x140000,");
+      out.println("app1,     app,  ota_1,   ,        0x140000,");
+      if ("large".equals(table)) {
+        for (int i = 0; i < 64; i++) out.println("blob" + i + ", data, 0x40, , 16K,");
+      }
+      out.println("spiffs,   data, spiffs,  ,        0x160000,");
+      out.println("coredump, data, coredump,,        64K,");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    csv.delete();
+  }
+
+  @Benchmark
+  public PartitionTable.Entry parseCsv() throws IOException {
+    return PartitionTable.parseCsv(csv).findData("SPIFFS");
+  }
+
+  @Benchmark
+  public PartitionTable.Entry loadCached() throws IOException {
+    return PartitionTable.load(csv).findData("SPIFFS");
+  }
+}
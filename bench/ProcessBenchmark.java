@@ -0,0 +1,102 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Benchmarks of tool process overhead
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Cost of running a helper tool, with a local stub script that prints
+* esptool-like progress instead of esptool. "spawn" only starts the
+* process and waits for it, "pipeline" runs it the way uploads do, with
+* the output read and parsed. Console output of the engine is dropped.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessBenchmark {
+  private File stateFolder;
+  private File stub;
+  private String[] command;
+  private File nullFile;
+  private FsEngine engine;
+  private FsEngine.Job job;
+  private PrintStream console;
+
+  @Setup
+  public void setup() throws IOException {
+    stateFolder = File.createTempFile("esp32fs-bench-", "");
+    stateFolder.delete();
+    stateFolder.mkdirs();
+    boolean windows = System.getProperty("os.name").toLowerCase(Locale.ROOT).startsWith("windows");
+    stub = new File(stateFolder, windows ? "stub.cmd" : "stub.sh");
+    try (PrintWriter out = new PrintWriter(new FileWriter(stub))) {
+      if (!windows) out.println("#!/bin/sh");
+      out.println("echo Connecting....");
+      for (int i = 0; i <= 100; i += 5) {
+        out.println("echo Writing at 0x" + Integer.toHexString(0x290000 + i * 0x1000) + "... (" + i + (windows ? " %%)" : " %)"));
+      }
+      out.println("echo Wrote 1441792 bytes at 0x00290000 in 12.3 seconds");
+    }
+    stub.setExecutable(true);
+    nullFile = new File(windows ? "NUL" : "/dev/null");
+    command = windows ? new String[]{ "cmd", "/c", stub.getAbsolutePath() } : new String[]{ stub.getAbsolutePath() };
+
+    ToolRegistry tools = ToolRegistry.get(stateFolder, "", windows ? "windows" : "linux", new File(stateFolder, "tools.properties"));
+    engine = new FsEngine(stateFolder, tools, new HashMap<String, String>(), new FsEngine.Status() {
+      public void notice(String message) {
+      }
+      public void error(String message) {
+      }
+    });
+    job = new FsEngine.Job();
+    job.name = "bench";
+    console = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      public void write(int b) {
+      }
+      public void write(byte[] b, int off, int len) {
+      }
+    }));
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(console);
+    DataTrees.delete(stateFolder);
+  }
+
+  @Benchmark
+  public int spawn() throws Exception {
+    Process proc = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(nullFile).start();
+    return proc.waitFor();
+  }
+
+  @Benchmark
+  public int pipeline() {
+    return engine.listenOnProcess(job, FsEngine.PHASE_BUILD, command, null, "");
+  }
+}
@@ -0,0 +1,69 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Benchmarks of the data folder scan
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Content hash of a data folder as computed before every build. "cold"
+* starts from an empty index and digests every file, "warm" reuses an
+* index of the same folder and only stats the files.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+  @Param({ DataTrees.LARGE, DataTrees.TINY, DataTrees.DEEP })
+  public String shape;
+
+  private File dataFolder;
+  private File indexFile;
+
+  @Setup
+  public void setup() throws IOException {
+    dataFolder = DataTrees.create(shape);
+    indexFile = File.createTempFile("esp32fs-bench-", ".index");
+    DataManifest manifest = new DataManifest(indexFile);
+    manifest.hash(dataFolder);
+    manifest.save();
+  }
+
+  @TearDown
+  public void tearDown() {
+    DataTrees.delete(dataFolder);
+    indexFile.delete();
+  }
+
+  @Benchmark
+  public String cold() throws IOException {
+    return new DataManifest(new File(indexFile.getPath() + ".none")).hash(dataFolder);
+  }
+
+  @Benchmark
+  public String warm() throws IOException {
+    return new DataManifest(indexFile).hash(dataFolder);
+  }
+}
@@ -8,6 +8,7 @@ echo "INSTALLDIR: $INSTALLDIR"
 pde_path=`find ../../../ -name pde.jar`
 core_path=`find ../../../ -name arduino-core.jar`
 lib_path=`find ../../../ -name commons-codec-1.7.jar`
+jssc_path=`find ../../../ -name "jssc*.jar" | head -n 1`
 if [[ -z "$core_path" || -z "$pde_path" ]]; then
     echo "Some java libraries have not been built yet (did you run ant build?)"
     return 1
@@ -15,12 +16,13 @@ fi
 echo "pde_path: $pde_path"
 echo "core_path: $core_path"
 echo "lib_path: $lib_path"
+echo "jssc_path: $jssc_path"
 
 set -e
 
 mkdir -p bin
-javac -target 1.8 -cp "$pde_path:$core_path:$lib_path" \
-      -d bin src/ESP32FS.java
+javac -target 1.8 -cp "$pde_path:$core_path:$lib_path:$jssc_path" \
+      -d bin src/*.java
 
 pushd bin
 mkdir -p $INSTALLDIR/tools
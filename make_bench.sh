@@ -0,0 +1,32 @@
+#!/usr/bin/env bash
+
+# Builds and runs the JMH benchmarks of bench/ against the sources of src/.
+# Arguments go to JMH, e.g. ./make_bench.sh ImageBenchmark -p typefs=LittleFS
+# Results are also written to bench/results.json.
+
+JMH_VERSION=1.37
+LIB=bench/lib
+REPO=https://repo1.maven.org/maven2
+
+set -e
+
+mkdir -p $LIB
+for jar in org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+           org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+           net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+           org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar; do
+    if [[ ! -f $LIB/`basename $jar` ]]; then
+        echo "fetching `basename $jar`"
+        curl -sfL -o $LIB/`basename $jar` $REPO/$jar
+    fi
+done
+jmh_path=`ls $LIB/*.jar | tr '\n' ':'`
+
+# ESP32FS.java and JsscSerialLink.java need the IDE jars, the benchmarks
+# only use the engine
+rm -rf bench/bin
+mkdir -p bench/bin
+javac -source 1.8 -target 1.8 -cp "$jmh_path" -d bench/bin \
+      `ls src/*.java | grep -v -e ESP32FS.java -e JsscSerialLink.java` bench/*.java
+
+java -cp "bench/bin:$jmh_path" org.openjdk.jmh.Main -rf json -rff bench/results.json "$@"
@@ -8,6 +8,7 @@ echo "INSTALLDIR: $INSTALLDIR"
 pde_path=`find /Applications/Arduino.app/ -name pde.jar`
 core_path=`find /Applications/Arduino.app/ -name arduino-core.jar`
 lib_path=`find /Applications/Arduino.app/ -name commons-codec-1.7.jar`
+jssc_path=`find /Applications/Arduino.app/ -name "jssc*.jar" | head -n 1`
 if [[ -z "$core_path" || -z "$pde_path" ]]; then
     echo "Some java libraries have not been built yet (did you run ant build?)"
     return 1
@@ -15,12 +16,13 @@ fi
 echo "pde_path: $pde_path"
 echo "core_path: $core_path"
 echo "lib_path: $lib_path"
+echo "jssc_path: $jssc_path"
 
 set -e
 
 mkdir -p bin
-javac -source 1.8 -target 1.8 -cp "$pde_path:$core_path:$lib_path" \
-      -d bin src/ESP32FS.java
+javac -source 1.8 -target 1.8 -cp "$pde_path:$core_path:$lib_path:$jssc_path" \
+      -d bin src/*.java
 
 pushd bin
 mkdir -p $INSTALLDIR/tools
@@ -0,0 +1,33 @@
+#!/usr/bin/env bash
+
+# Builds and runs the tests of test/ against the sources of src/.
+# Arguments are test class names, e.g. ./make_test.sh SpiffsImageBuilderTest
+# Without arguments every *Test class runs.
+
+JUNIT_VERSION=4.13.2
+LIB=test/lib
+REPO=https://repo1.maven.org/maven2
+
+set -e
+
+mkdir -p $LIB
+for jar in junit/junit/$JUNIT_VERSION/junit-$JUNIT_VERSION.jar \
+           org/hamcrest/hamcrest-core/1.3/hamcrest-core-1.3.jar; do
+    if [[ ! -f $LIB/`basename $jar` ]]; then
+        echo "fetching `basename $jar`"
+        curl -sfL -o $LIB/`basename $jar` $REPO/$jar
+    fi
+done
+junit_path=`ls $LIB/*.jar | tr '\n' ':'`
+
+# ESP32FS.java and JsscSerialLink.java need the IDE jars, the tests only
+# use the engine
+rm -rf test/bin
+mkdir -p test/bin
+javac -source 1.8 -target 1.8 -cp "$junit_path" -d test/bin \
+      `ls src/*.java | grep -v -e ESP32FS.java -e JsscSerialLink.java` test/*.java
+
+if [[ $# -eq 0 ]]; then
+    set -- `ls test/*Test.java | xargs -n 1 basename | sed 's/\.java$//'`
+fi
+java -cp "test/bin:$junit_path" org.junit.runner.JUnitCore `printf 'com.esp32.mkspiffs.%s ' "$@"`
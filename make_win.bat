@@ -6,7 +6,7 @@ mkdir bin
 :NODIR
 del bin\*.jar
 rd /S /Q bin\com
-javac.exe -target 1.8 -cp ".;%ALP%\arduino-core.jar;%ALP%\commons-codec-1.7.jar;%ALP%\pde.jar" -d bin ESP32FS.java
+javac.exe -target 1.8 -cp ".;%ALP%\arduino-core.jar;%ALP%\commons-codec-1.7.jar;%ALP%\pde.jar;%ALP%\jssc-2.8.0-arduino4.jar" -d bin *.java
 cd bin
 jar.exe cvfM esp32fs.jar *
 pause
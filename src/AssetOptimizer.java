@@ -0,0 +1,315 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Optional gzip/minify stage for web assets of the data folder
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+* Mirrors a data folder into a staging folder, minifying HTML and CSS and
+* replacing web page assets with a .gz variant when that is smaller, the
+* way ESPAsyncWebServer serves them. Other files, JSON or text the sketch
+* may open itself included, are linked or copied as is.
+* Results are cached per file by content digest, so only changed files
+* are processed again.
+*/
+class AssetOptimizer {
+  static final String ID = "assets-2";
+
+  private static final Set<String> MINIFY = new HashSet<String>(Arrays.asList("html", "htm", "css"));
+  // only what a browser fetches through the web server, the sketch would
+  // no longer find any other file under its own name
+  private static final Set<String> COMPRESS = new HashSet<String>(Arrays.asList("html", "htm", "css", "js", "mjs", "svg"));
+
+  private static final Pattern RAW_BLOCK = Pattern.compile("(?is)(<(pre|textarea|script|style)\\b[^>]*>)(.*?)(</\\2\\s*>)");
+  private static final Pattern HTML_COMMENT = Pattern.compile("(?s)<!--(?!\\[if|<!|>).*?-->");
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final File stagingFolder;
+  private final File cacheFolder;
+  private final DataManifest manifest;
+  private final Set<String> used = Collections.synchronizedSet(new HashSet<String>());
+
+  private final AtomicLong fileCount = new AtomicLong();
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+
+  /**
+  * manifest supplies the content digests, it must have hashed the data
+  * folder already.
+  */
+  AssetOptimizer(File stagingFolder, File cacheFolder, DataManifest manifest) {
+    this.stagingFolder = stagingFolder;
+    this.cacheFolder = cacheFolder;
+    this.manifest = manifest;
+  }
+
+  long getFileCount() { return fileCount.get(); }
+  long getProcessedCount() { return processed.get(); }
+  long getBytesIn() { return bytesIn.get(); }
+  long getBytesOut() { return bytesOut.get(); }
+
+  /**
+  * Rebuilds the staging folder from dataFolder and returns it.
+  */
+  File optimize(File dataFolder) throws IOException {
+    deleteTree(stagingFolder);
+    if (!stagingFolder.mkdirs()) {
+      throw new IOException("Cannot create " + stagingFolder);
+    }
+    if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs()) {
+      throw new IOException("Cannot create " + cacheFolder);
+    }
+    ForkJoinPool pool = new ForkJoinPool();
+    try {
+      pool.invoke(new DirTask(dataFolder, stagingFolder, ""));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+    // drop cached results of files that are gone or changed
+    File[] entries = cacheFolder.listFiles();
+    if (entries != null) {
+      for (File f : entries) {
+        if (!used.contains(f.getName())) f.delete();
+      }
+    }
+    return stagingFolder;
+  }
+
+  private class DirTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final File dir;
+    private final File target;
+    private final String prefix;
+
+    DirTask(File dir, File target, String prefix) {
+      this.dir = dir;
+      this.target = target;
+      this.prefix = prefix;
+    }
+
+    protected void compute() {
+      File[] files = dir.listFiles();
+      if (files == null) return;
+      List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+      for (final File file : files) {
+        final String relPath = prefix + "/" + file.getName();
+        if (file.isDirectory()) {
+          File sub = new File(target, file.getName());
+          if (!sub.mkdir()) throw new UncheckedIOException(new IOException("Cannot create " + sub));
+          tasks.add(new DirTask(file, sub, relPath));
+        } else if (file.isFile()) {
+          tasks.add(new RecursiveAction() {
+            protected void compute() {
+              try {
+                stage(file, target, relPath);
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            }
+          });
+        }
+      }
+      invokeAll(tasks);
+    }
+  }
+
+  private void stage(File file, File target, String relPath) throws IOException {
+    String name = file.getName();
+    String ext = extension(name);
+    long size = file.length();
+    fileCount.incrementAndGet();
+    bytesIn.addAndGet(size);
+
+    // hidden files, other assets and files with a hand made .gz go through unchanged
+    if (name.startsWith(".") || !COMPRESS.contains(ext) || new File(file.getParentFile(), name + ".gz").exists()) {
+      link(file, new File(target, name));
+      bytesOut.addAndGet(size);
+      return;
+    }
+
+    String digest = manifest.digest(file, relPath);
+    String key = digest + "." + ext;
+    File gz = new File(cacheFolder, key + ".gz");
+    File plain = new File(cacheFolder, key + ".min");
+    used.add(gz.getName());
+    used.add(plain.getName());
+    if (!gz.isFile() && !plain.isFile()) {
+      process(file, ext, plain, gz);
+      processed.incrementAndGet();
+    }
+    if (gz.isFile()) {
+      Files.copy(gz.toPath(), new File(target, name + ".gz").toPath());
+      bytesOut.addAndGet(gz.length());
+    } else {
+      Files.copy(plain.toPath(), new File(target, name).toPath());
+      bytesOut.addAndGet(plain.length());
+    }
+  }
+
+  /**
+  * Writes the minified content to plain, or the compressed content to gz
+  * when that is smaller.
+  */
+  private void process(File file, String ext, File plain, File gz) throws IOException {
+    byte[] content = Files.readAllBytes(file.toPath());
+    if (MINIFY.contains(ext)) {
+      String text = new String(content, "UTF-8");
+      text = ext.equals("css") ? minifyCss(text) : minifyHtml(text);
+      content = text.getBytes("UTF-8");
+    }
+    byte[] compressed = gzip(content);
+    if (compressed.length < content.length) {
+      writeAtomic(gz, compressed);
+    } else {
+      writeAtomic(plain, content);
+    }
+  }
+
+  /**
+  * Removes comments and collapses whitespace outside pre, textarea and
+  * script blocks. Style blocks are minified as CSS.
+  */
+  static String minifyHtml(String html) {
+    StringBuilder sb = new StringBuilder(html.length());
+    Matcher m = RAW_BLOCK.matcher(html);
+    int last = 0;
+    while (m.find()) {
+      sb.append(collapse(html.substring(last, m.start())));
+      sb.append(collapse(m.group(1)));
+      sb.append(m.group(2).equalsIgnoreCase("style") ? minifyCss(m.group(3)) : m.group(3));
+      sb.append(m.group(4));
+      last = m.end();
+    }
+    sb.append(collapse(html.substring(last)));
+    return sb.toString().trim();
+  }
+
+  private static String collapse(String html) {
+    return WHITESPACE.matcher(HTML_COMMENT.matcher(html).replaceAll("")).replaceAll(" ");
+  }
+
+  /**
+  * Removes comments and whitespace that cannot matter. Strings are kept
+  * as they are, and whitespace is only dropped next to { } ; and , so that
+  * descendant selectors like "a :hover" keep their meaning.
+  */
+  static String minifyCss(String css) {
+    StringBuilder sb = new StringBuilder(css.length());
+    int n = css.length();
+    boolean space = false;
+    for (int i = 0; i < n; i++) {
+      char c = css.charAt(i);
+      if (c == '/' && i + 1 < n && css.charAt(i + 1) == '*') {
+        int end = css.indexOf("*/", i + 2);
+        i = end < 0 ? n : end + 1;
+        space = true;
+        continue;
+      }
+      if (Character.isWhitespace(c)) {
+        space = true;
+        continue;
+      }
+      if (c == '"' || c == '\'') {
+        int j = i + 1;
+        while (j < n && css.charAt(j) != c) {
+          if (css.charAt(j) == '\\') j++;
+          j++;
+        }
+        j = Math.min(j, n - 1);
+        appendSpace(sb, space, c);
+        sb.append(css, i, j + 1);
+        i = j;
+        space = false;
+        continue;
+      }
+      if (c == '}' && sb.length() > 0 && sb.charAt(sb.length() - 1) == ';') {
+        sb.setLength(sb.length() - 1);
+      }
+      appendSpace(sb, space, c);
+      sb.append(c);
+      space = false;
+    }
+    return sb.toString();
+  }
+
+  private static void appendSpace(StringBuilder sb, boolean space, char next) {
+    if (!space || sb.length() == 0) return;
+    char prev = sb.charAt(sb.length() - 1);
+    if ("{};,".indexOf(prev) >= 0 || "{};,".indexOf(next) >= 0) return;
+    sb.append(' ');
+  }
+
+  static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+    GZIPOutputStream out = new GZIPOutputStream(bytes) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    };
+    out.write(content);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static String extension(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+  }
+
+  private static void writeAtomic(File file, byte[] content) throws IOException {
+    File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+    Files.write(tmp.toPath(), content);
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+  * Hard links a file that goes through unchanged, whatever its size, and
+  * copies it where the filesystem has no hard links.
+  */
+  private static void link(File source, File target) throws IOException {
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (IOException | UnsupportedOperationException e) {
+      Files.copy(source.toPath(), target.toPath());
+    }
+  }
+
+  static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) deleteTree(child);
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,200 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Remembers the fastest reliable upload baud rate per port, chip and bridge
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* Baud rates for esptool are taken from a fixed ladder. An uncalibrated
+* port starts at the top (up to a maximum), every failure after the baud
+* change steps one rung down, and the rate of the last successful upload
+* is kept in a properties file so the next upload starts there. A rate
+* only moves down that way, so after REPROBE_AFTER successes in a row
+* one upload starts a rung higher again: a one-off glitch does not cost
+* the speed for good, and a rate that really is too fast is back after
+* one failed try.
+*
+* The USB bridge is part of the key because the same port name can be a
+* CP2102 today and a CH340 tomorrow. It is read from sysfs on Linux and
+* guessed from the port name on macOS.
+*/
+class BaudCalibration {
+  static final int[] RATES = { 2000000, 1500000, 921600, 460800, 230400, 115200 };
+  static final int REPROBE_AFTER = 10;
+
+  private static final Pattern WRITING_AT = Pattern.compile("Writing at 0x([0-9a-fA-F]+)");
+
+  private final File storeFile;
+  private final Properties store = new Properties();
+
+  BaudCalibration(File storeFile) {
+    this.storeFile = storeFile;
+    if (storeFile.isFile()) {
+      try (InputStream in = new FileInputStream(storeFile)) {
+        store.load(in);
+      } catch (IOException e) {
+        store.clear();
+      }
+    }
+  }
+
+  static String key(String port, String chip, String bridge) {
+    return port + "|" + chip + "|" + bridge;
+  }
+
+  /**
+  * Rate to start with: the calibrated one, one rung higher when it has
+  * succeeded REPROBE_AFTER times in a row, else the fastest rung not
+  * above max.
+  */
+  synchronized int start(String key, int max) {
+    String known = store.getProperty(key);
+    if (known != null) {
+      try {
+        String[] parts = known.split(",");
+        int rate = Math.min(Integer.parseInt(parts[0]), max);
+        int successes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        int faster = higher(rate);
+        if (successes >= REPROBE_AFTER && faster > 0 && faster <= max) {
+          // counted again from here, whatever the probe gives
+          store.setProperty(key, rate + ",0");
+          save();
+          return faster;
+        }
+        return rate;
+      } catch (NumberFormatException e) {
+        // calibrate again
+      }
+    }
+    for (int rate : RATES) {
+      if (rate <= max) return rate;
+    }
+    return RATES[RATES.length - 1];
+  }
+
+  /**
+  * Next slower rung, or -1 when rate is the slowest one.
+  */
+  static int lower(int rate) {
+    for (int r : RATES) {
+      if (r < rate) return r;
+    }
+    return -1;
+  }
+
+  /**
+  * Next faster rung, or -1 when rate is the fastest one.
+  */
+  static int higher(int rate) {
+    for (int i = RATES.length - 1; i >= 0; i--) {
+      if (RATES[i] > rate) return RATES[i];
+    }
+    return -1;
+  }
+
+  /**
+  * Keeps rate for key and counts the successes in a row at that rate.
+  */
+  synchronized void succeeded(String key, int rate) {
+    String known = store.getProperty(key);
+    int successes = 1;
+    if (known != null) {
+      String[] parts = known.split(",");
+      if (parts.length > 1 && parts[0].equals(Integer.toString(rate))) {
+        try {
+          successes = Integer.parseInt(parts[1]) + 1;
+        } catch (NumberFormatException e) {
+          // start counting again
+        }
+      }
+    }
+    store.setProperty(key, rate + "," + successes);
+    save();
+  }
+
+  /**
+  * True when esptool got through the baud change and then failed, which
+  * is what a rate too fast for the cable or bridge looks like. Failures
+  * to open the port or to connect are not a matter of the rate.
+  */
+  static boolean isBaudFailure(CharSequence output) {
+    String text = output.toString();
+    return text.contains("Changing baud rate") && !text.contains("could not open port");
+  }
+
+  /**
+  * Last address esptool reported writing to, -1 when none.
+  */
+  static long lastWritten(CharSequence output) {
+    long last = -1;
+    Matcher m = WRITING_AT.matcher(output);
+    while (m.find()) last = Long.parseLong(m.group(1), 16);
+    return last;
+  }
+
+  /**
+  * USB vendor:product of the bridge behind a serial port, a family name
+  * guessed from the port name, or "unknown".
+  */
+  static String bridge(String port) {
+    String name = new File(port).getName();
+    File device = new File("/sys/class/tty/" + name + "/device");
+    if (device.exists()) {
+      try {
+        for (File dir = device.getCanonicalFile(); dir != null; dir = dir.getParentFile()) {
+          File vendor = new File(dir, "idVendor");
+          File product = new File(dir, "idProduct");
+          if (vendor.isFile() && product.isFile()) {
+            return readLine(vendor) + ":" + readLine(product);
+          }
+        }
+      } catch (IOException e) {
+        // fall back to the name
+      }
+    }
+    String lower = name.toLowerCase(Locale.ROOT);
+    if (lower.contains("slab_usbtouart")) return "cp210x";
+    if (lower.contains("wchusbserial")) return "ch34x";
+    if (lower.contains("usbmodem") || lower.startsWith("ttyacm")) return "usb-cdc";
+    if (lower.contains("usbserial")) return "usbserial";
+    return "unknown";
+  }
+
+  private static String readLine(File file) throws IOException {
+    try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+      String line = reader.readLine();
+      return line != null ? line.trim() : "";
+    }
+  }
+
+  private void save() {
+    File parent = storeFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) return;
+    try (OutputStream out = new FileOutputStream(storeFile)) {
+      store.store(out, "esp32fs calibrated upload baud rates");
+    } catch (IOException e) {
+      System.err.println("baud   : " + e.getMessage());
+    }
+  }
+}
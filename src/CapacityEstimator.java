@@ -0,0 +1,274 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Estimates the flash footprint of a data folder before the image is built
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+* Walks a data folder in parallel and models what it takes on flash with
+* the layout of the built-in writers:
+*
+*   SPIFFS:   object index header, data and index pages of every file
+*   LittleFS: a metadata pair per directory slice, CTZ blocks of files
+*             too large to be inlined
+*   FatFS:    directory clusters and the cluster slack of every file
+*
+* The footprint is attributed to the directory holding the file, so the
+* largest offenders can be listed before any image is written.
+*/
+class CapacityEstimator {
+  private final SpiffsImageBuilder spiffs;
+  private final LittleFsImageBuilder littlefs;
+  private final FatImageBuilder fat;
+  private final long unit;
+  private final long capacity;
+
+  /**
+  * Throws IllegalArgumentException for a geometry the writers cannot
+  * handle either.
+  */
+  CapacityEstimator(String typefs, long page, long block, long size) {
+    if ("SPIFFS".equals(typefs)) {
+      spiffs = new SpiffsImageBuilder(page, block, size);
+      littlefs = null;
+      fat = null;
+      unit = page;
+      capacity = spiffs.usablePages() * page;
+    } else if ("LittleFS".equals(typefs)) {
+      spiffs = null;
+      littlefs = new LittleFsImageBuilder(page, block, size, 1);
+      fat = null;
+      unit = block;
+      capacity = (long) littlefs.getBlockCount() * block;
+    } else if ("FatFS".equals(typefs)) {
+      spiffs = null;
+      littlefs = null;
+      fat = new FatImageBuilder(size);
+      unit = FatImageBuilder.SECTOR;
+      capacity = (long) fat.getClusterCount() * FatImageBuilder.SECTOR;
+    } else {
+      throw new IllegalArgumentException("Unknown filesystem " + typefs);
+    }
+  }
+
+  /**
+  * Space taken by a file, directory or the whole tree.
+  */
+  static class Usage {
+    final String path;
+    final long bytes;
+    final long dataBytes;
+
+    Usage(String path, long bytes, long dataBytes) {
+      this.path = path;
+      this.bytes = bytes;
+      this.dataBytes = dataBytes;
+    }
+  }
+
+  static class Estimate {
+    final long capacity;
+    long used;
+    long dataBytes;
+    int fileCount;
+    int dirCount;
+    final List<Usage> dirs = new ArrayList<Usage>();
+    final List<Usage> files = new ArrayList<Usage>();
+    final List<String> problems = new ArrayList<String>();
+
+    Estimate(long capacity) {
+      this.capacity = capacity;
+    }
+
+    boolean fits() {
+      return used <= capacity && problems.isEmpty();
+    }
+
+    int getPercent() {
+      return capacity > 0 ? (int) (used * 100 / capacity) : 100;
+    }
+
+    /**
+    * Directories by the space of the files directly in them, largest
+    * first.
+    */
+    List<Usage> largestDirs(int count) {
+      return largest(dirs, count);
+    }
+
+    List<Usage> largestFiles(int count) {
+      return largest(files, count);
+    }
+
+    private static List<Usage> largest(List<Usage> list, int count) {
+      List<Usage> sorted = new ArrayList<Usage>(list);
+      Collections.sort(sorted, new Comparator<Usage>() {
+        public int compare(Usage a, Usage b) {
+          return Long.compare(b.bytes, a.bytes);
+        }
+      });
+      return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+  }
+
+  private static class Item {
+    final String name;
+    final byte[] nameBytes;
+    final boolean dir;
+    final long size;
+
+    Item(String name, boolean dir, long size) {
+      this.name = name;
+      this.nameBytes = utf8(name);
+      this.dir = dir;
+      this.size = size;
+    }
+  }
+
+  private static class Dir {
+    final String path;
+    final List<Item> items = new ArrayList<Item>();
+    final List<Dir> children = new ArrayList<Dir>();
+
+    Dir(String path) {
+      this.path = path;
+    }
+  }
+
+  private static class DirTask extends RecursiveTask<Dir> {
+    private static final long serialVersionUID = 1L;
+    private final File folder;
+    private final String path;
+
+    DirTask(File folder, String path) {
+      this.folder = folder;
+      this.path = path;
+    }
+
+    protected Dir compute() {
+      Dir dir = new Dir(path);
+      File[] entries = folder.listFiles();
+      if (entries == null) return dir;
+      List<DirTask> tasks = new ArrayList<DirTask>();
+      for (File f : entries) {
+        if (f.getName().startsWith(".")) continue;
+        if (f.isDirectory()) {
+          dir.items.add(new Item(f.getName(), true, 0));
+          tasks.add(new DirTask(f, path + "/" + f.getName()));
+        } else if (f.isFile()) {
+          dir.items.add(new Item(f.getName(), false, f.length()));
+        }
+      }
+      // same order as the LittleFS writer, metadata pairs split alike
+      Collections.sort(dir.items, new Comparator<Item>() {
+        public int compare(Item a, Item b) {
+          return LittleFsImageBuilder.NAME_ORDER.compare(a.nameBytes, b.nameBytes);
+        }
+      });
+      invokeAll(tasks);
+      for (DirTask t : tasks) dir.children.add(t.join());
+      return dir;
+    }
+  }
+
+  Estimate estimate(File dataFolder) {
+    Estimate estimate = new Estimate(capacity);
+    if (!dataFolder.isDirectory()) return estimate;
+    ForkJoinPool pool = new ForkJoinPool();
+    Dir root;
+    try {
+      root = pool.invoke(new DirTask(dataFolder, ""));
+    } finally {
+      pool.shutdown();
+    }
+    account(root, true, estimate);
+    return estimate;
+  }
+
+  private void account(Dir dir, boolean isRoot, Estimate estimate) {
+    long own = 0;
+    long data = 0;
+    List<Integer> entrySizes = littlefs != null ? new ArrayList<Integer>() : null;
+    List<String> names = fat != null ? new ArrayList<String>() : null;
+    for (Item item : dir.items) {
+      String path = dir.path + "/" + item.name;
+      int nameLength = item.nameBytes.length;
+      if (littlefs != null) {
+        if (nameLength > LittleFsImageBuilder.NAME_MAX) {
+          estimate.problems.add("name too long (max " + LittleFsImageBuilder.NAME_MAX + "): " + path);
+        }
+        entrySizes.add(littlefs.entrySize(nameLength, item.dir, item.size));
+      }
+      if (fat != null) names.add(item.name);
+      if (item.dir) continue;
+
+      long bytes;
+      if (spiffs != null) {
+        if (utf8(path).length > SpiffsImageBuilder.OBJ_NAME_LEN - 1) {
+          estimate.problems.add("path too long (max " + (SpiffsImageBuilder.OBJ_NAME_LEN - 1) + "): " + path);
+        }
+        bytes = spiffs.pagesFor(item.size) * unit;
+      } else if (littlefs != null) {
+        bytes = item.size > littlefs.getInlineMax() ? littlefs.ctzBlocks(item.size) * unit : 0;
+      } else {
+        bytes = (item.size + unit - 1) / unit * unit;
+      }
+      estimate.files.add(new Usage(path, bytes, item.size));
+      estimate.fileCount++;
+      estimate.dataBytes += item.size;
+      own += bytes;
+      data += item.size;
+    }
+
+    // the directory itself
+    if (littlefs != null) {
+      own += 2 * unit * littlefs.pairsFor(entrySizes, isRoot);
+    } else if (fat != null) {
+      int slots = isRoot ? 0 : 2;
+      try {
+        slots += FatImageBuilder.slotsFor(names);
+      } catch (IOException e) {
+        estimate.problems.add(e.getMessage());
+      }
+      if (isRoot && slots > FatImageBuilder.ROOT_ENTRIES) {
+        estimate.problems.add("root directory full: " + slots + " entries, max " + FatImageBuilder.ROOT_ENTRIES);
+      } else if (!isRoot) {
+        own += (slots * 32L + unit - 1) / unit * unit;
+      }
+    }
+    if (!isRoot) estimate.dirCount++;
+    estimate.dirs.add(new Usage(isRoot ? "/" : dir.path, own, data));
+    estimate.used += own;
+
+    for (Dir child : dir.children) account(child, false, estimate);
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      return s.getBytes();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Content manifest of a sketch "data" folder
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+* Walks a data folder and hashes paths, sizes, mtimes and contents.
+* File digests are remembered in an index file so that files whose
+* size and mtime did not change are not read again.
+*/
+class DataManifest {
+  private final File indexFile;
+  private final Properties index = new Properties();
+  private boolean dirty = false;
+
+  private long fileCount = 0;
+  private long totalBytes = 0;
+  private long rehashed = 0;
+
+  DataManifest(File indexFile) {
+    this.indexFile = indexFile;
+    if (indexFile.isFile()) {
+      try (InputStream in = new FileInputStream(indexFile)) {
+        index.load(in);
+      } catch (IOException e) {
+        index.clear();
+      }
+    }
+  }
+
+  long getFileCount() { return fileCount; }
+  long getTotalBytes() { return totalBytes; }
+  synchronized long getRehashedCount() { return rehashed; }
+
+  /**
+  * Returns the manifest hash of the folder. Entries are visited in sorted
+  * order so the result does not depend on the directory listing order.
+  */
+  String hash(File dataFolder) throws IOException {
+    MessageDigest md = newDigest();
+    Set<String> seen = new HashSet<String>();
+    fileCount = 0;
+    totalBytes = 0;
+    rehashed = 0;
+    if (dataFolder.isDirectory()) {
+      walk(dataFolder, "", md, seen);
+    }
+    // forget files that are gone
+    for (Iterator<Object> it = index.keySet().iterator(); it.hasNext();) {
+      if (!seen.contains(it.next())) {
+        it.remove();
+        dirty = true;
+      }
+    }
+    return toHex(md.digest());
+  }
+
+  /**
+  * Returns the content digest of one file, reusing the indexed value when
+  * size and mtime still match.
+  */
+  String digest(File file, String relPath) throws IOException {
+    long size = file.length();
+    long mtime = file.lastModified();
+    String entry = index.getProperty(relPath);
+    if (entry != null) {
+      String[] parts = entry.split(",");
+      if (parts.length == 3 && parts[0].equals(Long.toString(size)) && parts[1].equals(Long.toString(mtime))) {
+        return parts[2];
+      }
+    }
+    String digest = digestContents(file);
+    // AssetOptimizer calls this from several threads
+    synchronized (this) {
+      index.setProperty(relPath, size + "," + mtime + "," + digest);
+      dirty = true;
+      rehashed++;
+    }
+    return digest;
+  }
+
+  synchronized void save() throws IOException {
+    if (!dirty) return;
+    File parent = indexFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    // written aside and moved in, the IDE and the command line may share it
+    Path tmp = Files.createTempFile(parent != null ? parent.toPath() : new File(".").toPath(), indexFile.getName(), ".tmp");
+    try {
+      try (OutputStream out = Files.newOutputStream(tmp)) {
+        index.store(out, "esp32fs data manifest");
+      }
+      Files.move(tmp, indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    dirty = false;
+  }
+
+  private void walk(File dir, String prefix, MessageDigest md, Set<String> seen) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    for (File file : files) {
+      String relPath = prefix + "/" + file.getName();
+      if (file.isDirectory()) {
+        update(md, "D " + relPath + "\n");
+        walk(file, relPath, md, seen);
+      } else if (file.isFile()) {
+        String digest = digest(file, relPath);
+        seen.add(relPath);
+        fileCount++;
+        totalBytes += file.length();
+        update(md, "F " + relPath + " " + file.length() + " " + file.lastModified() + " " + digest + "\n");
+      }
+    }
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String digestContents(File file) throws IOException {
+    MessageDigest md = newDigest();
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        md.update(buf, 0, n);
+      }
+    }
+    return toHex(md.digest());
+  }
+
+  static void update(MessageDigest md, String s) {
+    try {
+      md.update(s.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b & 0xff));
+    }
+    return sb.toString();
+  }
+}
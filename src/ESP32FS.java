@@ -25,11 +25,16 @@ package com.esp32.mkspiffs;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.Callable;
 
 import java.text.SimpleDateFormat;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.awt.Dimension;
+import java.awt.Font;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 
 import processing.app.PreferencesData;
 import processing.app.Editor;
@@ -47,32 +52,6 @@ import processing.app.helpers.FileUtils;
 
 import cc.arduino.files.DeleteFilesOnShutdown;
 
-/**
-* Taken from https://www.infoworld.com/article/2071275/when-runtime-exec---won-t.html?page=3
-*/
-class StreamGobbler extends Thread {
-    InputStream is;
-    String type;
-
-    StreamGobbler(InputStream is, String type) {
-        this.is = is;
-        this.type = type;
-    }
-
-    public void run() {
-      try {
-            InputStreamReader isr = new InputStreamReader(is);
-            BufferedReader br = new BufferedReader(isr);
-            String line=null;
-            while ( (line = br.readLine()) != null)
-                System.out.println(type + ">" + line);
-      } catch (IOException ioe) {
-            ioe.printStackTrace();
-      }
-    }
-}
-
-
 /**
 * Example Tools menu entry.
 */
@@ -91,44 +70,97 @@ public class ESP32FS implements Tool {
 
   private String typefs = "";
 
-  private int listenOnProcess(String[] arguments){
-      try {
-            Runtime rt = Runtime.getRuntime();
-            Process proc = rt.exec(arguments);
-            // any error message?
-            StreamGobbler errorGobbler = new StreamGobbler(proc.getErrorStream(), "_");
-
-            // any output?
-            StreamGobbler outputGobbler = new StreamGobbler(proc.getInputStream(), "-");
+  private static final String CANCEL_JOB = "Cancel Upload...";
+  private static final String HISTORY = "Upload History";
+  private static final String ERASE_ALL = "Whole flash (erase_flash)";
+
+  /**
+  * Engine for the selected board, with the IDE preferences and the editor
+  * status bar.
+  */
+  private FsEngine newEngine(TargetPlatform platform) {
+    File stateFolder = new File(BaseNoGui.getSettingsFolder(), "esp32fs");
+    ToolRegistry tools = ToolRegistry.get(platform.getFolder(), platform.getPreferences().get("version"), PreferencesData.get("runtime.os"),
+      new File(stateFolder, "tools.properties"));
+    return new FsEngine(stateFolder, tools, new HashMap<String, String>(PreferencesData.getMap()), statusOf(editor));
+  }
 
-            // kick them off
-            errorGobbler.start();
-            outputGobbler.start();
+  private static FsEngine.Status statusOf(final Editor editor) {
+    return new FsEngine.Status() {
+      public void notice(String message) {
+        editor.statusNotice(message);
+      }
+      public void error(String message) {
+        editor.statusError(message);
+      }
+    };
+  }
 
-            // any error???
-            int exitVal = proc.waitFor();
+  /**
+  * Lists the running and waiting jobs and cancels the chosen one.
+  */
+  private void cancelJob() {
+    List<JobScheduler.Ticket> active = JobScheduler.get().getActive();
+    if (active.isEmpty()) {
+      editor.statusNotice("No upload running");
+      return;
+    }
+    Object[] options = active.toArray();
+    Object chosen = JOptionPane.showInputDialog(editor, "Cancel which job?", "Cancel",
+                                                JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+    if (chosen != null) {
+      ((JobScheduler.Ticket) chosen).cancel();
+    }
+  }
 
-        return exitVal;
-      } catch (Exception e){
-        return -1;
-      }
+  /**
+  * Shows the recent runs of the open sketch and their phase times.
+  */
+  private void showHistory() {
+    File file = new File(getBuildFolderPath(editor.getSketch()), RunHistory.FILE_NAME);
+    String text;
+    try {
+      text = RunHistory.summary(file, RunHistory.SUMMARY_RUNS);
+    } catch (IOException e) {
+      editor.statusError("Cannot read " + file + ": " + e.getMessage());
+      return;
+    }
+    JTextArea area = new JTextArea(text);
+    area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+    area.setEditable(false);
+    JScrollPane scroll = new JScrollPane(area);
+    scroll.setPreferredSize(new Dimension(760, 420));
+    JOptionPane.showMessageDialog(editor, scroll, "Upload History", JOptionPane.PLAIN_MESSAGE);
   }
 
-  private void sysExec(final String[] arguments){
-    Thread thread = new Thread() {
-      public void run() {
-        try {
-          if(listenOnProcess(arguments) != 0){
-            editor.statusError(typefs + " Upload failed!");
-          } else {
-            editor.statusNotice(typefs + " Image Uploaded");
-          }
-        } catch (Exception e){
-          editor.statusError(typefs + " Upload failed!");
-        }
-      }
-    };
-    thread.start();
+  /**
+  * Job for the open sketch and the board selected in the IDE.
+  */
+  private FsEngine.Job newJob() {
+    FsEngine.Job job = new FsEngine.Job();
+    job.typefs = typefs;
+    job.name = editor.getSketch().getName();
+    job.dataFolder = new File(editor.getSketch().getFolder(), "data");
+    long started = RunHistory.now();
+    job.buildFolder = new File(getBuildFolderPath(editor.getSketch()));
+    job.record.phase("build_folder", started);
+    job.chip = getChip();
+    job.uploadSpeed = BaseNoGui.getBoardPreferences().get("upload.speed");
+    job.flashMode = BaseNoGui.getBoardPreferences().get("build.flash_mode");
+    job.flashFreq = BaseNoGui.getBoardPreferences().get("build.flash_freq");
+    //the sketch compiled by the IDE, for esp32fs.upload.combined
+    job.bootApp0 = new File(BaseNoGui.getTargetPlatform().getFolder(), "tools/partitions/boot_app0.bin");
+    String bootloaderAddress = BaseNoGui.getBoardPreferences().get("build.bootloader_addr");
+    if (bootloaderAddress != null && !bootloaderAddress.isEmpty()) {
+      job.bootloaderAddress = parseInt(bootloaderAddress);
+    }
+    //a target list replaces the serial port or IP of the IDE
+    job.targets = FsEngine.parseTargets(PreferencesData.get("esp32fs.upload.targets"));
+    String serialPort = PreferencesData.get("serial.port");
+    if (job.targets.isEmpty() && serialPort != null && !serialPort.isEmpty()) {
+      job.targets.add(serialPort);
+    }
+    return job;
   }
 
   private String getBuildFolderPath(Sketch s) {
@@ -184,11 +216,6 @@ public class ESP32FS implements Tool {
   }
 
   private void createAndUpload(){
-    long spiStart = 0, spiSize = 0, spiPage = 256, spiBlock = 4096, spiOffset = 0;
-    String partitions = "";
-
-    if (typefs == "FatFS") spiOffset = 4096;
-
     String chip = getChip();
 
     System.out.println("Chip : " + chip);
@@ -201,186 +228,34 @@ public class ESP32FS implements Tool {
 
     TargetPlatform platform = BaseNoGui.getTargetPlatform();
 
-    String toolExtension = ".py";
-    if(PreferencesData.get("runtime.os").contentEquals("windows")) {
-      toolExtension = ".exe";
-    }
-
-    String pythonCmd;
-    if(PreferencesData.get("runtime.os").contentEquals("windows"))
-        pythonCmd = "python.exe";
-    else
-        pythonCmd = "python3";
-
-    String mkspiffsCmd;
-    if(PreferencesData.get("runtime.os").contentEquals("windows"))
-    if (typefs == "LittleFS") mkspiffsCmd = "mklittlefs.exe";
-        else if (typefs == "FatFS") mkspiffsCmd = "mkfatfs.exe";
-    else mkspiffsCmd = "mkspiffs.exe";
-    else
-        if (typefs == "LittleFS") mkspiffsCmd = "mklittlefs";
-        else if (typefs == "FatFS") mkspiffsCmd = "mkfatfs";
-    else mkspiffsCmd = "mkspiffs";
-
-    String espotaCmd = "espota.py";
-    if(PreferencesData.get("runtime.os").contentEquals("windows"))
-        espotaCmd = "espota.exe";
-
-    Boolean isNetwork = false;
-    File espota = new File(platform.getFolder()+"/tools");
-    File esptool = new File(platform.getFolder()+"/tools");
-    String serialPort = PreferencesData.get("serial.port");
-
     if(!BaseNoGui.getBoardPreferences().containsKey("build.partitions")){
       System.err.println();
       editor.statusError("Partitions Not Defined for "+BaseNoGui.getBoardPreferences().get("name"));
       return;
     }
 
-    File partitionsFile = new File(editor.getSketch().getFolder(), "partitions.csv");
-
-    if (partitionsFile.exists() && partitionsFile.isFile()) {
-        System.out.println("Using partitions.csv from sketch folder.");
-
-    } else {
-        System.out.println("Using partition scheme from Arduino IDE.");
-        try {
-          partitions = BaseNoGui.getBoardPreferences().get("build.partitions");
-          if(partitions == null || partitions.contentEquals("")){
-            editor.statusError("Partitions Not Found for "+BaseNoGui.getBoardPreferences().get("name"));
-            return;
-          }
-        } catch(Exception e){
-          editor.statusError(e);
-          return;
-        }
-
-        partitionsFile = new File(platform.getFolder() + "/tools/partitions", partitions + ".csv");
-
-        if (!partitionsFile.exists() || !partitionsFile.isFile()) {
-          System.err.println();
-          editor.statusError(typefs + " Error: partitions file " + partitions + ".csv not found!");
-          return;
-        }
-    }
-
-    try {
-      BufferedReader partitionsReader = new BufferedReader(new FileReader(partitionsFile));
-      String partitionsLine = "";
-      long spiPrevEnd = 0;
-      boolean isDataLine = false;
-      while ((partitionsLine = partitionsReader.readLine()) != null) {
-          if (!partitionsLine.substring(0, 1).equals("#")) {
-            if( ((typefs != "FatFS") && partitionsLine.contains("spiffs")) || ((typefs == "FatFS") && partitionsLine.contains("ffat"))){
-                isDataLine = true;
-            }
-            partitionsLine = partitionsLine.substring(partitionsLine.indexOf(",")+1);
-            partitionsLine = partitionsLine.substring(partitionsLine.indexOf(",")+1);
-            partitionsLine = partitionsLine.substring(partitionsLine.indexOf(",")+1);
-            while(partitionsLine.startsWith(" ")) partitionsLine = partitionsLine.substring(1);
-            String pStart = partitionsLine.substring(0, partitionsLine.indexOf(","));
-            partitionsLine = partitionsLine.substring(partitionsLine.indexOf(",")+1);
-            while(partitionsLine.startsWith(" ")) partitionsLine = partitionsLine.substring(1);
-            String pSize = partitionsLine.substring(0, partitionsLine.indexOf(","));
-
-            //System.out.println("From CSV, Partition Start: " + pStart + ", Size: " + pSize);
-
-            if (isDataLine) {
-                if (pStart == null || pStart.trim().isEmpty()) {
-                    spiStart = spiPrevEnd + spiOffset;
-                } else {
-                    spiStart = parseInt(pStart) + spiOffset;
-                }
-                spiSize = parseInt(pSize) - spiOffset;
-                break;
-            } else {
-                if (pSize != null && !pSize.trim().isEmpty()) {
-                    if (pStart == null || pStart.trim().isEmpty()) {
-                        spiPrevEnd += parseInt(pSize);
-                    } else {
-                        spiPrevEnd = parseInt(pStart) + parseInt(pSize);
-                    }
-                }
-                spiSize = 0;
-            }
-        }
-      }
-      if(spiSize == 0){
-        System.err.println();
-        editor.statusError(typefs + " Error: partition size could not be found!");
-        return;
-      }
-    } catch(Exception e){
-      editor.statusError(e);
-      return;
-    }
-
-    System.out.println("Start: 0x" + String.format("%x", spiStart));
-    System.out.println("Size : 0x" + String.format("%x", spiSize));
-
-    File tool = new File(platform.getFolder() + "/tools", mkspiffsCmd);
-    if (!tool.exists() || !tool.isFile()) {
-      tool = new File(platform.getFolder() + "/tools/mk" + typefs.toLowerCase(), mkspiffsCmd);
-      if (!tool.exists()) {
-        tool = new File(PreferencesData.get("runtime.tools.mk" + typefs.toLowerCase() + ".path"), mkspiffsCmd);
-        if (!tool.exists()) {
-            System.err.println();
-            editor.statusError(typefs + " Error: mk" + typefs.toLowerCase() + "not found!");
-            return;
-        }
-      }
-    }
-  System.out.println("mk" + typefs.toLowerCase() + " : " + tool.getAbsolutePath());
-  System.out.println();
+    final FsEngine engine = newEngine(platform);
+    final FsEngine.Job job = newJob();
 
     //make sure the serial port or IP is defined
-    if (serialPort == null || serialPort.isEmpty()) {
+    if (job.targets.isEmpty()) {
       System.err.println();
       editor.statusError(typefs + " Error: serial port not defined!");
       return;
     }
 
-    //find espota if IP else find esptool
-    if(serialPort.split("\\.").length == 4){
-      isNetwork = true;
-      espota = new File(platform.getFolder()+"/tools", espotaCmd);
-      if(!espota.exists() || !espota.isFile()){
-    espota = new File(platform.getFolder()+"/tools", "espota.py");   //fall-back to .py
-    if(!espota.exists() || !espota.isFile()){
+    try {
+      job.partitionsFile = FsEngine.findPartitions(editor.getSketch().getFolder(), platform.getFolder(),
+        BaseNoGui.getBoardPreferences().get("build.partitions"), job.buildFolder, job.name);
+    } catch(IOException e){
       System.err.println();
-      editor.statusError(typefs + " Error: espota not found!");
+      editor.statusError(typefs + " " + e.getMessage());
       return;
     }
-      }
-    System.out.println("espota : "+espota.getAbsolutePath());
-      System.out.println();
-    } else {
-      String esptoolCmd = "esptool"+toolExtension;
-      esptool = new File(platform.getFolder()+"/tools", esptoolCmd);
-      if(!esptool.exists() || !esptool.isFile()){
-        esptool = new File(platform.getFolder()+"/tools/esptool_py", esptoolCmd);
-        if(!esptool.exists() || !esptool.isFile()){
-            esptool = new File(platform.getFolder()+"/tools/esptool", esptoolCmd);
-            if(!esptool.exists() || !esptool.isFile()){
-              esptool = new File(PreferencesData.get("runtime.tools.esptool_py.path"), esptoolCmd);
-              if(!esptool.exists() || !esptool.isFile()){
-                esptool = new File(PreferencesData.get("runtime.tools.esptool.path"), esptoolCmd);
-                if(!esptool.exists() || !esptool.isFile()){
-                  System.err.println();
-                  editor.statusError("Error: esptool not found!");
-                  return;
-                }
-              }
-            }
-        }
-      }
-      System.out.println("esptool : "+esptool.getAbsolutePath());
-      System.out.println();
-    }
 
     //load a list of all files
     int fileCount = 0;
-    File dataFolder = new File(editor.getSketch().getFolder(), "data");
+    File dataFolder = job.dataFolder;
     if (!dataFolder.exists()) {
         dataFolder.mkdirs();
     }
@@ -393,12 +268,6 @@ public class ESP32FS implements Tool {
       }
     }
 
-    String dataPath = dataFolder.getAbsolutePath();
-    String toolPath = tool.getAbsolutePath();
-    String sketchName = editor.getSketch().getName();
-    String imagePath = getBuildFolderPath(editor.getSketch()) + "/" + sketchName + "." + typefs.toLowerCase() + ".bin";
-    String uploadSpeed = BaseNoGui.getBoardPreferences().get("upload.speed");
-
     Object[] options = { "Yes", "No" };
     String title = typefs + " Create";
     String message = "No files have been found in your data folder!\nAre you sure you want to create an empty " + typefs + " image?";
@@ -409,66 +278,13 @@ public class ESP32FS implements Tool {
       return;
     }
 
-    editor.statusNotice(typefs + " Creating Image...");
-    System.out.println("[" + typefs + "] data   : "+dataPath);
-    System.out.println("[" + typefs + "] offset : "+spiOffset);
-    System.out.println("[" + typefs + "] start  : "+spiStart);
-    System.out.println("[" + typefs + "] size   : "+(spiSize/1024));
-    if (typefs != "FatFS") {
-        System.out.println("[" + typefs + "] page   : "+spiPage);
-        System.out.println("[" + typefs + "] block  : "+spiBlock);
-    }
-
-    try {
-      if (typefs == "FatFS") {
-        if(listenOnProcess(new String[]{toolPath, "-c", dataPath, "-s", spiSize+"", imagePath}) != 0){
-          System.err.println();
-          editor.statusError(typefs + " Create Failed!");
-          return;
-        }
-      } else {
-        if(listenOnProcess(new String[]{toolPath, "-c", dataPath, "-p", spiPage+"", "-b", spiBlock+"", "-s", spiSize+"", imagePath}) != 0){
-          System.err.println();
-          editor.statusError(typefs + " Create Failed!");
-          return;
-        }
+    System.out.println("[" + typefs + "] name   : "+BaseNoGui.getBoardPreferences().get("name"));
+    //the board connects while the image is built, the upload follows
+    JobScheduler.get().submit(typefs + " Upload", job, statusOf(editor), new Callable<Boolean>() {
+      public Boolean call() {
+        return engine.buildAndUpload(job) != FsEngine.UPLOAD_FAILED;
       }
-
-    } catch (Exception e){
-      editor.statusError(e);
-      editor.statusError(typefs + " Create Failed!");
-      return;
-    }
-
-    editor.statusNotice(typefs + " Uploading Image...");
-    System.out.println("[" + typefs + "] upload : "+imagePath);
-
-    if(isNetwork){
-      System.out.println("[" + typefs + "] IP     : "+serialPort);
-    System.out.println("Running: " + espota.getAbsolutePath() + " -i " + serialPort + " -p 3232 -s -f " + imagePath);
-    System.out.println();
-      if(espota.getAbsolutePath().endsWith(".py"))
-        sysExec(new String[]{pythonCmd, espota.getAbsolutePath(), "-i", serialPort, "-p", "3232", "-s", "-f", imagePath}); // other flags , "-d", "-r", "-t", "50"
-      else
-        sysExec(new String[]{espota.getAbsolutePath(), "-i", serialPort, "-p", "3232", "-s", "-f", imagePath});
-    } else {
-      String flashMode = BaseNoGui.getBoardPreferences().get("build.flash_mode");
-      String flashFreq = BaseNoGui.getBoardPreferences().get("build.flash_freq");
-      String boardName = BaseNoGui.getBoardPreferences().get("name");
-      System.out.println("[" + typefs + "] address: "+spiStart);
-      System.out.println("[" + typefs + "] port   : "+serialPort);
-      System.out.println("[" + typefs + "] speed  : "+uploadSpeed);
-      System.out.println("[" + typefs + "] name   : "+boardName);
-      System.out.println("[" + typefs + "] chip   : "+chip);
-      System.out.println("[" + typefs + "] mode   : "+flashMode);
-      System.out.println("[" + typefs + "] freq   : "+flashFreq);
-      System.out.println();
-      // change after "write_flash" "-z" to "-u" (--no_compress) below to build file for esp32fs_no_compress.zip
-      if(esptool.getAbsolutePath().endsWith(".py"))
-        sysExec(new String[]{pythonCmd, esptool.getAbsolutePath(), "--chip", chip, "--baud", uploadSpeed, "--port", serialPort, "--before", "default_reset", "--after", "hard_reset", "write_flash", "-z", "--flash_mode", flashMode, "--flash_freq", flashFreq, "--flash_size", "detect", ""+spiStart, imagePath});
-      else
-        sysExec(new String[]{esptool.getAbsolutePath(), "--chip", chip, "--baud", uploadSpeed, "--port", serialPort, "--before", "default_reset", "--after", "hard_reset", "write_flash", "-z", "--flash_mode", flashMode, "--flash_freq", flashFreq, "--flash_size", "detect", ""+spiStart, imagePath});
-    }
+    });
   }
 
 
@@ -481,24 +297,8 @@ public class ESP32FS implements Tool {
       return;
     }
 
-    TargetPlatform platform = BaseNoGui.getTargetPlatform();
-
-    String toolExtension = ".py";
-    if(PreferencesData.get("runtime.os").contentEquals("windows")) {
-      toolExtension = ".exe";
-    } else if(PreferencesData.get("runtime.os").contentEquals("macosx")) {
-      toolExtension = "";
-    }
-
-    String pythonCmd;
-    if(PreferencesData.get("runtime.os").contentEquals("windows"))
-        pythonCmd = "python.exe";
-    else
-        pythonCmd = "python";
-
-    Boolean isNetwork = false;
-
-    File esptool = new File(platform.getFolder()+"/tools");
+    final FsEngine engine = newEngine(BaseNoGui.getTargetPlatform());
+    final FsEngine.Job job = newJob();
     String serialPort = PreferencesData.get("serial.port");
 
     //make sure the serial port or IP is defined
@@ -507,58 +307,81 @@ public class ESP32FS implements Tool {
       editor.statusError(typefs + " Error: serial port not defined!");
       return;
     }
+    job.targets = new ArrayList<String>(Arrays.asList(serialPort));
 
-    //find port
-    if(serialPort.split("\\.").length == 4){
-      isNetwork = true;
-    } else {
-      String esptoolCmd = "esptool"+toolExtension;
-      esptool = new File(platform.getFolder()+"/tools", esptoolCmd);
-      if(!esptool.exists() || !esptool.isFile()){
-        esptool = new File(platform.getFolder()+"/tools/esptool_py", esptoolCmd);
-        if(!esptool.exists() || !esptool.isFile()){
-            esptool = new File(platform.getFolder()+"/tools/esptool", esptoolCmd);
-            if(!esptool.exists() || !esptool.isFile()){
-              esptool = new File(PreferencesData.get("runtime.tools.esptool_py.path"), esptoolCmd);
-              if(!esptool.exists() || !esptool.isFile()){
-                esptool = new File(PreferencesData.get("runtime.tools.esptool.path"), esptoolCmd);
-                if(!esptool.exists() || !esptool.isFile()){
-                  System.err.println();
-                  editor.statusError("Error: esptool not found!");
-                  return;
-                }
-              }
-            }
-        }
-      }
-    System.out.println("esptool : "+esptool.getAbsolutePath());
-      System.out.println();
+    try {
+      engine.resolveUploadTools(job);
+    } catch (IOException e) {
+      System.err.println();
+      editor.statusError(e.getMessage());
+      return;
     }
 
-    Object[] options = { "Yes", "No" };
-    String title = "Erase All Flash";
-    String message = "Are you sure?";
+    //the data partition, plus the ones listed in esp32fs.erase.partitions
+    List<String> partitions = new ArrayList<String>();
+    try {
+      job.partitionsFile = FsEngine.findPartitions(editor.getSketch().getFolder(), BaseNoGui.getTargetPlatform().getFolder(),
+        BaseNoGui.getBoardPreferences().get("build.partitions"), job.buildFolder, job.name);
+      PartitionTable table = PartitionTable.load(job.partitionsFile);
+      PartitionTable.Entry data = table.findData("LittleFS");
+      if (data == null) data = table.findData("FatFS");
+      if (data != null) partitions.add(data.name);
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+    List<String> extra = new ArrayList<String>(FsEngine.parseTargets(PreferencesData.get("esp32fs.erase.partitions")));
+    extra.removeAll(partitions);
 
-    if(JOptionPane.showOptionDialog(editor, message, title, JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[1]) != JOptionPane.YES_OPTION){
+    List<String> choices = new ArrayList<String>();
+    if (!partitions.isEmpty()) {
+      choices.add("Data partition (" + partitions.get(0) + ")");
+      if (!extra.isEmpty()) choices.add("Data partition and " + String.join(", ", extra));
+    }
+    boolean network = FsEngine.isNetworkTarget(serialPort);
+    if (!network) choices.add(ERASE_ALL);
+    if (choices.isEmpty()) {
       System.err.println();
-      editor.statusError("Warning: Erase All Flash canceled!");
+      editor.statusError("Cannot be done through OTA, no data partition found");
+      return;
+    }
+    Object[] options = choices.toArray();
+    Object choice = JOptionPane.showInputDialog(editor, "Erase what on " + serialPort + "?", "Erase Flash",
+                                                JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+    if (choice == null) {
+      System.err.println();
+      editor.statusError("Warning: Erase Flash canceled!");
       return;
     }
 
-    editor.statusNotice("Erasing all Flash started...");
-    System.out.println("Erasing all Flash started...");
+    if (choice == ERASE_ALL) {
+      Object[] confirm = { "Yes", "No" };
+      if(JOptionPane.showOptionDialog(editor, "Are you sure?", "Erase All Flash", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE, null, confirm, confirm[1]) != JOptionPane.YES_OPTION){
+        System.err.println();
+        editor.statusError("Warning: Erase All Flash canceled!");
+        return;
+      }
 
-    if(isNetwork){
-      System.out.println("Cannot be done through OTA, IP     : "+serialPort);
-      System.out.println();
-    } else {
-      System.out.println("Port: "+serialPort);
-      System.out.println();
-      if(esptool.getAbsolutePath().endsWith(".py"))
-        sysExec(new String[]{pythonCmd, esptool.getAbsolutePath(), "--chip", chip, "--port", serialPort, "--before", "default_reset", "--after", "hard_reset", "erase_flash"});
-      else
-        sysExec(new String[]{esptool.getAbsolutePath(), "--chip", chip, "--port", serialPort, "--before", "default_reset", "--after", "hard_reset", "erase_flash"});
+      editor.statusNotice("Erasing all Flash started...");
+      System.out.println("Erasing all Flash started...");
+
+      JobScheduler.get().submit("Erase Flash", job, statusOf(editor), new Callable<Boolean>() {
+        public Boolean call() {
+          return engine.eraseFlash(job);
+        }
+      });
+      return;
     }
+
+    if (choice != options[0]) partitions.addAll(extra);
+    final List<String> names = partitions;
+    editor.statusNotice("Erasing " + names + " started...");
+    System.out.println("Erasing " + names + " started...");
+
+    JobScheduler.get().submit("Erase " + names, job, statusOf(editor), new Callable<Boolean>() {
+      public Boolean call() {
+        return engine.erasePartitions(job, names);
+      }
+    });
   }
 
   private String getChip(){
@@ -567,7 +390,9 @@ public class ESP32FS implements Tool {
 
   public void run() {
   String sketchName = editor.getSketch().getName();
-    Object[] options = { "LittleFS", "SPIFFS", "FatFS", "!Erase Flash!" };
+    List<Object> choices = new ArrayList<Object>(Arrays.asList("LittleFS", "SPIFFS", "FatFS", "!Erase Flash!", HISTORY));
+    if (!JobScheduler.get().getActive().isEmpty()) choices.add(CANCEL_JOB);
+    Object[] options = choices.toArray();
     typefs = (String)JOptionPane.showInputDialog(editor,
                                               "Select FS for " + sketchName +
                                               " /data folder",
@@ -579,6 +404,10 @@ public class ESP32FS implements Tool {
     if ((typefs != null) && (typefs.length() > 0)) {
         if (typefs == "!Erase Flash!") {
             eraseFlash();
+        } else if (typefs == CANCEL_JOB) {
+            cancelJob();
+        } else if (typefs == HISTORY) {
+            showHistory();
         } else {
             createAndUpload();
         }
@@ -0,0 +1,524 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  In-process client of the ESP32 serial bootloader
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+* Speaks the serial protocol of the ESP32 ROM loader and of the esptool
+* flasher stub: SLIP framed command packets, compressed flash writes
+* (FLASH_DEFL_BEGIN/DATA/END) and SPI_FLASH_MD5. The stub is uploaded
+* from the json files esptool ships; without them the ROM loader is used,
+* which is slower but writes and checksums all the same.
+*
+* Regions are written in SEGMENT sized pieces, each its own zlib stream.
+* A producer thread deflates the next pieces while the current one is
+* sent, so compression and serial I/O overlap.
+*/
+class EspLoader implements Closeable {
+  static final int MEM_BEGIN = 0x05;
+  static final int MEM_END = 0x06;
+  static final int MEM_DATA = 0x07;
+  static final int SYNC = 0x08;
+  static final int READ_REG = 0x0a;
+  static final int SPI_SET_PARAMS = 0x0b;
+  static final int SPI_ATTACH = 0x0d;
+  static final int CHANGE_BAUDRATE = 0x0f;
+  static final int FLASH_DEFL_BEGIN = 0x10;
+  static final int FLASH_DEFL_DATA = 0x11;
+  static final int FLASH_DEFL_END = 0x12;
+  static final int SPI_FLASH_MD5 = 0x13;
+  static final int ERASE_FLASH = 0xd0;
+  static final int ERASE_REGION = 0xd1;
+
+  static final int ROM_BAUD = 115200;
+  static final int ROM_WRITE_SIZE = 0x400;
+  static final int STUB_WRITE_SIZE = 0x4000;
+  static final int MEM_BLOCK_SIZE = 0x1800;
+  static final int CHECKSUM_SEED = 0xef;
+  static final int SEGMENT = 256 * 1024;
+  static final int SEGMENTS_AHEAD = 2;
+
+  static final int DEFAULT_TIMEOUT_MS = 3000;
+  static final int SYNC_TIMEOUT_MS = 100;
+  static final int ERASE_TIMEOUT_PER_MB_MS = 30000;
+  static final int ERASE_WRITE_TIMEOUT_PER_MB_MS = 40000;
+  static final int MD5_TIMEOUT_PER_MB_MS = 8000;
+  static final int CHIP_ERASE_TIMEOUT_MS = 120000;
+
+  private static final byte[] OHAI = { 'O', 'H', 'A', 'I' };
+
+  // the ROM of every chip puts a fixed value at this address
+  static final int CHIP_DETECT_MAGIC_REG = 0x40001000;
+  private static final Map<Integer, String> CHIP_MAGIC = new HashMap<Integer, String>();
+  static {
+    CHIP_MAGIC.put(0xfff0c101, "esp8266");
+    CHIP_MAGIC.put(0x00f01d83, "esp32");
+    CHIP_MAGIC.put(0x000007c6, "esp32s2");
+    CHIP_MAGIC.put(0x00000009, "esp32s3");
+    for (int magic : new int[]{ 0x6921506f, 0x1b31506f, 0x4881606f, 0x4361606f }) CHIP_MAGIC.put(magic, "esp32c3");
+    for (int magic : new int[]{ 0x6f51306f, 0x7c41a06f }) CHIP_MAGIC.put(magic, "esp32c2");
+    CHIP_MAGIC.put(0x2ce0806f, "esp32c6");
+    CHIP_MAGIC.put(0xd7b73e80, "esp32h2");
+  }
+
+  /**
+  * Receives write progress in bytes of the uncompressed regions.
+  */
+  interface Progress {
+    void written(long done, long total);
+  }
+
+  private final SerialLink link;
+  private final String chip;
+  private String detected;
+  private boolean stub = false;
+  private int lastValue;
+  private int baud = ROM_BAUD;
+
+  private final byte[] readBuf = new byte[4096];
+  private int readPos = 0;
+  private int readLen = 0;
+
+  private EspLoader(SerialLink link, String chip) {
+    this.link = link;
+    this.chip = chip;
+  }
+
+  /**
+  * Resets the board into the loader, syncs, uploads the stub when
+  * stubFile is given and attaches the SPI flash. The link is closed when
+  * this fails. When the board turns out to be another chip, it stops
+  * after the sync so getChip() can be checked without a stub of the wrong
+  * chip hanging the board.
+  */
+  static EspLoader connect(SerialLink link, String chip, File stubFile) throws IOException {
+    EspLoader loader = new EspLoader(link, chip);
+    try {
+      loader.sync();
+      loader.detected = CHIP_MAGIC.get(loader.readReg(CHIP_DETECT_MAGIC_REG));
+      if (!loader.isChip(chip)) return loader;
+      if (stubFile != null) loader.loadStub(stubFile);
+      loader.attachFlash();
+      return loader;
+    } catch (IOException e) {
+      link.close();
+      throw e;
+    }
+  }
+
+  boolean isStub() {
+    return stub;
+  }
+
+  /**
+  * Chip found on the board, null when its ROM is not known here.
+  */
+  String getChip() {
+    return detected;
+  }
+
+  /**
+  * False only when the board is known to be another chip; chip names are
+  * compared the way esptool and build.mcu spell them (esp32-s3, esp32s3).
+  */
+  boolean isChip(String name) {
+    return detected == null || detected.equals(name.toLowerCase(Locale.ROOT).replace("-", ""));
+  }
+
+  int readReg(int address) throws IOException {
+    command(READ_REG, pack(address), 0, DEFAULT_TIMEOUT_MS);
+    return lastValue;
+  }
+
+  void changeBaud(int rate) throws IOException {
+    if (rate == baud) return;
+    command(CHANGE_BAUDRATE, pack(rate, stub ? baud : 0), 0, DEFAULT_TIMEOUT_MS);
+    link.setBaud(rate);
+    baud = rate;
+    sleep(50);
+    link.purge();
+    readLen = readPos = 0;
+  }
+
+  /**
+  * MD5 of a flash region, computed by the chip.
+  */
+  byte[] flashMd5(long address, long size) throws IOException {
+    byte[] data = command(SPI_FLASH_MD5, pack((int) address, (int) size, 0, 0), 0, timeoutPerMb(MD5_TIMEOUT_PER_MB_MS, size));
+    if (stub) return Arrays.copyOf(data, 16);
+    // the ROM answers in hex
+    byte[] md5 = new byte[16];
+    for (int i = 0; i < 16; i++) {
+      md5[i] = (byte) Integer.parseInt(new String(data, i * 2, 2, "US-ASCII"), 16);
+    }
+    return md5;
+  }
+
+  /**
+  * Erases a 4 KB aligned region, only the stub knows the command.
+  */
+  void eraseRegion(long address, long size) throws IOException {
+    if (!stub) throw new IOException("erase_region needs the flasher stub");
+    command(ERASE_REGION, pack((int) address, (int) size), 0, timeoutPerMb(ERASE_TIMEOUT_PER_MB_MS, size));
+  }
+
+  void eraseFlash() throws IOException {
+    if (!stub) throw new IOException("erase_flash needs the flasher stub");
+    command(ERASE_FLASH, new byte[0], 0, CHIP_ERASE_TIMEOUT_MS);
+  }
+
+  /**
+  * Writes runs of image (all of it when runs is null) at address.
+  */
+  void write(File image, final long address, List<FlashHistory.Run> runs, Progress progress) throws IOException {
+    if (runs == null) runs = Collections.singletonList(new FlashHistory.Run(0, image.length()));
+    final long total = FlashHistory.totalLength(runs);
+    // one piece per SEGMENT of every run
+    final List<long[]> pieces = new ArrayList<long[]>();
+    for (FlashHistory.Run r : runs) {
+      for (long off = r.offset; off < r.offset + r.length; off += SEGMENT) {
+        pieces.add(new long[]{ off, Math.min(SEGMENT, r.offset + r.length - off) });
+      }
+    }
+    ExecutorService producer = Executors.newSingleThreadExecutor();
+    final RandomAccessFile in = new RandomAccessFile(image, "r");
+    try {
+      Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+      int next = 0;
+      long done = 0;
+      for (int i = 0; i < pieces.size(); i++) {
+        while (next < pieces.size() && pending.size() <= SEGMENTS_AHEAD) {
+          final long[] piece = pieces.get(next++);
+          pending.add(producer.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+              byte[] raw = new byte[(int) piece[1]];
+              synchronized (in) {
+                in.seek(piece[0]);
+                in.readFully(raw);
+              }
+              return deflate(raw);
+            }
+          }));
+        }
+        byte[] compressed;
+        try {
+          compressed = pending.remove().get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        long[] piece = pieces.get(i);
+        writeDeflated(address + piece[0], piece[1], compressed, done, total, progress);
+        done += piece[1];
+      }
+      // stay in the loader, the caller resets the board
+      command(FLASH_DEFL_END, pack(1), 0, DEFAULT_TIMEOUT_MS);
+    } finally {
+      producer.shutdownNow();
+      in.close();
+    }
+  }
+
+  private void writeDeflated(long address, long size, byte[] compressed, long done, long total, Progress progress) throws IOException {
+    int writeSize = stub ? STUB_WRITE_SIZE : ROM_WRITE_SIZE;
+    int blocks = (compressed.length + writeSize - 1) / writeSize;
+    byte[] begin;
+    if (stub) {
+      // the stub erases as it goes and wants the plain size
+      begin = pack((int) size, blocks, writeSize, (int) address);
+    } else {
+      int eraseSize = (int) ((size + writeSize - 1) / writeSize * writeSize);
+      // ROMs newer than the ESP32 take an extra "encrypted" word
+      begin = "esp32".equals(chip) ? pack(eraseSize, blocks, writeSize, (int) address) : pack(eraseSize, blocks, writeSize, (int) address, 0);
+    }
+    command(FLASH_DEFL_BEGIN, begin, 0, stub ? DEFAULT_TIMEOUT_MS : timeoutPerMb(ERASE_TIMEOUT_PER_MB_MS, size));
+    // a block of zeros inflates to far more than its size, and the stub
+    // erases and writes all of it before it answers
+    Inflater inflater = new Inflater();
+    byte[] sink = new byte[64 * 1024];
+    try {
+      for (int seq = 0; seq < blocks; seq++) {
+        int off = seq * writeSize;
+        int len = Math.min(writeSize, compressed.length - off);
+        byte[] data = new byte[16 + len];
+        System.arraycopy(pack(len, seq, 0, 0), 0, data, 0, 16);
+        System.arraycopy(compressed, off, data, 16, len);
+        long inflated = 0;
+        inflater.setInput(compressed, off, len);
+        for (int n; (n = inflater.inflate(sink)) > 0; ) inflated += n;
+        command(FLASH_DEFL_DATA, data, checksum(compressed, off, len), timeoutPerMb(ERASE_WRITE_TIMEOUT_PER_MB_MS, inflated));
+        if (progress != null) progress.written(done + size * (seq + 1) / blocks, total);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid deflated data", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  void hardReset() throws IOException {
+    link.setSignals(false, true);
+    sleep(100);
+    link.setSignals(false, false);
+  }
+
+  public void close() throws IOException {
+    link.close();
+  }
+
+  /**
+  * Classic DTR/RTS reset into the loader followed by SYNC, a few times
+  * over.
+  */
+  private void sync() throws IOException {
+    byte[] sync = new byte[36];
+    sync[0] = 0x07;
+    sync[1] = 0x07;
+    sync[2] = 0x12;
+    sync[3] = 0x20;
+    Arrays.fill(sync, 4, 36, (byte) 0x55);
+    for (int reset = 0; reset < 3; reset++) {
+      link.setSignals(false, true);
+      sleep(100);
+      link.setSignals(true, false);
+      sleep(50);
+      link.setSignals(false, false);
+      link.purge();
+      readLen = readPos = 0;
+      for (int attempt = 0; attempt < 7; attempt++) {
+        try {
+          command(SYNC, sync, 0, SYNC_TIMEOUT_MS);
+          // the ROM answers every SYNC several times
+          sleep(50);
+          link.purge();
+          readLen = readPos = 0;
+          return;
+        } catch (IOException e) {
+          // try again
+        }
+      }
+    }
+    throw new IOException("Failed to connect to " + chip + ": no answer to SYNC");
+  }
+
+  private void attachFlash() throws IOException {
+    command(SPI_ATTACH, stub ? pack(0) : pack(0, 0), 0, DEFAULT_TIMEOUT_MS);
+    // bounds for the ROM, not a claim about the chip: 16 MB, 64 KB blocks, 4 KB sectors, 256 byte pages
+    command(SPI_SET_PARAMS, pack(0, 16 << 20, 64 * 1024, 4096, 256, 0xffff), 0, DEFAULT_TIMEOUT_MS);
+  }
+
+  private void loadStub(File stubFile) throws IOException {
+    String json = new String(java.nio.file.Files.readAllBytes(stubFile.toPath()), "UTF-8");
+    int entry = jsonNumber(json, "entry");
+    for (String segment : new String[]{ "text", "data" }) {
+      String encoded = jsonString(json, segment);
+      if (encoded == null) continue;
+      byte[] code = Base64.getDecoder().decode(encoded);
+      int start = jsonNumber(json, segment + "_start");
+      int blocks = (code.length + MEM_BLOCK_SIZE - 1) / MEM_BLOCK_SIZE;
+      command(MEM_BEGIN, pack(code.length, blocks, MEM_BLOCK_SIZE, start), 0, DEFAULT_TIMEOUT_MS);
+      for (int seq = 0; seq < blocks; seq++) {
+        int off = seq * MEM_BLOCK_SIZE;
+        int len = Math.min(MEM_BLOCK_SIZE, code.length - off);
+        byte[] data = new byte[16 + len];
+        System.arraycopy(pack(len, seq, 0, 0), 0, data, 0, 16);
+        System.arraycopy(code, off, data, 16, len);
+        command(MEM_DATA, data, checksum(code, off, len), DEFAULT_TIMEOUT_MS);
+      }
+    }
+    command(MEM_END, pack(0, entry), 0, DEFAULT_TIMEOUT_MS);
+    byte[] hello = readFrame(DEFAULT_TIMEOUT_MS);
+    if (!Arrays.equals(hello, OHAI)) throw new IOException("flasher stub did not start");
+    stub = true;
+  }
+
+  /**
+  * Sends a command and returns the data of its response without the
+  * status bytes. The value field of the response is kept in lastValue.
+  */
+  private byte[] command(int op, byte[] data, int checksum, int timeoutMs) throws IOException {
+    byte[] packet = new byte[8 + data.length];
+    packet[0] = 0x00;
+    packet[1] = (byte) op;
+    packet[2] = (byte) data.length;
+    packet[3] = (byte) (data.length >> 8);
+    System.arraycopy(pack(checksum), 0, packet, 4, 4);
+    System.arraycopy(data, 0, packet, 8, data.length);
+    link.write(slip(packet));
+
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (true) {
+      int left = (int) (deadline - System.currentTimeMillis());
+      if (left <= 0) throw new IOException("Timed out waiting for response to command 0x" + Integer.toHexString(op));
+      byte[] frame = readFrame(left);
+      // late answers to earlier commands are skipped
+      if (frame.length < 8 || frame[0] != 0x01 || (frame[1] & 0xff) != op) continue;
+      int size = (frame[2] & 0xff) | (frame[3] & 0xff) << 8;
+      int statusLength = stub ? 2 : 4;
+      if (size < statusLength || frame.length < 8 + size) throw new IOException("Invalid response to command 0x" + Integer.toHexString(op));
+      if (frame[8 + size - statusLength] != 0) {
+        throw new IOException("Command 0x" + Integer.toHexString(op) + " failed with error 0x" + Integer.toHexString(frame[8 + size - statusLength + 1] & 0xff));
+      }
+      lastValue = (frame[4] & 0xff) | (frame[5] & 0xff) << 8 | (frame[6] & 0xff) << 16 | (frame[7] & 0xff) << 24;
+      return Arrays.copyOfRange(frame, 8, 8 + size - statusLength);
+    }
+  }
+
+  /**
+  * Reads the next SLIP frame, skipping noise before the first delimiter.
+  */
+  private byte[] readFrame(int timeoutMs) throws IOException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    boolean inFrame = false;
+    boolean escape = false;
+    while (true) {
+      if (readPos == readLen) {
+        int left = (int) (deadline - System.currentTimeMillis());
+        if (left <= 0) throw new IOException("Timed out waiting for packet");
+        readLen = link.read(readBuf, left);
+        readPos = 0;
+        continue;
+      }
+      int b = readBuf[readPos++] & 0xff;
+      if (!inFrame) {
+        if (b == 0xc0) inFrame = true;
+        continue;
+      }
+      if (escape) {
+        escape = false;
+        if (b == 0xdc) frame.write(0xc0);
+        else if (b == 0xdd) frame.write(0xdb);
+        else throw new IOException("Invalid SLIP escape 0x" + Integer.toHexString(b));
+      } else if (b == 0xdb) {
+        escape = true;
+      } else if (b == 0xc0) {
+        // back to back delimiters carry no frame
+        if (frame.size() > 0) return frame.toByteArray();
+      } else {
+        frame.write(b);
+      }
+    }
+  }
+
+  static byte[] slip(byte[] packet) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(packet.length + 16);
+    out.write(0xc0);
+    for (byte p : packet) {
+      int b = p & 0xff;
+      if (b == 0xc0) {
+        out.write(0xdb);
+        out.write(0xdc);
+      } else if (b == 0xdb) {
+        out.write(0xdb);
+        out.write(0xdd);
+      } else {
+        out.write(b);
+      }
+    }
+    out.write(0xc0);
+    return out.toByteArray();
+  }
+
+  static int checksum(byte[] data, int off, int len) {
+    int sum = CHECKSUM_SEED;
+    for (int i = off; i < off + len; i++) sum ^= data[i] & 0xff;
+    return sum;
+  }
+
+  static byte[] pack(int... words) {
+    byte[] b = new byte[words.length * 4];
+    for (int i = 0; i < words.length; i++) {
+      b[i * 4] = (byte) words[i];
+      b[i * 4 + 1] = (byte) (words[i] >> 8);
+      b[i * 4 + 2] = (byte) (words[i] >> 16);
+      b[i * 4 + 3] = (byte) (words[i] >> 24);
+    }
+    return b;
+  }
+
+  static byte[] deflate(byte[] raw) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+      byte[] buf = new byte[64 * 1024];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buf);
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+  * The stub json of esptool for a chip: stub_flasher_32s3.json of
+  * esptool 4.x or stub_flasher/1/esp32s3.json of later ones, looked up
+  * next to the esptool script. Returns null when there is none.
+  */
+  static File findStub(File esptool, String chip) {
+    if (esptool == null) return null;
+    File dir = esptool.getParentFile();
+    String suffix = chip.startsWith("esp") ? chip.substring(3) : chip;
+    for (File base : new File[]{ new File(dir, "esptool/targets/stub_flasher"), new File(dir, "targets/stub_flasher") }) {
+      File[] candidates = { new File(base, "stub_flasher_" + suffix + ".json"), new File(base, "1/" + chip + ".json"), new File(base, chip + ".json") };
+      for (File f : candidates) {
+        if (f.isFile()) return f;
+      }
+    }
+    return null;
+  }
+
+  private static String jsonString(String json, String key) {
+    Matcher m = Pattern.compile("\"" + key + "\"\\s*:\\s*\"([^\"]*)\"").matcher(json);
+    return m.find() ? m.group(1) : null;
+  }
+
+  private static int jsonNumber(String json, String key) throws IOException {
+    Matcher m = Pattern.compile("\"" + key + "\"\\s*:\\s*(\\d+)").matcher(json);
+    if (!m.find()) throw new IOException("stub file without " + key);
+    return (int) Long.parseLong(m.group(1));
+  }
+
+  private static int timeoutPerMb(int perMb, long size) {
+    return (int) Math.max(DEFAULT_TIMEOUT_MS, perMb * size / (1024 * 1024));
+  }
+
+  private static void sleep(long ms) {
+    try {
+      Thread.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
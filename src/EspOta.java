@@ -0,0 +1,272 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Network upload with the protocol of espota and the ArduinoOTA library
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.net.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+* The host invites the board over UDP ("command hostPort size md5"), the
+* board answers OK or asks for the password digest (AUTH nonce), then
+* connects back to the host over TCP and takes the image. ArduinoOTA
+* acknowledges every read with the number of bytes it wrote, and sends OK
+* once the update has been checked and finished.
+*
+* espota sends 1 KB and waits for the acknowledgement before the next
+* one. Here the image is mapped and streamed in chunk sized writes while
+* a reader thread drains the acknowledgements, so the transfer is only
+* bounded by the TCP window. A stall is noticed by the reader: no answer
+* within the timeout closes the socket and fails the upload, so does
+* close() from another thread.
+*/
+class EspOta implements Closeable {
+  static final int FLASH = 0;
+  static final int SPIFFS = 100;
+  static final int AUTH = 200;
+
+  static final int DEFAULT_PORT = 3232;
+  static final int INVITE_ATTEMPTS = 10;
+  static final int RESULT_TIMEOUT_MS = 60000;
+
+  private final int port;
+  private final int timeoutMs;
+  private final int chunkSize;
+  private final int socketBuffer;
+  private final int hostPort;
+  private final String password;
+
+  private volatile Closeable server;
+  private volatile Closeable socket;
+  private volatile boolean closed = false;
+
+  /**
+  * hostPort 0 lets the system pick the port the board connects back to;
+  * password may be null when the board has none.
+  */
+  EspOta(int port, int timeoutMs, int chunkSize, int socketBuffer, int hostPort, String password) {
+    this.port = port;
+    this.timeoutMs = timeoutMs;
+    this.chunkSize = chunkSize;
+    this.socketBuffer = socketBuffer;
+    this.hostPort = hostPort;
+    this.password = password;
+  }
+
+  /**
+  * Sends image to host, command is FLASH or SPIFFS (also used for FAT
+  * and LittleFS partitions). Returns once the board reported success.
+  */
+  void upload(String host, File image, int command, EspLoader.Progress progress) throws IOException {
+    InetAddress address = InetAddress.getByName(host);
+    String md5 = FsEngine.md5Hex(image);
+    try (ServerSocket server = new ServerSocket()) {
+      this.server = server;
+      if (closed) throw new IOException("upload cancelled");
+      server.setReceiveBufferSize(socketBuffer);
+      server.bind(new InetSocketAddress(hostPort));
+      invite(address, command, server.getLocalPort(), image, md5);
+
+      server.setSoTimeout(timeoutMs);
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (SocketTimeoutException e) {
+        throw new IOException("no connection from " + host + " within " + timeoutMs + " ms");
+      }
+      this.socket = socket;
+      try {
+        if (closed) throw new IOException("upload cancelled");
+        send(socket, image, progress);
+      } finally {
+        socket.close();
+      }
+    }
+  }
+
+  /**
+  * Aborts a running upload.
+  */
+  public void close() throws IOException {
+    closed = true;
+    Closeable s = socket;
+    if (s != null) s.close();
+    s = server;
+    if (s != null) s.close();
+  }
+
+  private void invite(InetAddress address, int command, int localPort, File image, String md5) throws IOException {
+    try (DatagramSocket udp = new DatagramSocket()) {
+      udp.setSoTimeout(Math.max(1, timeoutMs / INVITE_ATTEMPTS));
+      String reply = exchange(udp, address, command + " " + localPort + " " + image.length() + " " + md5 + "\n");
+      if (reply.startsWith("AUTH")) {
+        if (password == null || password.isEmpty()) {
+          throw new IOException("the board asks for a password, set esp32fs.ota.password");
+        }
+        String nonce = reply.substring(4).trim();
+        String cnonce = md5Hex(image.getAbsolutePath() + image.length() + md5 + address.getHostAddress());
+        String response = md5Hex(md5Hex(password) + ":" + nonce + ":" + cnonce);
+        reply = exchange(udp, address, AUTH + " " + cnonce + " " + response + "\n");
+        if (!reply.startsWith("OK")) {
+          throw new IOException("authentication failed");
+        }
+      } else if (!reply.startsWith("OK")) {
+        throw new IOException("invitation refused: " + reply);
+      }
+    }
+  }
+
+  private String exchange(DatagramSocket udp, InetAddress address, String message) throws IOException {
+    byte[] data = message.getBytes("US-ASCII");
+    byte[] buf = new byte[64];
+    for (int attempt = 0; attempt < INVITE_ATTEMPTS; attempt++) {
+      udp.send(new DatagramPacket(data, data.length, address, port));
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      try {
+        udp.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), "US-ASCII").trim();
+      } catch (SocketTimeoutException e) {
+        // ask again
+      }
+    }
+    throw new IOException("no answer from " + address.getHostAddress() + ":" + port);
+  }
+
+  private void send(final Socket socket, File image, EspLoader.Progress progress) throws IOException {
+    socket.setSendBufferSize(socketBuffer);
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout(timeoutMs);
+    final long total = image.length();
+    final Acknowledgements acks = new Acknowledgements(socket);
+    Thread reader = new Thread(acks, "espota acknowledgements");
+    reader.setDaemon(true);
+    reader.start();
+
+    try (FileChannel channel = new FileInputStream(image).getChannel()) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, total);
+      OutputStream out = socket.getOutputStream();
+      byte[] chunk = new byte[chunkSize];
+      long sent = 0;
+      while (sent < total) {
+        int n = (int) Math.min(chunkSize, total - sent);
+        mapped.get(chunk, 0, n);
+        out.write(chunk, 0, n);
+        sent += n;
+        if (progress != null) progress.written(sent, total);
+      }
+      out.flush();
+    } catch (IOException e) {
+      // a closed socket is the reader giving up, its reason is better
+      IOException failure = acks.getFailure();
+      throw failure != null ? failure : e;
+    }
+    acks.sent();
+
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("upload interrupted");
+    }
+    if (acks.getFailure() != null) throw acks.getFailure();
+  }
+
+  /**
+  * Drains the acknowledgements until the final OK. The counts themselves
+  * are not parsed: they come without separators and TCP merges them.
+  */
+  private class Acknowledgements implements Runnable {
+    private final Socket socket;
+    private volatile boolean sent = false;
+    private volatile IOException failure;
+
+    Acknowledgements(Socket socket) {
+      this.socket = socket;
+    }
+
+    void sent() {
+      sent = true;
+    }
+
+    IOException getFailure() {
+      return failure;
+    }
+
+    public void run() {
+      StringBuilder tail = new StringBuilder();
+      // the message after an E, it may come in several reads
+      StringBuilder error = null;
+      byte[] buf = new byte[256];
+      long waited = 0;
+      try {
+        InputStream in = socket.getInputStream();
+        while (true) {
+          int n;
+          try {
+            n = in.read(buf);
+          } catch (SocketTimeoutException e) {
+            if (error != null) break;
+            // verifying and finishing the update takes a while
+            waited += timeoutMs;
+            if (sent && waited < RESULT_TIMEOUT_MS) continue;
+            throw new IOException("no answer from the board within " + waited + " ms");
+          }
+          if (n < 0 && error != null) break;
+          if (n < 0) throw new IOException("connection closed before the board reported success");
+          waited = 0;
+          String text = new String(buf, 0, n, "US-ASCII");
+          if (error != null) {
+            error.append(text);
+            if (text.indexOf('\n') >= 0 || error.length() >= buf.length) break;
+            continue;
+          }
+          tail.append(text);
+          if (tail.indexOf("OK") >= 0) return;
+          if (tail.indexOf("E") >= 0) {
+            error = new StringBuilder(tail.substring(tail.indexOf("E")));
+            continue;
+          }
+          // keep enough to find an OK split over two reads
+          if (tail.length() > 1) tail.delete(0, tail.length() - 1);
+        }
+        throw new IOException("the board reported an error: " + error.toString().trim());
+      } catch (IOException e) {
+        failure = e;
+        try {
+          socket.close();
+        } catch (IOException ignored) {
+          // unblocks the writer
+        }
+      }
+    }
+  }
+
+  static String md5Hex(String text) {
+    try {
+      return DataManifest.toHex(MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8")));
+    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
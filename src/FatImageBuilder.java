@@ -0,0 +1,567 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  FAT image writer with ESP-IDF wear levelling, replaces the external
+  mkfatfs tool
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Writes a whole FAT partition the way FFat sees it through the ESP-IDF
+* wear levelling layer (WL version 2, 4096 byte sectors):
+*
+*   [dummy sector][FAT12/16 volume][state 1][state 2][config]
+*
+* With a fresh WL state (pos 0, move_count 0) logical sector n of the
+* volume lives at physical sector n + 1, which is where the 4 KB offset
+* of the old mkfatfs upload came from. The image is flashed at the start
+* of the partition.
+*
+* The volume has one FAT, 512 root entries and one sector per cluster.
+* Directories, long file names and cluster chains are built in one pass
+* over the data folder; file contents go to contiguous cluster runs with
+* FileChannel transfers.
+*/
+class FatImageBuilder implements FsImageBuilder {
+  static final int SECTOR = 4096;
+  static final int WL_UPDATERATE = 16;
+  static final int WL_WR_SIZE = 16;
+  static final int WL_VERSION = 2;
+  static final int WL_TEMP_BUFF_SIZE = 32;
+  static final int WL_STATE_SIZE = 64;
+  static final int WL_CONFIG_SIZE = 36;
+
+  static final int ROOT_ENTRIES = 512;
+  static final int MAX_FAT12 = 0xff5;
+  static final int MAX_FAT16 = 0xfff5;
+
+  static final int ATTR_DIR = 0x10;
+  static final int ATTR_ARCHIVE = 0x20;
+  static final int ATTR_LFN = 0x0f;
+  static final int NS_LOWER_BODY = 0x08;
+  static final int NS_LOWER_EXT = 0x10;
+
+  private static final String SFN_CHARS = "!#$%&'()-@^_`{}~";
+
+  private final long partitionSize;
+  private final long stateSize;
+  private final long volumeSize;
+  private final int totalSectors;
+  private final int rootSectors;
+  private int fatSectors;
+  private int clusters;
+  private boolean fat12;
+
+  private int[] fat;
+  private int nextCluster;
+  private FileChannel out;
+  private final CRC32 serial = new CRC32();
+
+  FatImageBuilder(long size) {
+    this.partitionSize = size / SECTOR * SECTOR;
+    long state = WL_STATE_SIZE + (partitionSize / SECTOR) * WL_WR_SIZE;
+    this.stateSize = Math.max(SECTOR, (state + SECTOR - 1) / SECTOR * SECTOR);
+    // one sector of the remainder is the WL dummy sector
+    this.volumeSize = ((partitionSize - 2 * stateSize - SECTOR) / SECTOR - 1) * SECTOR;
+    this.totalSectors = (int) (volumeSize / SECTOR);
+    this.rootSectors = ROOT_ENTRIES * 32 / SECTOR;
+    // the FAT has to cover the clusters left over after itself
+    fatSectors = 1;
+    while (true) {
+      clusters = totalSectors - 1 - fatSectors - rootSectors;
+      fat12 = clusters <= MAX_FAT12;
+      long bytes = fat12 ? ((long) (clusters + 2) * 3 + 1) / 2 : (long) (clusters + 2) * 2;
+      int needed = (int) ((bytes + SECTOR - 1) / SECTOR);
+      if (needed <= fatSectors) break;
+      fatSectors = needed;
+    }
+    if (clusters < 1 || clusters > MAX_FAT16) {
+      throw new IllegalArgumentException("Invalid FAT partition size: " + size);
+    }
+  }
+
+  public String getId() {
+    return "java-fatfs-wl2-1";
+  }
+
+  long getVolumeSize() {
+    return volumeSize;
+  }
+
+  int getClusterCount() {
+    return clusters;
+  }
+
+  /**
+  * Offset of the FAT volume inside the partition.
+  */
+  static long volumeOffset() {
+    return SECTOR;
+  }
+
+  private long volumeStart() {
+    return volumeOffset();
+  }
+
+  private long clusterOffset(int cluster) {
+    return volumeStart() + (long) (1 + fatSectors + rootSectors + cluster - 2) * SECTOR;
+  }
+
+  public void build(File dataFolder, File imageFile) throws IOException {
+    fat = new int[clusters + 2];
+    fat[0] = fat12 ? 0xff8 : 0xfff8;
+    fat[1] = fat12 ? 0xfff : 0xffff;
+    nextCluster = 2;
+    serial.reset();
+    out = FileChannel.open(imageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      writeDir(dataFolder, true, 0);
+      fill(0, volumeStart(), (byte) 0xff);
+      writeBootSector();
+      writeFat();
+      // free clusters, tail of the volume and the WL area stay erased
+      fill(clusterOffset(nextCluster), partitionSize - 2 * stateSize - SECTOR, (byte) 0xff);
+      writeWearLevelling();
+    } finally {
+      out.close();
+      out = null;
+      fat = null;
+    }
+  }
+
+  private static class Entry {
+    final File file;
+    final String name;
+    byte[] sfn;
+    int caseFlags;
+    boolean lfn;
+    int cluster;
+
+    Entry(File file) {
+      this(file, file.getName());
+    }
+
+    Entry(File file, String name) {
+      this.file = file;
+      this.name = name;
+    }
+
+    /**
+    * Directory entries the name takes once shortName() picked its 8.3
+    * name, with its long file name entries.
+    */
+    int slots() {
+      return 1 + (lfn ? (name.length() + 12) / 13 : 0);
+    }
+  }
+
+  /**
+  * Lays out one directory: allocates its clusters, then its children,
+  * then writes its entries. Returns the first cluster, 0 for the root.
+  */
+  private int writeDir(File dir, boolean root, int parent) throws IOException {
+    File[] files = dir.listFiles();
+    List<Entry> entries = new ArrayList<Entry>();
+    if (files != null) {
+      Arrays.sort(files, new Comparator<File>() {
+        public int compare(File a, File b) {
+          return a.getName().compareTo(b.getName());
+        }
+      });
+      Set<String> used = new HashSet<String>();
+      for (File f : files) {
+        if (f.getName().startsWith(".")) continue;
+        if (!f.isDirectory() && !f.isFile()) continue;
+        Entry e = new Entry(f);
+        shortName(e, used);
+        entries.add(e);
+      }
+    }
+
+    int slots = root ? 0 : 2;
+    for (Entry e : entries) slots += e.slots();
+    int cluster = 0;
+    long dirBytes;
+    if (root) {
+      if (slots > ROOT_ENTRIES) {
+        throw new IOException("FAT root directory full: " + slots + " entries, max " + ROOT_ENTRIES);
+      }
+      dirBytes = (long) rootSectors * SECTOR;
+    } else {
+      int count = (slots * 32 + SECTOR - 1) / SECTOR;
+      cluster = allocate(count);
+      dirBytes = (long) count * SECTOR;
+    }
+
+    for (Entry e : entries) {
+      if (e.file.isDirectory()) {
+        e.cluster = writeDir(e.file, false, cluster);
+      } else {
+        e.cluster = writeFile(e.file);
+      }
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate((int) dirBytes);
+    if (!root) {
+      dirEntry(buf, dotName("."), 0, ATTR_DIR, cluster, 0, dir.lastModified());
+      dirEntry(buf, dotName(".."), 0, ATTR_DIR, parent, 0, dir.lastModified());
+    }
+    for (Entry e : entries) {
+      if (e.lfn) lfnEntries(buf, e);
+      boolean isDir = e.file.isDirectory();
+      dirEntry(buf, e.sfn, e.caseFlags, isDir ? ATTR_DIR : ATTR_ARCHIVE, e.cluster, isDir ? 0 : e.file.length(), e.file.lastModified());
+    }
+    buf.clear();
+    write(buf, root ? volumeStart() + (long) (1 + fatSectors) * SECTOR : clusterOffset(cluster));
+    return cluster;
+  }
+
+  private int writeFile(File file) throws IOException {
+    long size = file.length();
+    if (size == 0) return 0;
+    int count = (int) ((size + SECTOR - 1) / SECTOR);
+    int first = allocate(count);
+    FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long pos = 0;
+      long base = clusterOffset(first);
+      while (pos < size) {
+        out.position(base + pos);
+        long n = in.transferTo(pos, size - pos, out);
+        if (n <= 0) throw new EOFException("File changed while building image: " + file);
+        pos += n;
+      }
+    } finally {
+      in.close();
+    }
+    return first;
+  }
+
+  private int allocate(int count) throws IOException {
+    if (nextCluster + count > clusters + 2) {
+      throw new IOException("FAT image full: " + (clusters * (long) SECTOR / 1024) + " KB available");
+    }
+    int first = nextCluster;
+    for (int c = first; c < first + count - 1; c++) fat[c] = c + 1;
+    fat[first + count - 1] = fat12 ? 0xfff : 0xffff;
+    nextCluster += count;
+    return first;
+  }
+
+  private static byte[] dotName(String name) {
+    byte[] n = new byte[11];
+    Arrays.fill(n, (byte) ' ');
+    for (int i = 0; i < name.length(); i++) n[i] = (byte) name.charAt(i);
+    return n;
+  }
+
+  private static boolean isSfnChar(char c) {
+    return (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || SFN_CHARS.indexOf(c) >= 0;
+  }
+
+  /**
+  * Case flags of a name that is a valid 8.3 name apart from lower case,
+  * or -1 when it needs a long file name.
+  */
+  static int caseFlags(String name) {
+    int dot = name.lastIndexOf('.');
+    String body = dot > 0 ? name.substring(0, dot) : name;
+    String ext = dot > 0 ? name.substring(dot + 1) : "";
+    if (body.length() < 1 || body.length() > 8 || ext.length() > 3 || dot == 0) return -1;
+    int flags = 0;
+    String[] parts = { body, ext };
+    for (int p = 0; p < 2; p++) {
+      boolean lower = false, upper = false;
+      for (char c : parts[p].toCharArray()) {
+        if (c >= 'a' && c <= 'z') lower = true;
+        else if (c >= 'A' && c <= 'Z') upper = true;
+        else if (!isSfnChar(c)) return -1;
+      }
+      if (lower && upper) return -1;
+      if (lower) flags |= p == 0 ? NS_LOWER_BODY : NS_LOWER_EXT;
+    }
+    return flags;
+  }
+
+  /**
+  * Directory entries the names of one directory take, short names picked
+  * in the order writeDir() does, so a name that collides with another in
+  * case needs its long file name entries here too.
+  */
+  static int slotsFor(Collection<String> names) throws IOException {
+    List<String> sorted = new ArrayList<String>(names);
+    Collections.sort(sorted);
+    Set<String> used = new HashSet<String>();
+    int slots = 0;
+    for (String name : sorted) {
+      Entry e = new Entry(null, name);
+      shortName(e, used);
+      slots += e.slots();
+    }
+    return slots;
+  }
+
+  /**
+  * Picks the 8.3 name. Names that are valid 8.3 in one case per part
+  * use the NT case flags, everything else gets a long name and a
+  * numbered short alias.
+  */
+  private static void shortName(Entry e, Set<String> used) throws IOException {
+    String name = e.name;
+    int dot = name.lastIndexOf('.');
+    String body = dot > 0 ? name.substring(0, dot) : name;
+    String ext = dot > 0 ? name.substring(dot + 1) : "";
+
+    int flags = caseFlags(name);
+    boolean fits = flags >= 0;
+    if (fits && used.add((body + "." + ext).toUpperCase(Locale.ROOT))) {
+      e.sfn = sfnBytes(body.toUpperCase(Locale.ROOT), ext.toUpperCase(Locale.ROOT));
+      e.caseFlags = flags;
+      e.lfn = false;
+      return;
+    }
+
+    if (name.length() > 255) {
+      throw new IOException("FAT file name too long (max 255): " + name);
+    }
+    String b = basis(body);
+    String x = basis(ext);
+    if (x.length() > 3) x = x.substring(0, 3);
+    if (b.isEmpty()) b = "_";
+    for (int n = 1; n < 1000000; n++) {
+      String tail = "~" + n;
+      String candidate = (b.length() + tail.length() > 8 ? b.substring(0, 8 - tail.length()) : b) + tail;
+      if (used.add(candidate + "." + x)) {
+        e.sfn = sfnBytes(candidate, x);
+        e.caseFlags = 0;
+        e.lfn = true;
+        return;
+      }
+    }
+    throw new IOException("Too many similar FAT file names: " + name);
+  }
+
+  private static String basis(String s) {
+    StringBuilder sb = new StringBuilder();
+    for (char c : s.toUpperCase(Locale.ROOT).toCharArray()) {
+      if (c == ' ' || c == '.') continue;
+      sb.append(isSfnChar(c) ? c : '_');
+      if (sb.length() == 8) break;
+    }
+    return sb.toString();
+  }
+
+  private static byte[] sfnBytes(String body, String ext) {
+    byte[] n = new byte[11];
+    Arrays.fill(n, (byte) ' ');
+    for (int i = 0; i < body.length(); i++) n[i] = (byte) body.charAt(i);
+    for (int i = 0; i < ext.length(); i++) n[8 + i] = (byte) ext.charAt(i);
+    // 0xE5 marks deleted entries, it is stored as 0x05
+    if ((n[0] & 0xff) == 0xe5) n[0] = 0x05;
+    return n;
+  }
+
+  static int checksum(byte[] sfn) {
+    int sum = 0;
+    for (int i = 0; i < 11; i++) {
+      sum = (((sum & 1) << 7) + (sum >> 1) + (sfn[i] & 0xff)) & 0xff;
+    }
+    return sum;
+  }
+
+  private static final int[] LFN_OFFSETS = { 1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30 };
+
+  private void lfnEntries(ByteBuffer buf, Entry e) {
+    String name = e.name;
+    int count = (name.length() + 12) / 13;
+    int sum = checksum(e.sfn);
+    for (int ord = count; ord >= 1; ord--) {
+      byte[] ent = new byte[32];
+      ent[0] = (byte) (ord | (ord == count ? 0x40 : 0));
+      ent[11] = (byte) ATTR_LFN;
+      ent[13] = (byte) sum;
+      for (int i = 0; i < 13; i++) {
+        int pos = (ord - 1) * 13 + i;
+        int ch = pos < name.length() ? name.charAt(pos) : (pos == name.length() ? 0 : 0xffff);
+        ent[LFN_OFFSETS[i]] = (byte) ch;
+        ent[LFN_OFFSETS[i] + 1] = (byte) (ch >> 8);
+      }
+      buf.put(ent);
+    }
+  }
+
+  private void dirEntry(ByteBuffer buf, byte[] sfn, int caseFlags, int attr, int cluster, long size, long mtime) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(mtime);
+    int year = Math.max(1980, cal.get(Calendar.YEAR));
+    int time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) / 2);
+    int date = ((year - 1980) << 9) | ((cal.get(Calendar.MONTH) + 1) << 5) | cal.get(Calendar.DAY_OF_MONTH);
+
+    byte[] ent = new byte[32];
+    System.arraycopy(sfn, 0, ent, 0, 11);
+    ent[11] = (byte) attr;
+    ent[12] = (byte) caseFlags;
+    putShort(ent, 14, time);
+    putShort(ent, 16, date);
+    putShort(ent, 18, date);
+    putShort(ent, 22, time);
+    putShort(ent, 24, date);
+    putShort(ent, 26, cluster);
+    putInt(ent, 28, (int) size);
+    buf.put(ent);
+    serial.update(ent);
+  }
+
+  private void writeBootSector() throws IOException {
+    byte[] bs = new byte[SECTOR];
+    bs[0] = (byte) 0xeb; bs[1] = (byte) 0xfe; bs[2] = (byte) 0x90;
+    System.arraycopy(ascii("MSDOS5.0"), 0, bs, 3, 8);
+    putShort(bs, 11, SECTOR);
+    bs[13] = 1;                                   // sectors per cluster
+    putShort(bs, 14, 1);                          // reserved sectors
+    bs[16] = 1;                                   // number of FATs
+    putShort(bs, 17, ROOT_ENTRIES);
+    if (totalSectors < 0x10000) putShort(bs, 19, totalSectors);
+    else putInt(bs, 32, totalSectors);
+    bs[21] = (byte) 0xf8;
+    putShort(bs, 22, fatSectors);
+    putShort(bs, 24, 63);
+    putShort(bs, 26, 255);
+    bs[36] = (byte) 0x80;
+    bs[38] = 0x29;
+    putInt(bs, 39, (int) serial.getValue());
+    System.arraycopy(ascii("NO NAME    "), 0, bs, 43, 11);
+    System.arraycopy(ascii(fat12 ? "FAT12   " : "FAT16   "), 0, bs, 54, 8);
+    bs[510] = 0x55;
+    bs[511] = (byte) 0xaa;
+    write(ByteBuffer.wrap(bs), volumeStart());
+  }
+
+  private void writeFat() throws IOException {
+    byte[] table = new byte[fatSectors * SECTOR];
+    for (int c = 0; c < fat.length; c++) {
+      int v = fat[c];
+      if (fat12) {
+        int off = c + c / 2;
+        if ((c & 1) == 0) {
+          table[off] = (byte) v;
+          table[off + 1] = (byte) ((table[off + 1] & 0xf0) | ((v >> 8) & 0x0f));
+        } else {
+          table[off] = (byte) ((table[off] & 0x0f) | ((v << 4) & 0xf0));
+          table[off + 1] = (byte) (v >> 4);
+        }
+      } else {
+        putShort(table, c * 2, v);
+      }
+    }
+    write(ByteBuffer.wrap(table), volumeStart() + SECTOR);
+  }
+
+  /**
+  * Writes both WL state copies and the WL config as wl_mount() would
+  * after formatting: position 0, no moves, all position records erased.
+  */
+  private void writeWearLevelling() throws IOException {
+    long state1 = partitionSize - 2 * stateSize - SECTOR;
+    long state2 = partitionSize - stateSize - SECTOR;
+    long config = partitionSize - SECTOR;
+
+    byte[] state = new byte[(int) stateSize];
+    Arrays.fill(state, (byte) 0xff);
+    putInt(state, 0, 0);                                      // pos
+    putInt(state, 4, (int) (1 + volumeSize / SECTOR));        // max_pos
+    putInt(state, 8, 0);                                      // move_count
+    putInt(state, 12, 0);                                     // access_count
+    putInt(state, 16, WL_UPDATERATE);                         // max_count
+    putInt(state, 20, SECTOR);                                // block_size
+    putInt(state, 24, WL_VERSION);                            // version
+    putInt(state, 28, (int) serial.getValue());               // device_id
+    Arrays.fill(state, 32, 60, (byte) 0);                     // reserved
+    putInt(state, 60, wlCrc(state, 60));
+    write(ByteBuffer.wrap(state), state1);
+    write(ByteBuffer.wrap(state), state2);
+
+    byte[] cfg = new byte[SECTOR];
+    Arrays.fill(cfg, (byte) 0xff);
+    putInt(cfg, 0, 0);                                        // start_addr
+    putInt(cfg, 4, (int) partitionSize);                      // full_mem_size
+    putInt(cfg, 8, SECTOR);                                   // page_size
+    putInt(cfg, 12, SECTOR);                                  // sector_size
+    putInt(cfg, 16, WL_UPDATERATE);
+    putInt(cfg, 20, WL_WR_SIZE);
+    putInt(cfg, 24, WL_VERSION);
+    putInt(cfg, 28, WL_TEMP_BUFF_SIZE);
+    putInt(cfg, 32, wlCrc(cfg, 32));
+    write(ByteBuffer.wrap(cfg), config);
+  }
+
+  /**
+  * crc32_le(UINT32_MAX, ...) of the ESP32 ROM: the register starts at 0
+  * and the result is inverted.
+  */
+  static int wlCrc(byte[] data, int len) {
+    int crc = 0;
+    for (int i = 0; i < len; i++) {
+      crc ^= data[i] & 0xff;
+      for (int k = 0; k < 8; k++) {
+        crc = (crc >>> 1) ^ (0xedb88320 & -(crc & 1));
+      }
+    }
+    return ~crc;
+  }
+
+  private void fill(long from, long to, byte value) throws IOException {
+    byte[] chunk = new byte[64 * 1024];
+    Arrays.fill(chunk, value);
+    for (long pos = from; pos < to; pos += chunk.length) {
+      ByteBuffer buf = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, to - pos));
+      write(buf, pos);
+    }
+  }
+
+  private void write(ByteBuffer buf, long pos) throws IOException {
+    while (buf.hasRemaining()) {
+      pos += out.write(buf, pos);
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    byte[] b = new byte[s.length()];
+    for (int i = 0; i < b.length; i++) b[i] = (byte) s.charAt(i);
+    return b;
+  }
+
+  private static void putShort(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >> 8);
+  }
+
+  private static void putInt(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >> 8);
+    b[off + 2] = (byte) (v >> 16);
+    b[off + 3] = (byte) (v >> 24);
+  }
+}
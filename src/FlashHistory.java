@@ -0,0 +1,222 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Remembers the last image flashed to each device, for delta uploads
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+* Keeps a copy of the last image successfully flashed per serial port,
+* chip and address, and computes the 4 KB sector runs that differ from a
+* new image.
+*/
+class FlashHistory {
+  static final int SECTOR = 4096;
+  /** Unchanged sectors between two changed runs that are still sent to save a pair */
+  static final int MAX_GAP = 2;
+  /** Upper bound of address/file pairs handed to one esptool call */
+  static final int MAX_RUNS = 16;
+
+  private final File folder;
+
+  FlashHistory(File folder) {
+    this.folder = folder;
+  }
+
+  /**
+  * Returns the image last flashed at address, or null.
+  */
+  File last(String port, String chip, long address) {
+    File image = entry(port, chip, address);
+    return image.isFile() ? image : null;
+  }
+
+  void record(String port, String chip, long address, File image) throws IOException {
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("Cannot create " + folder);
+    }
+    File target = entry(port, chip, address);
+    File tmp = new File(target.getPath() + ".tmp");
+    Files.copy(image.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  void forget(String port, String chip, long address) {
+    entry(port, chip, address).delete();
+  }
+
+  private File entry(String port, String chip, long address) {
+    String name = (port + "-" + chip + "-" + Long.toHexString(address)).replaceAll("[^A-Za-z0-9_.-]", "_");
+    return new File(folder, name + ".bin");
+  }
+
+  /**
+  * A run of sectors, offsets relative to the image start.
+  */
+  static class Run {
+    long offset;
+    long length;
+
+    Run(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  static boolean sameContent(File a, File b) throws IOException {
+    if (a.length() != b.length()) return false;
+    return changedRuns(a, b).isEmpty();
+  }
+
+  /**
+  * Sector runs of newImage that differ from oldImage, coalesced so that
+  * at most MAX_RUNS remain. Sectors past the end of oldImage count as
+  * changed.
+  */
+  static List<Run> changedRuns(File oldImage, File newImage) throws IOException {
+    List<Run> runs = new ArrayList<Run>();
+    byte[] a = new byte[SECTOR];
+    byte[] b = new byte[SECTOR];
+    InputStream oldIn = new BufferedInputStream(new FileInputStream(oldImage), 64 * 1024);
+    InputStream newIn = new BufferedInputStream(new FileInputStream(newImage), 64 * 1024);
+    try {
+      long size = newImage.length();
+      for (long off = 0; off < size; off += SECTOR) {
+        int n = readSector(newIn, b);
+        int m = readSector(oldIn, a);
+        boolean same = n == m;
+        for (int i = 0; same && i < n; i++) {
+          same = a[i] == b[i];
+        }
+        if (!same) addSector(runs, off, n);
+      }
+    } finally {
+      oldIn.close();
+      newIn.close();
+    }
+    coalesce(runs);
+    return runs;
+  }
+
+  /**
+  * Sector runs of image holding anything but erased 0xFF bytes, coalesced
+  * like changedRuns().
+  */
+  static List<Run> populatedRuns(File image) throws IOException {
+    List<Run> runs = new ArrayList<Run>();
+    byte[] b = new byte[SECTOR];
+    InputStream in = new BufferedInputStream(new FileInputStream(image), 64 * 1024);
+    try {
+      long size = image.length();
+      for (long off = 0; off < size; off += SECTOR) {
+        int n = readSector(in, b);
+        boolean erased = true;
+        for (int i = 0; erased && i < n; i++) {
+          erased = b[i] == (byte) 0xff;
+        }
+        if (!erased) addSector(runs, off, n);
+      }
+    } finally {
+      in.close();
+    }
+    coalesce(runs);
+    return runs;
+  }
+
+  private static void addSector(List<Run> runs, long off, int n) {
+    Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+    if (last != null && off - (last.offset + last.length) <= (long) MAX_GAP * SECTOR) {
+      last.length = off + n - last.offset;
+    } else {
+      runs.add(new Run(off, n));
+    }
+  }
+
+  /**
+  * Merges across the smallest gaps until at most MAX_RUNS are left.
+  */
+  private static void coalesce(List<Run> runs) {
+    while (runs.size() > MAX_RUNS) {
+      int best = 0;
+      long bestGap = Long.MAX_VALUE;
+      for (int i = 0; i + 1 < runs.size(); i++) {
+        long gap = runs.get(i + 1).offset - (runs.get(i).offset + runs.get(i).length);
+        if (gap < bestGap) {
+          bestGap = gap;
+          best = i;
+        }
+      }
+      Run r = runs.remove(best + 1);
+      runs.get(best).length = r.offset + r.length - runs.get(best).offset;
+    }
+  }
+
+  static long totalLength(List<Run> runs) {
+    long total = 0;
+    for (Run r : runs) total += r.length;
+    return total;
+  }
+
+  /**
+  * Writes each run of image to its own file in folder, named after its
+  * offset. Returns the files in run order.
+  */
+  static List<File> extract(File image, List<Run> runs, File folder, String prefix) throws IOException {
+    List<File> files = new ArrayList<File>();
+    RandomAccessFile in = new RandomAccessFile(image, "r");
+    try {
+      byte[] buf = new byte[64 * 1024];
+      for (Run r : runs) {
+        File part = new File(folder, prefix + "." + Long.toHexString(r.offset) + ".bin");
+        OutputStream out = new FileOutputStream(part);
+        try {
+          in.seek(r.offset);
+          long left = r.length;
+          while (left > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+            if (n < 0) throw new EOFException();
+            out.write(buf, 0, n);
+            left -= n;
+          }
+        } finally {
+          out.close();
+        }
+        part.deleteOnExit();
+        files.add(part);
+      }
+    } finally {
+      in.close();
+    }
+    return files;
+  }
+
+  private static int readSector(InputStream in, byte[] buf) throws IOException {
+    int n = 0;
+    while (n < buf.length) {
+      int r = in.read(buf, n, buf.length - n);
+      if (r < 0) break;
+      n += r;
+    }
+    return n;
+  }
+}
@@ -0,0 +1,285 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Command line entry point: builds and uploads data images of many sketches
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+* Headless batch mode. Every sketch argument becomes one job, optionally
+* with its own board settings after an @:
+*
+*   java -cp esp32fs.jar com.esp32.mkspiffs.FsCli --platform ~/.arduino15/packages/esp32/hardware/esp32/2.0.4 \
+*     web@fs=FatFS,scheme=ffat web@name=web-s3,chip=esp32s3 sensor
+*
+* Images are built concurrently on a pool sized to the available cores,
+* then uploaded one job after the other when targets are given.
+*/
+public class FsCli {
+  private static final String[] JOB_KEYS = { "fs", "scheme", "partitions", "chip", "name", "upload", "baud", "flash_mode", "flash_freq", "firmware" };
+
+  public static void main(String[] args) {
+    System.exit(run(args));
+  }
+
+  static void usage() {
+    System.err.println("Usage: FsCli [options] <sketch folder>[@key=value,...] ...");
+    System.err.println("  --fs <LittleFS|SPIFFS|FatFS>  filesystem, default LittleFS");
+    System.err.println("  --platform <dir>              esp32 platform folder (tools, partition schemes)");
+    System.err.println("  --scheme <name>               partition scheme when the sketch has no partitions.csv, default \"default\"");
+    System.err.println("  --chip <mcu>                  default esp32");
+    System.err.println("  --build <dir>                 images go to <dir>/<name>/, default <sketch>/build");
+    System.err.println("  --jobs <n>                    concurrent builds, default the number of cores");
+    System.err.println("  --upload <ports and IPs>      upload after building, comma separated");
+    System.err.println("  --baud <rate>                 default 921600");
+    System.err.println("  --flash-mode <mode>           default dio");
+    System.err.println("  --flash-freq <freq>           default 80m");
+    System.err.println("  --firmware <dir>              compiled sketch for esp32fs.upload.combined, default the build folder");
+    System.err.println("  --state <dir>                 image cache and flash history, default ~/.esp32fs");
+    System.err.println("  -D<key>=<value>               esp32fs.* setting, as in preferences.txt");
+    System.err.println("Job keys after @: " + String.join(", ", JOB_KEYS));
+  }
+
+  static int run(String[] args) {
+    Map<String, String> defaults = new HashMap<String, String>();
+    Map<String, String> prefs = new HashMap<String, String>();
+    List<String> sketches = new ArrayList<String>();
+    defaults.put("fs", "LittleFS");
+    defaults.put("scheme", "default");
+    defaults.put("chip", "esp32");
+    defaults.put("baud", "921600");
+    defaults.put("flash_mode", "dio");
+    defaults.put("flash_freq", "80m");
+    File platformFolder = new File(".").getAbsoluteFile();
+    String build = null;
+    String state = new File(System.getProperty("user.home"), ".esp32fs").getPath();
+    int jobs = Runtime.getRuntime().availableProcessors();
+
+    try {
+      for (int i = 0; i < args.length; i++) {
+        String arg = args[i];
+        if (arg.startsWith("-D") && arg.indexOf('=') > 2) {
+          prefs.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        } else if (arg.equals("--platform")) {
+          platformFolder = new File(args[++i]).getAbsoluteFile();
+        } else if (arg.equals("--build")) {
+          build = args[++i];
+        } else if (arg.equals("--state")) {
+          state = args[++i];
+        } else if (arg.equals("--jobs")) {
+          jobs = Math.max(1, Integer.parseInt(args[++i]));
+        } else if (arg.equals("-h") || arg.equals("--help")) {
+          usage();
+          return 0;
+        } else if (arg.startsWith("--")) {
+          String key = arg.substring(2).replace('-', '_');
+          if (!Arrays.asList(JOB_KEYS).contains(key)) throw new IllegalArgumentException("unknown option " + arg);
+          defaults.put(key, args[++i]);
+        } else {
+          sketches.add(arg);
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+      System.err.println(e instanceof ArrayIndexOutOfBoundsException ? "missing option value" : e.getMessage());
+      usage();
+      return 2;
+    }
+    if (sketches.isEmpty()) {
+      usage();
+      return 2;
+    }
+
+    final FsEngine engine = new FsEngine(new File(state), ToolRegistry.get(platformFolder, coreVersion(platformFolder), osName(), new File(state, "tools.properties")),
+      prefs, new FsEngine.Status() {
+        public void notice(String message) {
+        }
+        public void error(String message) {
+          System.err.println(message);
+        }
+      });
+
+    final List<FsEngine.Job> list = new ArrayList<FsEngine.Job>();
+    Set<String> outputs = new HashSet<String>();
+    try {
+      for (String sketch : sketches) {
+        FsEngine.Job job = newJob(sketch, defaults, platformFolder, build);
+        if (!outputs.add(job.getImageFile().getAbsolutePath())) {
+          throw new IllegalArgumentException("two jobs write " + job.getImageFile() + ", set name= for one of them");
+        }
+        list.add(job);
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      usage();
+      return 2;
+    }
+    if (list.size() > 1) {
+      for (FsEngine.Job job : list) job.tag = "[" + job.name + "] ";
+    }
+
+    // an interrupted run does not leave tools behind holding the ports
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      public void run() {
+        for (FsEngine.Job job : list) job.cancel();
+      }
+    });
+
+    // build everything first, each job on its own worker
+    long started = System.currentTimeMillis();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, list.size()));
+    List<Future<String>> results = new ArrayList<Future<String>>();
+    // when each build ended, the job waits for the others from there
+    final long[] builtAt = new long[list.size()];
+    for (int i = 0; i < list.size(); i++) {
+      final FsEngine.Job job = list.get(i);
+      final int index = i;
+      results.add(pool.submit(new Callable<String>() {
+        public String call() {
+          try {
+            job.record.start();
+            engine.resolve(job);
+            engine.build(job);
+            return null;
+          } catch (Exception e) {
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+          } finally {
+            builtAt[index] = RunHistory.now();
+          }
+        }
+      }));
+    }
+    pool.shutdown();
+
+    int failed = 0;
+    boolean[] built = new boolean[list.size()];
+    System.out.println();
+    for (int i = 0; i < list.size(); i++) {
+      FsEngine.Job job = list.get(i);
+      String error;
+      try {
+        error = results.get(i).get();
+      } catch (Exception e) {
+        error = e.toString();
+      }
+      built[i] = error == null;
+      if (error != null) failed++;
+      System.out.println("build  : " + job.name + " " + job.typefs + " " + (error == null ? job.getImageFile().getPath() : "FAILED " + error));
+    }
+    System.out.println("build  : " + (list.size() - failed) + " of " + list.size() + " images in " + (System.currentTimeMillis() - started) + " ms");
+
+    // uploads go one job at a time, a job may still use several targets
+    for (int i = 0; i < list.size(); i++) {
+      FsEngine.Job job = list.get(i);
+      job.record.waited(builtAt[i]);
+      if (!built[i] || job.targets.isEmpty()) {
+        engine.saveRecord(job, built[i] ? "built" : "failed");
+        continue;
+      }
+      int result = engine.upload(job);
+      System.out.println("upload : " + job.name + " " + FsEngine.resultName(result));
+      engine.saveRecord(job, job.isCancelled() ? "cancelled" : FsEngine.resultName(result));
+      if (result == FsEngine.UPLOAD_FAILED) failed++;
+    }
+    return failed > 0 ? 1 : 0;
+  }
+
+  /**
+  * sketch is a folder, optionally followed by @key=value,... overriding
+  * the defaults for this job.
+  */
+  static FsEngine.Job newJob(String sketch, Map<String, String> defaults, File platformFolder, String build) {
+    Map<String, String> settings = new HashMap<String, String>(defaults);
+    int at = sketch.indexOf('@');
+    if (at >= 0) {
+      // "web @fs=..." would otherwise build the working directory
+      if (sketch.substring(0, at).trim().isEmpty()) {
+        throw new IllegalArgumentException("no sketch folder before @ in \"" + sketch + "\"");
+      }
+      for (String pair : sketch.substring(at + 1).split(",")) {
+        int eq = pair.indexOf('=');
+        if (eq < 0 || !Arrays.asList(JOB_KEYS).contains(pair.substring(0, eq).trim())) {
+          throw new IllegalArgumentException("invalid job setting \"" + pair + "\" in " + sketch);
+        }
+        settings.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+      }
+      sketch = sketch.substring(0, at);
+    }
+    File sketchFolder = new File(sketch).getAbsoluteFile();
+    if (!sketchFolder.isDirectory()) {
+      throw new IllegalArgumentException("sketch folder " + sketch + " not found");
+    }
+
+    FsEngine.Job job = new FsEngine.Job();
+    job.typefs = fsName(settings.get("fs"));
+    job.name = settings.containsKey("name") ? settings.get("name") : sketchFolder.getName();
+    job.dataFolder = new File(sketchFolder, "data");
+    job.buildFolder = build != null ? new File(build, job.name) : new File(sketchFolder, "build");
+    job.buildFolder.mkdirs();
+    job.chip = settings.get("chip");
+    job.uploadSpeed = settings.get("baud");
+    job.flashMode = settings.get("flash_mode");
+    job.flashFreq = settings.get("flash_freq");
+    job.targets = FsEngine.parseTargets(settings.get("upload"));
+    if (settings.containsKey("firmware")) job.firmwareFolder = new File(settings.get("firmware")).getAbsoluteFile();
+    job.bootApp0 = new File(platformFolder, "tools/partitions/boot_app0.bin");
+    try {
+      if (settings.containsKey("partitions")) {
+        job.partitionsFile = new File(settings.get("partitions"));
+      } else {
+        job.partitionsFile = FsEngine.findPartitions(sketchFolder, platformFolder, settings.get("scheme"), job.buildFolder, sketchFolder.getName());
+      }
+    } catch (IOException e) {
+      throw new IllegalArgumentException(sketch + ": " + e.getMessage());
+    }
+    return job;
+  }
+
+  static String fsName(String fs) {
+    for (String name : new String[]{ "LittleFS", "SPIFFS", "FatFS" }) {
+      if (name.equalsIgnoreCase(fs)) return name;
+    }
+    if ("fat".equalsIgnoreCase(fs) || "ffat".equalsIgnoreCase(fs)) return "FatFS";
+    throw new IllegalArgumentException("unknown filesystem " + fs);
+  }
+
+  static String coreVersion(File platformFolder) {
+    File platformTxt = new File(platformFolder, "platform.txt");
+    if (platformTxt.isFile()) {
+      try (BufferedReader reader = new BufferedReader(new FileReader(platformTxt))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("version=")) return line.substring("version=".length()).trim();
+        }
+      } catch (IOException e) {
+        // the folder still scopes the tool registry
+      }
+    }
+    return "";
+  }
+
+  static String osName() {
+    String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+    if (os.startsWith("windows")) return "windows";
+    if (os.startsWith("mac")) return "macosx";
+    return "linux";
+  }
+}
@@ -0,0 +1,1451 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Builds and uploads filesystem images without the Arduino IDE
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+* Partition resolution, image build and upload, free of Editor, dialogs and
+* global IDE state. The ESP32FS menu tool and the FsCli command line both
+* drive it: board and sketch settings come in through a Job, esp32fs.* and
+* runtime.tools.* settings through a plain map, and status bar messages go
+* out through Status. Several jobs may run on one engine at the same time.
+*/
+class FsEngine {
+  static final int UPLOAD_FAILED = 0;
+  static final int UPLOAD_DONE = 1;
+  static final int UPLOAD_SKIPPED = 2;
+  private static final int UPLOAD_NATIVE_UNAVAILABLE = -1;
+
+  static final int PREFLIGHT_LISTED = 5;
+  // a resumed write starts this far before the last address esptool reported
+  static final long RESUME_MARGIN = 64 * 1024;
+  // sparse uploads pay for an extra erase call, they need at least 1/4 of the image erased
+  static final int SPARSE_MIN_ERASED = 4;
+
+  // external tool runs, each limited by esp32fs.timeout.<phase> in seconds
+  static final String PHASE_BUILD = "build";
+  static final String PHASE_VERIFY = "verify";
+  static final String PHASE_ERASE = "erase";
+  static final String PHASE_WRITE = "write";
+  static final String PHASE_OTA = "ota";
+  private static final Map<String, Integer> PHASE_TIMEOUTS = new HashMap<String, Integer>();
+  static {
+    PHASE_TIMEOUTS.put(PHASE_BUILD, 600);
+    PHASE_TIMEOUTS.put(PHASE_VERIFY, 120);
+    PHASE_TIMEOUTS.put(PHASE_ERASE, 600);
+    PHASE_TIMEOUTS.put(PHASE_WRITE, 900);
+    PHASE_TIMEOUTS.put(PHASE_OTA, 600);
+  }
+
+  /**
+  * Receives the status bar messages, from any thread.
+  */
+  interface Status {
+    void notice(String message);
+    void error(String message);
+  }
+
+  /**
+  * One filesystem image of one sketch for one board.
+  */
+  static class Job {
+    String typefs = "LittleFS";
+    String name;
+    File dataFolder;
+    File buildFolder;
+    File partitionsFile;
+    String chip = "esp32";
+    String uploadSpeed = "921600";
+    String flashMode = "dio";
+    String flashFreq = "80m";
+    List<String> targets = new ArrayList<String>();
+    /** Prefixes console lines, to tell apart concurrent jobs */
+    String tag = "";
+    // compiled sketch for esp32fs.upload.combined, null for the build folder
+    File firmwareFolder;
+    File bootApp0;
+    /** -1 for the address of the chip, see bootloaderAddress */
+    long bootloaderAddress = -1;
+
+    // filled in by resolvePartition, resolveFirmware, resolveBuilder and resolveUploadTools
+    String partitionName;
+    long spiStart = 0, spiSize = 0, spiPage = 256, spiBlock = 4096, spiOffset = 0;
+    FsImageBuilder builder;
+    File tool;
+    File espota;
+    File esptool;
+    /** Flash address to file, the image included, for a combined upload */
+    TreeMap<Long, File> firmware;
+    /** Connected while the image was built, taken over by the upload */
+    EspLoader loader;
+    /** Phase times and figures of this run, see saveRecord */
+    final RunHistory.Record record = new RunHistory.Record();
+
+    private volatile boolean cancelled = false;
+    // child processes and connections cancel() has to stop
+    private final Set<Object> running = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    File getImageFile() {
+      return new File(buildFolder, name + "." + typefs.toLowerCase(Locale.ROOT) + ".bin");
+    }
+
+    /**
+    * Kills the tool processes of the job and closes its connections. The
+    * steps still to come fail at once, without falling back to another
+    * tool; an in-process image build finishes first.
+    */
+    void cancel() {
+      cancelled = true;
+      for (Object resource : running) stop(resource);
+    }
+
+    boolean isCancelled() {
+      return cancelled;
+    }
+
+    void attach(Object resource) {
+      running.add(resource);
+      if (cancelled) stop(resource);
+    }
+
+    void detach(Object resource) {
+      running.remove(resource);
+    }
+
+    private static void stop(Object resource) {
+      if (resource instanceof Process) {
+        killTree((Process) resource);
+      } else if (resource instanceof Closeable) {
+        try {
+          ((Closeable) resource).close();
+        } catch (IOException e) {
+          // closed already
+        }
+      }
+    }
+  }
+
+  private final File stateFolder;
+  private final ToolRegistry tools;
+  private final Map<String, String> prefs;
+  private final Status status;
+  private final BaudCalibration baudRates;
+
+  /**
+  * stateFolder keeps the image cache, the flash history and the
+  * calibrated baud rates.
+  */
+  FsEngine(File stateFolder, ToolRegistry tools, Map<String, String> prefs, Status status) {
+    this.stateFolder = stateFolder;
+    this.tools = tools;
+    this.prefs = prefs;
+    this.status = status;
+    this.baudRates = new BaudCalibration(new File(stateFolder, "baud.properties"));
+  }
+
+  /**
+  * partitions.csv of the sketch, else the csv of the partition scheme,
+  * else the table compiled into the build folder.
+  */
+  static File findPartitions(File sketchFolder, File platformFolder, String scheme, File buildFolder, String sketchName) throws IOException {
+    File partitionsFile = new File(sketchFolder, "partitions.csv");
+    if (partitionsFile.isFile()) {
+      System.out.println("Using partitions.csv from sketch folder.");
+      return partitionsFile;
+    }
+    if (scheme == null || scheme.isEmpty()) {
+      throw new IOException("Error: no partition scheme selected!");
+    }
+    System.out.println("Using partition scheme " + scheme + ".");
+    partitionsFile = new File(platformFolder, "tools/partitions/" + scheme + ".csv");
+    if (partitionsFile.isFile()) return partitionsFile;
+    //fall back to the table compiled with the sketch
+    for (String name : new String[]{ sketchName + ".ino.partitions.bin", "partitions.bin" }) {
+      File compiled = new File(buildFolder, name);
+      if (compiled.isFile()) {
+        System.out.println("Using compiled partition table " + compiled.getName() + " from build folder.");
+        return compiled;
+      }
+    }
+    throw new IOException("Error: partitions file " + scheme + ".csv not found!");
+  }
+
+  /**
+  * Finds the data partition of job.partitionsFile for the FS type.
+  */
+  void resolvePartition(Job job) throws IOException {
+    // mkfatfs images leave out the wear levelling dummy sector, the built-in
+    // writer produces the whole partition including the WL sectors
+    job.spiOffset = "FatFS".equals(job.typefs) && getBool("esp32fs.builder.external", false) ? 4096 : 0;
+    PartitionTable.Entry dataPartition = PartitionTable.load(job.partitionsFile).findData(job.typefs);
+    if (dataPartition == null || dataPartition.size <= job.spiOffset) {
+      throw new IOException("Error: partition size could not be found!");
+    }
+    job.partitionName = dataPartition.name;
+    job.spiStart = dataPartition.offset + job.spiOffset;
+    job.spiSize = dataPartition.size - job.spiOffset;
+    System.out.println(job.tag + "Partition: " + dataPartition.name);
+    System.out.println(job.tag + "Start: 0x" + String.format("%x", job.spiStart));
+    System.out.println(job.tag + "Size : 0x" + String.format("%x", job.spiSize));
+  }
+
+  /**
+  * With esp32fs.upload.combined, collects the compiled sketch of the
+  * firmware folder so serial targets get it in the same write_flash as
+  * the image: the bootloader, the partition table, boot_app0 at the
+  * otadata partition and the app at the factory or first OTA partition.
+  * Addresses come from job.partitionsFile; a compiled table that puts
+  * the data partition elsewhere is refused, parts that are not found
+  * stay as they are on the board, except for the app.
+  */
+  void resolveFirmware(Job job) throws IOException {
+    job.firmware = null;
+    if (!getBool("esp32fs.upload.combined", false)) return;
+    boolean serial = false;
+    for (String target : job.targets) {
+      if (isNetworkTarget(target)) log(job, "combined: " + target + " is an IP address, it only gets the image");
+      else serial = true;
+    }
+    if (!serial) return;
+    File folder = job.firmwareFolder != null ? job.firmwareFolder : job.buildFolder;
+    PartitionTable table = PartitionTable.load(job.partitionsFile);
+    TreeMap<Long, File> parts = new TreeMap<Long, File>();
+
+    File app = findCompiled(folder, job.name, ".bin");
+    PartitionTable.Entry appPartition = table.find(PartitionTable.TYPE_APP, PartitionTable.SUBTYPE_FACTORY);
+    if (appPartition == null) appPartition = table.find(PartitionTable.TYPE_APP, PartitionTable.SUBTYPE_OTA_0);
+    if (app == null) {
+      throw new IOException("Error: " + job.name + ".ino.bin not found in " + folder + ", compile the sketch first!");
+    }
+    if (appPartition == null || app.length() > appPartition.size) {
+      throw new IOException("Error: no app partition for " + app.getName() + " in " + job.partitionsFile.getName() + "!");
+    }
+    parts.put(appPartition.offset, app);
+
+    File bootloader = findCompiled(folder, job.name, ".bootloader.bin");
+    if (bootloader != null) {
+      parts.put(job.bootloaderAddress >= 0 ? job.bootloaderAddress : bootloaderAddress(job.chip), bootloader);
+    } else {
+      log(job, "combined: no bootloader in " + folder + ", the one on the board is kept");
+    }
+    File compiledTable = findCompiled(folder, job.name, ".partitions.bin");
+    if (compiledTable == null) compiledTable = new File(folder, "partitions.bin");
+    if (compiledTable.isFile()) {
+      PartitionTable.Entry data = PartitionTable.load(compiledTable).findData(job.typefs);
+      if (data == null || data.offset + job.spiOffset != job.spiStart) {
+        throw new IOException("Error: " + compiledTable.getName() + " does not match " + job.partitionsFile.getName() + ", compile the sketch again!");
+      }
+      parts.put(PartitionTable.TABLE_OFFSET, compiledTable);
+    } else {
+      log(job, "combined: no compiled partition table, the one on the board is kept");
+    }
+    PartitionTable.Entry otadata = table.find(PartitionTable.TYPE_DATA, PartitionTable.SUBTYPE_OTA);
+    if (otadata != null && job.bootApp0 != null && job.bootApp0.isFile()) {
+      parts.put(otadata.offset, job.bootApp0);
+    }
+    parts.put(job.spiStart, job.getImageFile());
+
+    long end = 0;
+    File previous = null;
+    for (Map.Entry<Long, File> part : parts.entrySet()) {
+      if (part.getKey() < end) {
+        throw new IOException("Error: " + part.getValue().getName() + " at 0x" + Long.toHexString(part.getKey()) + " overlaps " + previous.getName() + "!");
+      }
+      previous = part.getValue();
+      end = part.getKey() + (part.getKey() == job.spiStart ? job.spiSize : previous.length());
+      log(job, "combined: 0x" + Long.toHexString(part.getKey()) + " " + previous.getName());
+    }
+    job.firmware = parts;
+    job.record.put("combined", parts.size());
+  }
+
+  /**
+  * Offset of the second stage bootloader: 0x1000 on the ESP32 and
+  * ESP32-S2, 0x2000 on the ESP32-P4 and ESP32-C5, 0 on the others.
+  */
+  static long bootloaderAddress(String chip) {
+    String name = chip.toLowerCase(Locale.ROOT).replace("-", "");
+    if (name.equals("esp32") || name.equals("esp32s2")) return 0x1000;
+    if (name.equals("esp32p4") || name.equals("esp32c5")) return 0x2000;
+    return 0;
+  }
+
+  /**
+  * A build output named after the sketch, as the IDE (sketch.ino.bin) or
+  * arduino-cli and older cores (sketch.bin) name it.
+  */
+  private static File findCompiled(File folder, String sketchName, String suffix) {
+    for (String name : new String[]{ sketchName + ".ino" + suffix, sketchName + suffix }) {
+      File file = new File(folder, name);
+      if (file.isFile()) return file;
+    }
+    return null;
+  }
+
+  /**
+  * Parses the partition table while the upload tools are looked up, then
+  * picks the image writer for the partition.
+  */
+  void resolve(final Job job) throws IOException {
+    ExecutorService stages = Executors.newSingleThreadExecutor();
+    try {
+      CompletableFuture<Void> uploadTools = stage(new Callable<Void>() {
+        public Void call() throws IOException {
+          long started = RunHistory.now();
+          resolveUploadTools(job);
+          job.record.phase("tools", started);
+          return null;
+        }
+      }, stages);
+      IOException failure = null;
+      try {
+        long started = RunHistory.now();
+        resolvePartition(job);
+        resolveFirmware(job);
+        job.record.phase("partition", started);
+        started = RunHistory.now();
+        resolveBuilder(job);
+        job.record.phase("builder", started);
+      } catch (IOException e) {
+        failure = e;
+      }
+      try {
+        join(uploadTools);
+      } catch (IOException e) {
+        if (failure == null) failure = e;
+      }
+      if (failure != null) throw failure;
+    } finally {
+      stages.shutdown();
+    }
+  }
+
+  /**
+  * Picks the image writer or mk tool for the partition of the job.
+  */
+  void resolveBuilder(Job job) throws IOException {
+    String mkName = "mk" + job.typefs.toLowerCase(Locale.ROOT);
+    job.builder = getImageBuilder(job);
+    if (job.builder != null) {
+      System.out.println(job.tag + mkName + " : built-in (" + job.builder.getId() + ")");
+    } else {
+      job.tool = tools.find(mkName, "tools", "tools/" + mkName, prefs.get("runtime.tools." + mkName + ".path"));
+      if (job.tool == null) {
+        throw new IOException("Error: " + mkName + " not found!");
+      }
+      System.out.println(job.tag + mkName + " : " + job.tool.getAbsolutePath() + " (" + tools.getVersion(job.tool) + ")");
+    }
+    System.out.println();
+  }
+
+  /**
+  * Finds esptool and espota for the targets of the job.
+  */
+  void resolveUploadTools(Job job) throws IOException {
+    boolean needEspota = false, needEsptool = false;
+    for (String target : job.targets) {
+      if (isNetworkTarget(target)) needEspota = true;
+      else needEsptool = true;
+    }
+    //find espota for IPs and esptool for serial ports
+    if (needEspota) {
+      job.espota = tools.find("espota", "tools");
+      if (job.espota == null) {
+        throw new IOException("Error: espota not found!");
+      }
+      System.out.println(job.tag + "espota : " + job.espota.getAbsolutePath());
+      System.out.println();
+    }
+    if (needEsptool) {
+      job.esptool = findEsptool();
+      if (job.esptool == null) {
+        throw new IOException("Error: esptool not found!");
+      }
+      System.out.println(job.tag + "esptool : " + job.esptool.getAbsolutePath() + " (" + tools.getVersion(job.esptool) + ")");
+      System.out.println();
+    }
+  }
+
+  File findEsptool() {
+    return tools.find("esptool", "tools", "tools/esptool_py", "tools/esptool",
+      prefs.get("runtime.tools.esptool_py.path"), prefs.get("runtime.tools.esptool.path"));
+  }
+
+  /**
+  * Returns the in-process image writer for the FS of the job, or null
+  * when the external mk tool has to be used.
+  */
+  private FsImageBuilder getImageBuilder(Job job) {
+    if (getBool("esp32fs.builder.external", false)) return null;
+    try {
+      if ("SPIFFS".equals(job.typefs)) return new SpiffsImageBuilder(job.spiPage, job.spiBlock, job.spiSize);
+      if ("LittleFS".equals(job.typefs)) return new LittleFsImageBuilder(job.spiPage, job.spiBlock, job.spiSize);
+      if ("FatFS".equals(job.typefs)) return new FatImageBuilder(job.spiSize);
+    } catch (IllegalArgumentException e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "builder: " + e.getMessage() + ", using external tool");
+    }
+    return null;
+  }
+
+  /**
+  * Builds the image of the job, or restores it from the image cache.
+  */
+  File build(Job job) throws IOException {
+    job.record.start();
+    long started = RunHistory.now();
+    try {
+      File image = buildImage(job);
+      job.record.put("image_bytes", image.length());
+      return image;
+    } finally {
+      job.record.phase("build", started);
+    }
+  }
+
+  private File buildImage(Job job) throws IOException {
+    File dataFolder = job.dataFolder;
+    File imageFile = job.getImageFile();
+    String dataPath = dataFolder.getAbsolutePath();
+    String toolPath = job.tool != null ? job.tool.getAbsolutePath() : "";
+
+    status.notice(job.typefs + " Creating Image...");
+    log(job, "data   : " + dataPath);
+    log(job, "offset : " + job.spiOffset);
+    log(job, "start  : " + job.spiStart);
+    log(job, "size   : " + (job.spiSize / 1024));
+    if (!"FatFS".equals(job.typefs)) {
+      log(job, "page   : " + job.spiPage);
+      log(job, "block  : " + job.spiBlock);
+    }
+
+    //reuse the last image built from the same data, geometry and tool
+    ImageCache cache = new ImageCache(new File(stateFolder, "cache"));
+    DataManifest manifest = cache.manifestFor(dataFolder);
+    boolean optimize = getBool("esp32fs.optimize", false);
+    String cacheKey = null;
+    boolean cacheHit = false;
+    try {
+      String manifestHash = manifest.hash(dataFolder);
+      manifest.save();
+      String producer = (job.builder != null ? job.builder.getId() : ImageCache.toolStamp(job.tool)) + (optimize ? "+" + AssetOptimizer.ID : "");
+      cacheKey = ImageCache.key(job.typefs, job.spiSize, job.spiPage, job.spiBlock, job.spiOffset, producer, manifestHash);
+      log(job, "files  : " + manifest.getFileCount() + " (" + manifest.getRehashedCount() + " rehashed)");
+      job.record.put("data_files", manifest.getFileCount());
+      job.record.put("data_bytes", manifest.getTotalBytes());
+      cacheHit = cache.restore(cacheKey, imageFile);
+      job.record.put("cache", cacheHit ? "hit" : "miss");
+    } catch (IOException e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "cache  : " + e.getMessage());
+    }
+
+    if (cacheHit) {
+      log(job, "cache  : hit, data folder unchanged");
+      return imageFile;
+    }
+
+    //gzip and minify web assets into a staging folder next to the image
+    File sourceFolder = dataFolder;
+    try {
+      if (optimize) {
+        long started = System.currentTimeMillis();
+        AssetOptimizer optimizer = new AssetOptimizer(new File(job.buildFolder, job.name + ".data"), new File(job.buildFolder, job.name + ".assets"), manifest);
+        sourceFolder = optimizer.optimize(dataFolder);
+        manifest.save();
+        long saved = optimizer.getBytesIn() - optimizer.getBytesOut();
+        log(job, "assets : " + optimizer.getFileCount() + " files, " + optimizer.getProcessedCount() + " processed, "
+          + saved + " bytes saved (" + (optimizer.getBytesIn() > 0 ? saved * 100 / optimizer.getBytesIn() : 0) + "%) in " + (System.currentTimeMillis() - started) + " ms");
+        dataPath = sourceFolder.getAbsolutePath();
+      }
+      preflight(job, sourceFolder);
+      if (job.builder != null) {
+        long started = System.currentTimeMillis();
+        job.builder.build(sourceFolder, imageFile);
+        log(job, "built  : " + (System.currentTimeMillis() - started) + " ms");
+      }
+    } catch (IOException e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "build  : " + e.getMessage());
+      throw new IOException("Create Failed!", e);
+    }
+    if (job.builder == null) {
+      String[] args;
+      if ("FatFS".equals(job.typefs)) {
+        args = new String[]{toolPath, "-c", dataPath, "-s", job.spiSize + "", imageFile.getAbsolutePath()};
+      } else {
+        args = new String[]{toolPath, "-c", dataPath, "-p", job.spiPage + "", "-b", job.spiBlock + "", "-s", job.spiSize + "", imageFile.getAbsolutePath()};
+      }
+      if (listenOnProcess(job, PHASE_BUILD, args, null, "") != 0) {
+        throw new IOException("Create Failed!");
+      }
+    }
+
+    if (cacheKey != null) {
+      try {
+        cache.store(cacheKey, imageFile);
+      } catch (IOException e) {
+        System.err.println("[" + job.typefs + "] " + job.tag + "cache  : " + e.getMessage());
+      }
+    }
+    return imageFile;
+  }
+
+  /**
+  * Models the footprint of the data for the FS of the job and fails before
+  * the image is written when it does not fit. The directories and files
+  * taking most of the space are listed.
+  */
+  private void preflight(Job job, File folder) throws IOException {
+    CapacityEstimator estimator;
+    try {
+      estimator = new CapacityEstimator(job.typefs, job.spiPage, job.spiBlock, job.spiSize);
+    } catch (IllegalArgumentException e) {
+      // the external tool gets the chance to handle this geometry
+      return;
+    }
+    CapacityEstimator.Estimate estimate = estimator.estimate(folder);
+    log(job, "usage  : " + estimate.used / 1024 + " KB of " + estimate.capacity / 1024 + " KB (" + estimate.getPercent() + "%), "
+      + estimate.fileCount + " files, " + estimate.dirCount + " folders");
+    for (CapacityEstimator.Usage dir : estimate.largestDirs(PREFLIGHT_LISTED)) {
+      if (dir.bytes == 0) break;
+      log(job, "folder : " + dir.path + " " + dir.bytes / 1024 + " KB");
+    }
+    if (estimate.fits()) return;
+
+    for (String problem : estimate.problems) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "check  : " + problem);
+    }
+    for (CapacityEstimator.Usage file : estimate.largestFiles(PREFLIGHT_LISTED)) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "largest: " + file.path + " " + file.bytes / 1024 + " KB (" + file.dataBytes + " bytes)");
+    }
+    if (!estimate.problems.isEmpty()) {
+      throw new IOException(estimate.problems.get(0));
+    }
+    throw new IOException("data needs " + estimate.used / 1024 + " KB, the partition holds " + estimate.capacity / 1024 + " KB");
+  }
+
+  /**
+  * Resolves, builds and uploads the job as concurrent stages: the upload
+  * tools are looked up and the board is reset into its loader while the
+  * partition is parsed and the image is built, and the upload starts once
+  * both sides are ready. Failures are reported on the status bar. Runs in
+  * the calling thread.
+  */
+  int buildAndUpload(final Job job) {
+    job.record.start();
+    ExecutorService stages = Executors.newCachedThreadPool();
+    int result = UPLOAD_FAILED;
+    try {
+      CompletableFuture<EspLoader> device = stage(new Callable<Void>() {
+        public Void call() throws IOException {
+          long started = RunHistory.now();
+          resolveUploadTools(job);
+          job.record.phase("tools", started);
+          return null;
+        }
+      }, stages).thenApplyAsync(new Function<Void, EspLoader>() {
+        public EspLoader apply(Void ignored) {
+          long started = RunHistory.now();
+          try {
+            return handshake(job);
+          } catch (IOException e) {
+            throw new CompletionException(e);
+          } finally {
+            job.record.phase("connect", started);
+          }
+        }
+      }, stages);
+      CompletableFuture<File> image = stage(new Callable<File>() {
+        public File call() throws IOException {
+          long started = RunHistory.now();
+          resolvePartition(job);
+          resolveFirmware(job);
+          job.record.phase("partition", started);
+          started = RunHistory.now();
+          resolveBuilder(job);
+          job.record.phase("builder", started);
+          return build(job);
+        }
+      }, stages);
+
+      IOException failure = null;
+      try {
+        join(image);
+      } catch (IOException e) {
+        failure = e;
+      }
+      try {
+        job.loader = join(device);
+      } catch (IOException e) {
+        if (failure == null) failure = e;
+      }
+      if (job.isCancelled()) {
+        result = UPLOAD_FAILED;
+      } else if (failure != null) {
+        System.err.println();
+        status.error(job.typefs + " " + failure.getMessage());
+        result = UPLOAD_FAILED;
+      } else {
+        result = upload(job);
+      }
+      return result;
+    } finally {
+      closeLoader(job, job.loader);
+      job.loader = null;
+      stages.shutdown();
+      saveRecord(job, job.isCancelled() ? "cancelled" : resultName(result));
+    }
+  }
+
+  /**
+  * Appends the record of the job, with result, to RunHistory.FILE_NAME in
+  * its build folder and prints the phase times.
+  */
+  void saveRecord(Job job, String result) {
+    RunHistory.Record record = job.record;
+    record.put("sketch", job.name);
+    record.put("fs", job.typefs);
+    record.put("chip", job.chip);
+    record.put("targets", String.join(",", job.targets));
+    record.put("partition", job.partitionName);
+    record.put("result", result);
+    record.put("mktool", job.builder != null ? job.builder.getId() : job.tool != null ? tools.getVersion(job.tool) : null);
+    record.put("esptool", job.esptool != null ? tools.getVersion(job.esptool) : null);
+    record.finish();
+    log(job, "timing : " + record.describePhases());
+    if (job.buildFolder == null) return;
+    try {
+      RunHistory.append(new File(job.buildFolder, RunHistory.FILE_NAME), record);
+    } catch (IOException e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "history: " + e.getMessage());
+    }
+  }
+
+  /**
+  * Resets the single serial target into its loader and checks the chip.
+  * With esp32fs.upload.native the connection is kept for the upload, with
+  * esp32fs.upload.probe it only serves the check and esptool connects
+  * again. Returns null when no connection is kept; fails when the board
+  * is another chip than the one the job is built for.
+  */
+  private EspLoader handshake(Job job) throws IOException {
+    if (job.targets.size() != 1 || isNetworkTarget(job.targets.get(0))) return null;
+    // combined uploads go through esptool, see uploadSerial
+    boolean keep = getBool("esp32fs.upload.native", false) && !getBool("esp32fs.upload.combined", false);
+    if (!keep && !getBool("esp32fs.upload.probe", false)) return null;
+    String port = job.targets.get(0);
+    long started = System.currentTimeMillis();
+    EspLoader loader;
+    try {
+      loader = EspLoader.connect(SerialLink.open(port, EspLoader.ROM_BAUD), job.chip, keep ? EspLoader.findStub(job.esptool, job.chip) : null);
+    } catch (IOException e) {
+      log(job, "probe  : " + e.getMessage());
+      return null;
+    }
+    job.attach(loader);
+    if (!loader.isChip(job.chip)) {
+      closeLoader(job, loader);
+      throw new IOException("Error: the board on " + port + " is an " + loader.getChip() + ", not an " + job.chip + "!");
+    }
+    log(job, "probe  : " + (loader.getChip() != null ? loader.getChip() : "unknown chip") + " on " + port + " in " + (System.currentTimeMillis() - started) + " ms");
+    if (keep) return loader;
+    closeLoader(job, loader);
+    return null;
+  }
+
+  private static void closeLoader(Job job, EspLoader loader) {
+    if (loader == null) return;
+    job.detach(loader);
+    try {
+      loader.close();
+    } catch (IOException e) {
+      // the port is gone already
+    }
+  }
+
+  private static <T> CompletableFuture<T> stage(final Callable<T> work, Executor executor) {
+    return CompletableFuture.supplyAsync(new Supplier<T>() {
+      public T get() {
+        try {
+          return work.call();
+        } catch (Exception e) {
+          throw new CompletionException(e);
+        }
+      }
+    }, executor);
+  }
+
+  /**
+  * Waits for a stage and rethrows what failed it.
+  */
+  private static <T> T join(CompletableFuture<T> stage) throws IOException {
+    try {
+      return stage.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+  * Uploads the image of the job to its targets and reports the outcome on
+  * the status bar. Runs in the calling thread.
+  */
+  int upload(Job job) {
+    long started = RunHistory.now();
+    try {
+      return uploadImage(job);
+    } finally {
+      job.record.phase("upload", started);
+    }
+  }
+
+  private int uploadImage(Job job) {
+    String typefs = job.typefs;
+    File image = job.getImageFile();
+    status.notice(typefs + " Uploading Image...");
+    log(job, "upload : " + image.getAbsolutePath());
+
+    String[] espotaArgs = job.espota != null ? tools.command(job.espota) : null;
+    String[] esptoolArgs = job.esptool != null ? concat(tools.command(job.esptool), new String[]{"--chip", job.chip}) : null;
+    // change after "write_flash" "-z" to "-u" (--no_compress) below to build file for esp32fs_no_compress.zip
+    String[] writeOptions = new String[]{"write_flash", "-z", "--flash_mode", job.flashMode, "--flash_freq", job.flashFreq, "--flash_size", "detect"};
+    boolean verify = getBool("esp32fs.upload.verify", true);
+    boolean delta = getBool("esp32fs.upload.delta", true);
+
+    if (job.targets.size() > 1) {
+      int parallel = getInt("esp32fs.upload.parallel", 4);
+      log(job, "targets: " + job.targets.size() + " (" + parallel + " at a time)");
+      System.out.println();
+      int failed = uploadToTargets(job, parallel, espotaArgs, esptoolArgs, writeOptions, image, verify, delta);
+      if (failed > 0) {
+        status.error(typefs + " Upload failed on " + failed + " of " + job.targets.size() + " targets!");
+        return UPLOAD_FAILED;
+      }
+      status.notice(typefs + " Image Uploaded to " + job.targets.size() + " targets");
+      return UPLOAD_DONE;
+    }
+
+    String serialPort = job.targets.get(0);
+    int result;
+    if (isNetworkTarget(serialPort)) {
+      log(job, "IP     : " + serialPort);
+      log(job, "port   : " + getInt("esp32fs.ota.port", EspOta.DEFAULT_PORT));
+      System.out.println();
+      result = uploadNetwork(job, espotaArgs, serialPort, image, "");
+    } else {
+      log(job, "address: " + job.spiStart);
+      log(job, "port   : " + serialPort);
+      log(job, "speed  : " + (getBool("esp32fs.upload.baud.adaptive", false) ? "adaptive" : job.uploadSpeed));
+      log(job, "chip   : " + job.chip);
+      log(job, "mode   : " + job.flashMode);
+      log(job, "freq   : " + job.flashFreq);
+      System.out.println();
+      if (verify) {
+        try {
+          log(job, "md5    : " + md5Hex(image));
+        } catch (IOException e) {
+          System.err.println("[" + typefs + "] " + job.tag + "md5    : " + e.getMessage());
+        }
+      }
+      esptoolArgs = concat(esptoolArgs, new String[]{"--port", serialPort, "--before", "default_reset", "--after", "hard_reset"});
+      result = uploadSerial(job, esptoolArgs, writeOptions, serialPort, image, verify, delta, "");
+    }
+    if (result == UPLOAD_SKIPPED) {
+      status.notice(typefs + " Image already up to date");
+    } else if (result == UPLOAD_DONE) {
+      status.notice(typefs + " Image Uploaded");
+    } else {
+      status.error(typefs + " Upload failed!");
+    }
+    return result;
+  }
+
+  /**
+  * Erases the named partitions of job.partitionsFile on the first target
+  * instead of the whole flash. A serial target gets one region erase per
+  * partition. Over OTA only a data partition can be reached; it gets a
+  * blank image. Runs in the calling thread.
+  */
+  boolean erasePartitions(Job job, List<String> names) {
+    String target = job.targets.get(0);
+    List<PartitionTable.Entry> partitions = new ArrayList<PartitionTable.Entry>();
+    try {
+      PartitionTable table = PartitionTable.load(job.partitionsFile);
+      for (String name : names) {
+        PartitionTable.Entry partition = table.find(name);
+        if (partition == null) throw new IOException("Error: partition " + name + " not found!");
+        partitions.add(partition);
+      }
+    } catch (IOException e) {
+      System.err.println();
+      status.error(e.getMessage());
+      return false;
+    }
+    for (PartitionTable.Entry partition : partitions) {
+      log(job, "erase  : " + partition.name + " at 0x" + Long.toHexString(partition.offset) + ", " + (partition.size / 1024) + " KB");
+    }
+    boolean erased = isNetworkTarget(target) ? erasePartitionsOta(job, target, partitions) : erasePartitionsSerial(job, target, partitions);
+    if (erased) {
+      status.notice("Erased " + names);
+    } else if (!job.isCancelled()) {
+      status.error("Erase of " + names + " failed!");
+    }
+    return erased;
+  }
+
+  private boolean erasePartitionsSerial(Job job, String port, List<PartitionTable.Entry> partitions) {
+    // the device no longer holds what was flashed there; mkfatfs images start one sector in
+    FlashHistory history = new FlashHistory(new File(stateFolder, "flashed"));
+    for (PartitionTable.Entry partition : partitions) {
+      history.forget(port, job.chip, partition.offset);
+      history.forget(port, job.chip, partition.offset + FlashHistory.SECTOR);
+    }
+    if (getBool("esp32fs.upload.native", false)) {
+      try (EspLoader loader = EspLoader.connect(SerialLink.open(port, EspLoader.ROM_BAUD), job.chip, EspLoader.findStub(job.esptool, job.chip))) {
+        job.attach(loader);
+        try {
+          long started = System.currentTimeMillis();
+          for (PartitionTable.Entry partition : partitions) loader.eraseRegion(partition.offset, partition.size);
+          loader.hardReset();
+          log(job, "native : erased in " + (System.currentTimeMillis() - started) + " ms");
+        } finally {
+          job.detach(loader);
+        }
+        return true;
+      } catch (IOException e) {
+        if (job.isCancelled()) return false;
+        log(job, "native : " + e.getMessage() + ", using esptool");
+      }
+    }
+    String[] esptool = concat(tools.command(job.esptool), new String[]{"--chip", job.chip, "--port", port, "--before", "default_reset"});
+    for (int i = 0; i < partitions.size(); i++) {
+      PartitionTable.Entry partition = partitions.get(i);
+      String after = i == partitions.size() - 1 ? "hard_reset" : "no_reset";
+      if (listenOnProcess(job, PHASE_ERASE, concat(esptool, new String[]{"--after", after, "erase_region", "" + partition.offset, "" + partition.size}), null, "") != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean erasePartitionsOta(Job job, String target, List<PartitionTable.Entry> partitions) {
+    PartitionTable.Entry data = null;
+    for (PartitionTable.Entry partition : partitions) {
+      boolean isData = partition.type == PartitionTable.TYPE_DATA && (partition.subtype == PartitionTable.SUBTYPE_SPIFFS
+        || partition.subtype == PartitionTable.SUBTYPE_LITTLEFS || partition.subtype == PartitionTable.SUBTYPE_FAT);
+      if (isData && data == null) {
+        data = partition;
+      } else {
+        log(job, "erase  : " + partition.name + " skipped, OTA only reaches the data partition");
+      }
+    }
+    if (data == null) {
+      List<String> names = new ArrayList<String>();
+      for (PartitionTable.Entry partition : partitions) names.add(partition.name);
+      System.err.println("[" + job.typefs + "] " + job.tag + "erase  : no data partition among " + names);
+      return false;
+    }
+    File blank = new File(job.buildFolder, job.name + ".blank.bin");
+    try {
+      writeBlank(blank, data.size);
+      return uploadNetwork(job, tools.command(job.espota), target, blank, "") == UPLOAD_DONE;
+    } catch (IOException e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + "erase  : " + e.getMessage());
+      return false;
+    } finally {
+      blank.delete();
+    }
+  }
+
+  /**
+  * An image of erased flash, which the board takes as an unformatted
+  * filesystem.
+  */
+  static void writeBlank(File file, long size) throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    byte[] erased = new byte[64 * 1024];
+    Arrays.fill(erased, (byte) 0xff);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), erased.length)) {
+      for (long left = size; left > 0; left -= erased.length) {
+        out.write(erased, 0, (int) Math.min(erased.length, left));
+      }
+    }
+  }
+
+  /**
+  * Erases the whole flash of the first target. Runs in the calling thread.
+  */
+  boolean eraseFlash(Job job) {
+    String serialPort = job.targets.get(0);
+    if (isNetworkTarget(serialPort)) {
+      System.out.println("Cannot be done through OTA, IP     : " + serialPort);
+      System.out.println();
+      return false;
+    }
+    System.out.println("Port: " + serialPort);
+    System.out.println();
+    if (getBool("esp32fs.upload.native", false)) {
+      try (EspLoader loader = EspLoader.connect(SerialLink.open(serialPort, EspLoader.ROM_BAUD), job.chip, EspLoader.findStub(job.esptool, job.chip))) {
+        job.attach(loader);
+        try {
+          log(job, "native : erasing flash");
+          loader.eraseFlash();
+          loader.hardReset();
+        } finally {
+          job.detach(loader);
+        }
+        status.notice("Flash erased");
+        return true;
+      } catch (IOException e) {
+        if (job.isCancelled()) return false;
+        log(job, "native : " + e.getMessage() + ", using esptool");
+      }
+    }
+    if (listenOnProcess(job, PHASE_ERASE, concat(tools.command(job.esptool), new String[]{"--chip", job.chip, "--port", serialPort, "--before", "default_reset", "--after", "hard_reset", "erase_flash"}), null, "") != 0) {
+      status.error("Erase Flash failed!");
+      return false;
+    }
+    status.notice("Flash erased");
+    return true;
+  }
+
+  /**
+  * tag prefixes every output line, to tell apart concurrent uploads.
+  * Upload progress goes to the status bar, the console only gets it in
+  * 10 % steps. A run longer than the timeout of its phase is killed with
+  * its children. Returns the exit code, -1 when the tool could not run,
+  * timed out or the job was cancelled.
+  */
+  int listenOnProcess(final Job job, String phase, String[] arguments, StringBuffer capture, String tag) {
+    final String prefix = job.tag + tag;
+    if (job.isCancelled()) return -1;
+    Process proc;
+    try {
+      proc = Runtime.getRuntime().exec(arguments);
+    } catch (IOException e) {
+      System.err.println("[" + job.typefs + "] " + prefix + "error  : " + e.getMessage());
+      return -1;
+    }
+    job.attach(proc);
+    OutputPipeline output = new OutputPipeline(proc, prefix, capture, new OutputPipeline.Listener() {
+      public void progress(int percent) {
+        status.notice(job.typefs + " Uploading " + prefix + percent + "%");
+      }
+    });
+    output.start();
+    try {
+      int timeout = getInt("esp32fs.timeout." + phase, PHASE_TIMEOUTS.containsKey(phase) ? PHASE_TIMEOUTS.get(phase) : 600);
+      if (!proc.waitFor(timeout, TimeUnit.SECONDS)) {
+        killTree(proc);
+        System.err.println("[" + job.typefs + "] " + prefix + "timeout: " + phase + " took longer than " + timeout + " s, killed");
+        output.join();
+        return -1;
+      }
+      output.join();
+    } catch (InterruptedException e) {
+      killTree(proc);
+      Thread.currentThread().interrupt();
+      return -1;
+    } finally {
+      job.detach(proc);
+    }
+    if (job.isCancelled()) return -1;
+
+    if (output.getBytesWritten() > 0 && output.getSecondsWriting() > 0) {
+      job.record.transfer(output.getBytesWritten(), (long) (output.getSecondsWriting() * 1e9));
+      log(job, tag + "rate   : " + output.getBytesWritten() + " bytes in " + output.getSecondsWriting() + " s ("
+        + Math.round(output.getBytesWritten() / output.getSecondsWriting() / 1024) + " KB/s)");
+    }
+    return proc.exitValue();
+  }
+
+  /**
+  * Kills a tool and the processes it started, esptool.exe and espota.exe
+  * are launchers running the real tool as a child. Uses ProcessHandle on
+  * Java 9 and later and pkill on a Java 8 Unix; a Java 8 Windows only
+  * gets the process itself.
+  */
+  static void killTree(Process proc) {
+    try {
+      Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+      Object handle = Process.class.getMethod("toHandle").invoke(proc);
+      Object[] descendants = ((java.util.stream.Stream<?>) handleClass.getMethod("descendants").invoke(handle)).toArray();
+      for (Object descendant : descendants) handleClass.getMethod("destroyForcibly").invoke(descendant);
+    } catch (ReflectiveOperationException e) {
+      try {
+        java.lang.reflect.Field pid = proc.getClass().getDeclaredField("pid");
+        pid.setAccessible(true);
+        new ProcessBuilder("pkill", "-KILL", "-P", "" + pid.getInt(proc)).start().waitFor(5, TimeUnit.SECONDS);
+      } catch (Exception ignored) {
+        // no pid on this platform
+      }
+    }
+    proc.destroyForcibly();
+  }
+
+  /**
+  * Serial upload of image at the partition address. With verify, the
+  * upload is skipped when the device already holds the image. With delta,
+  * a device that still holds the image last flashed to it only gets the
+  * changed 4 KB sector runs, all in one write_flash call. Otherwise a
+  * sparse upload erases the 0xFF sectors of the image with erase_region
+  * and only writes the populated runs.
+  *
+  * With adaptive baud, the upload starts at the rate calibrated for the
+  * port, chip and USB bridge. A write that fails after the baud change is
+  * repeated one rate lower; a full image write resumes shortly before the
+  * last address esptool reported and the whole partition is verified
+  * afterwards.
+  */
+  private int uploadSerial(Job job, String[] esptool, String[] writeOptions, String port, File image, boolean verify, boolean delta, String tag) {
+    FlashHistory history = new FlashHistory(new File(stateFolder, "flashed"));
+    long address = job.spiStart;
+    String[] writeArgs = concat(writeOptions, new String[]{"" + address, image.getAbsolutePath()});
+    boolean fullWrite = true;
+    String prefix = (image.getName() + "." + port).replaceAll("[^A-Za-z0-9_.-]", "_");
+    boolean adaptive = getBool("esp32fs.upload.baud.adaptive", false);
+    String baudKey = adaptive ? BaudCalibration.key(port, job.chip, BaudCalibration.bridge(port)) : null;
+    String speed = adaptive ? "" + baudRates.start(baudKey, getInt("esp32fs.upload.baud.max", BaudCalibration.RATES[0])) : job.uploadSpeed;
+    if (adaptive) log(job, tag + "baud   : " + speed + " (" + baudKey + ")");
+    // esptool patches the flash settings into the bootloader header, so
+    // combined uploads do not go through the in-process loader
+    if (job.firmware != null) {
+      return uploadCombined(job, esptool, writeOptions, port, speed, baudKey, delta, tag);
+    }
+    if (getBool("esp32fs.upload.native", false)) {
+      int result = uploadNative(job, port, image, speed, verify, delta, tag);
+      if (job.isCancelled()) return UPLOAD_FAILED;
+      if (result != UPLOAD_NATIVE_UNAVAILABLE) {
+        if (adaptive && result != UPLOAD_FAILED) baudRates.succeeded(baudKey, Integer.parseInt(speed));
+        return result;
+      }
+    }
+    List<File> parts = new ArrayList<File>();
+    try {
+      File last = delta ? history.last(port, job.chip, address) : null;
+      if (verify) {
+        if (last == null || FlashHistory.sameContent(last, image)) {
+          if (isFlashVerified(job, concat(esptool, new String[]{"--baud", speed, "verify_flash", "" + address, image.getAbsolutePath()}), tag)) {
+            log(job, tag + "verify : already up to date, upload skipped");
+            if (delta) history.record(port, job.chip, address, image);
+            return UPLOAD_SKIPPED;
+          }
+        } else if (isFlashVerified(job, concat(esptool, new String[]{"--baud", speed, "verify_flash", "" + address, last.getAbsolutePath()}), tag)) {
+          List<FlashHistory.Run> runs = FlashHistory.changedRuns(last, image);
+          parts = FlashHistory.extract(image, runs, image.getParentFile(), prefix);
+          String[] pairs = new String[runs.size() * 2];
+          for (int i = 0; i < runs.size(); i++) {
+            pairs[i * 2] = "" + (address + runs.get(i).offset);
+            pairs[i * 2 + 1] = parts.get(i).getAbsolutePath();
+          }
+          log(job, tag + "delta  : " + FlashHistory.totalLength(runs) + " of " + image.length() + " bytes in " + runs.size() + " runs");
+          writeArgs = concat(writeOptions, pairs);
+          fullWrite = false;
+        } else {
+          log(job, tag + "delta  : device differs from last upload, full write");
+        }
+      }
+      if (fullWrite && getBool("esp32fs.upload.sparse", true)) {
+        List<FlashHistory.Run> runs = FlashHistory.populatedRuns(image);
+        long populated = FlashHistory.totalLength(runs);
+        if (populated <= image.length() - image.length() / SPARSE_MIN_ERASED) {
+          long[] erase = eraseSpan(runs, image.length());
+          long eraseStart = erase[0];
+          long eraseEnd = erase[1];
+          log(job, tag + "sparse : " + populated + " of " + image.length() + " bytes in " + runs.size() + " runs, erasing 0x"
+            + Long.toHexString(address + eraseStart) + "-0x" + Long.toHexString(address + eraseEnd));
+          // the board stays in the loader for the write that follows, an empty image has none
+          String[] after = runs.isEmpty() ? new String[0] : new String[]{"--after", "no_reset"};
+          if (listenOnProcess(job, PHASE_ERASE, concat(esptool, new String[]{"--baud", speed}, after, new String[]{"erase_region", "" + (address + eraseStart), "" + (eraseEnd - eraseStart)}), null, tag) == 0) {
+            parts.addAll(FlashHistory.extract(image, runs, image.getParentFile(), prefix));
+            String[] pairs = new String[runs.size() * 2];
+            for (int i = 0; i < runs.size(); i++) {
+              pairs[i * 2] = "" + (address + runs.get(i).offset);
+              pairs[i * 2 + 1] = parts.get(parts.size() - runs.size() + i).getAbsolutePath();
+            }
+            writeArgs = runs.isEmpty() ? null : concat(writeOptions, pairs);
+            fullWrite = false;
+          } else {
+            log(job, tag + "sparse : erase failed, full write");
+          }
+        }
+      }
+      StringBuffer output = adaptive ? new StringBuffer() : null;
+      boolean resumed = false;
+      while (writeArgs != null && listenOnProcess(job, PHASE_WRITE, concat(esptool, new String[]{"--baud", speed}, writeArgs), output, tag) != 0) {
+        int slower = adaptive && BaudCalibration.isBaudFailure(output) ? BaudCalibration.lower(Integer.parseInt(speed)) : -1;
+        if (slower < 0) {
+          history.forget(port, job.chip, address);
+          return UPLOAD_FAILED;
+        }
+        // everything before the last reported block is on the flash already
+        long written = BaudCalibration.lastWritten(output);
+        long offset = (written - address - RESUME_MARGIN) / FlashHistory.SECTOR * FlashHistory.SECTOR;
+        if (fullWrite && offset > 0 && offset < image.length()) {
+          List<FlashHistory.Run> rest = Collections.singletonList(new FlashHistory.Run(offset, image.length() - offset));
+          File part = FlashHistory.extract(image, rest, image.getParentFile(), prefix).get(0);
+          parts.add(part);
+          writeArgs = concat(writeOptions, new String[]{"" + (address + offset), part.getAbsolutePath()});
+          resumed = true;
+        }
+        log(job, tag + "baud   : " + speed + " failed, retrying at " + slower + (resumed ? " from 0x" + Long.toHexString(address + offset) : ""));
+        speed = "" + slower;
+        output.setLength(0);
+      }
+      if (resumed && !isFlashVerified(job, concat(esptool, new String[]{"--baud", speed, "verify_flash", "" + address, image.getAbsolutePath()}), tag)) {
+        log(job, tag + "verify : resumed upload differs, full write");
+        if (listenOnProcess(job, PHASE_WRITE, concat(esptool, new String[]{"--baud", speed}, writeOptions, new String[]{"" + address, image.getAbsolutePath()}), null, tag) != 0) {
+          history.forget(port, job.chip, address);
+          return UPLOAD_FAILED;
+        }
+      }
+      if (adaptive) baudRates.succeeded(baudKey, Integer.parseInt(speed));
+      if (delta) history.record(port, job.chip, address, image);
+      return UPLOAD_DONE;
+    } catch (Exception e) {
+      System.err.println("[" + job.typefs + "] " + job.tag + tag + "upload : " + e.getMessage());
+      history.forget(port, job.chip, address);
+      return UPLOAD_FAILED;
+    } finally {
+      for (File part : parts) part.delete();
+    }
+  }
+
+  /**
+  * Writes job.firmware, the sketch and the image, in one write_flash:
+  * one reset, sync, stub load and baud change for the whole board instead
+  * of one per upload. Verify, delta and sparse writes do not apply, the
+  * partition is written in full and esptool checks every region it
+  * wrote. An adaptive baud failure repeats the write one rate lower.
+  */
+  private int uploadCombined(Job job, String[] esptool, String[] writeOptions, String port, String speed, String baudKey, boolean delta, String tag) {
+    FlashHistory history = new FlashHistory(new File(stateFolder, "flashed"));
+    String[] pairs = new String[job.firmware.size() * 2];
+    int i = 0;
+    for (Map.Entry<Long, File> part : job.firmware.entrySet()) {
+      pairs[i++] = "" + part.getKey();
+      pairs[i++] = part.getValue().getAbsolutePath();
+    }
+    log(job, tag + "combined: " + job.firmware.size() + " files in one session");
+    StringBuffer output = baudKey != null ? new StringBuffer() : null;
+    while (listenOnProcess(job, PHASE_WRITE, concat(esptool, new String[]{"--baud", speed}, writeOptions, pairs), output, tag) != 0) {
+      int slower = baudKey != null && BaudCalibration.isBaudFailure(output) ? BaudCalibration.lower(Integer.parseInt(speed)) : -1;
+      if (slower < 0) {
+        history.forget(port, job.chip, job.spiStart);
+        return UPLOAD_FAILED;
+      }
+      log(job, tag + "baud   : " + speed + " failed, retrying at " + slower);
+      speed = "" + slower;
+      output.setLength(0);
+    }
+    if (baudKey != null) baudRates.succeeded(baudKey, Integer.parseInt(speed));
+    if (delta) {
+      try {
+        history.record(port, job.chip, job.spiStart, job.getImageFile());
+      } catch (IOException e) {
+        history.forget(port, job.chip, job.spiStart);
+      }
+    }
+    return UPLOAD_DONE;
+  }
+
+  /**
+  * Serial upload through the in-process loader, with the same verify,
+  * delta and sparse steps as the esptool path and an MD5 check of the
+  * written partition at the end. Returns UPLOAD_NATIVE_UNAVAILABLE when
+  * the loader could not be used or failed, esptool takes over then.
+  */
+  private int uploadNative(final Job job, String port, File image, String speed, boolean verify, boolean delta, final String tag) {
+    FlashHistory history = new FlashHistory(new File(stateFolder, "flashed"));
+    long address = job.spiStart;
+    EspLoader loader = null;
+    try {
+      long started = RunHistory.now();
+      String connected = "connected while building";
+      if (job.loader != null && job.targets.size() == 1) {
+        loader = job.loader;
+        job.loader = null;
+      } else {
+        loader = EspLoader.connect(SerialLink.open(port, EspLoader.ROM_BAUD), job.chip, EspLoader.findStub(job.esptool, job.chip));
+        if (!loader.isChip(job.chip)) throw new IOException("the board is an " + loader.getChip());
+        connected = "connected in " + (RunHistory.now() - started) / 1000000 + " ms";
+      }
+      job.attach(loader);
+      loader.changeBaud(Integer.parseInt(speed));
+      log(job, tag + "native : " + (loader.isStub() ? "stub" : "ROM") + " loader at " + speed + " baud, " + connected);
+      String local = md5Hex(image);
+      List<FlashHistory.Run> runs = null;
+      if (verify) {
+        String remote = DataManifest.toHex(loader.flashMd5(address, image.length()));
+        if (remote.equals(local)) {
+          log(job, tag + "verify : already up to date, upload skipped");
+          if (delta) history.record(port, job.chip, address, image);
+          loader.hardReset();
+          return UPLOAD_SKIPPED;
+        }
+        File last = delta ? history.last(port, job.chip, address) : null;
+        if (last != null && last.length() == image.length() && remote.equals(md5Hex(last))) {
+          runs = FlashHistory.changedRuns(last, image);
+          log(job, tag + "delta  : " + FlashHistory.totalLength(runs) + " of " + image.length() + " bytes in " + runs.size() + " runs");
+        }
+      }
+      if (runs == null && loader.isStub() && getBool("esp32fs.upload.sparse", true)) {
+        List<FlashHistory.Run> populated = FlashHistory.populatedRuns(image);
+        if (FlashHistory.totalLength(populated) <= image.length() - image.length() / SPARSE_MIN_ERASED) {
+          long[] erase = eraseSpan(populated, image.length());
+          log(job, tag + "sparse : " + FlashHistory.totalLength(populated) + " of " + image.length() + " bytes in " + populated.size() + " runs, erasing 0x"
+            + Long.toHexString(address + erase[0]) + "-0x" + Long.toHexString(address + erase[1]));
+          loader.eraseRegion(address + erase[0], erase[1] - erase[0]);
+          runs = populated;
+        }
+      }
+
+      started = RunHistory.now();
+      loader.write(image, address, runs, progress(job, tag, "native>Writing"));
+      logRate(job, tag, runs == null ? image.length() : FlashHistory.totalLength(runs), started);
+
+      if (!DataManifest.toHex(loader.flashMd5(address, image.length())).equals(local)) {
+        throw new IOException("MD5 of the partition does not match the image");
+      }
+      log(job, tag + "verify : OK");
+      loader.hardReset();
+      if (delta) history.record(port, job.chip, address, image);
+      return UPLOAD_DONE;
+    } catch (Exception e) {
+      history.forget(port, job.chip, address);
+      if (job.isCancelled()) return UPLOAD_FAILED;
+      log(job, tag + "native : " + e.getMessage() + ", using esptool");
+      return UPLOAD_NATIVE_UNAVAILABLE;
+    } finally {
+      if (loader != null) {
+        job.detach(loader);
+        try {
+          loader.close();
+        } catch (IOException e) {
+          // the port is gone already
+        }
+      }
+    }
+  }
+
+  /**
+  * Progress of the in-process uploads, printed like esptool's in 10 %
+  * steps and passed to the status bar at most every
+  * OutputPipeline.PROGRESS_INTERVAL_MS.
+  */
+  private EspLoader.Progress progress(final Job job, final String tag, final String label) {
+    return new EspLoader.Progress() {
+      private int lastStep = -1;
+      private long lastNotified = 0;
+
+      public void written(long done, long total) {
+        int percent = total > 0 ? (int) (done * 100 / total) : 100;
+        long now = System.currentTimeMillis();
+        if (percent / 10 != lastStep) {
+          lastStep = percent / 10;
+          System.out.println(job.tag + tag + label + " (" + percent + " %)");
+        }
+        if (percent == 100 || now - lastNotified >= OutputPipeline.PROGRESS_INTERVAL_MS) {
+          lastNotified = now;
+          status.notice(job.typefs + " Uploading " + job.tag + tag + percent + "%");
+        }
+      }
+    };
+  }
+
+  /**
+  * started is a RunHistory.now() value.
+  */
+  private void logRate(Job job, String tag, long bytes, long started) {
+    long nanos = Math.max(1, RunHistory.now() - started);
+    job.record.transfer(bytes, nanos);
+    double seconds = nanos / 1e9;
+    log(job, tag + "rate   : " + bytes + " bytes in " + nanos / 1000000 / 1000.0 + " s (" + Math.round(bytes / seconds / 1024) + " KB/s)");
+  }
+
+  /**
+  * One erase from the first to the last erased sector around the
+  * populated runs; runs in between are written over anyway.
+  */
+  static long[] eraseSpan(List<FlashHistory.Run> runs, long length) {
+    long start = runs.isEmpty() || runs.get(0).offset > 0 ? 0 : runs.get(0).offset + runs.get(0).length;
+    FlashHistory.Run last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+    long end = last == null || last.offset + last.length < length ? length : last.offset;
+    return new long[]{ start, end };
+  }
+
+  /**
+  * Network upload of image to an IP address. With esp32fs.ota.native the
+  * transfer runs in process, espota takes over when that fails.
+  */
+  private int uploadNetwork(Job job, String[] espota, String target, File image, String tag) {
+    int port = getInt("esp32fs.ota.port", EspOta.DEFAULT_PORT);
+    if (getBool("esp32fs.ota.native", false)) {
+      EspOta ota = new EspOta(port, getInt("esp32fs.ota.timeout", 10) * 1000, getInt("esp32fs.ota.chunk", 16 * 1024),
+        getInt("esp32fs.ota.buffer", 256 * 1024), getInt("esp32fs.ota.host_port", 0), prefs.get("esp32fs.ota.password"));
+      job.attach(ota);
+      try {
+        long started = RunHistory.now();
+        ota.upload(target, image, EspOta.SPIFFS, progress(job, tag, "ota>Uploading"));
+        logRate(job, tag, image.length(), started);
+        return UPLOAD_DONE;
+      } catch (IOException e) {
+        if (job.isCancelled()) return UPLOAD_FAILED;
+        log(job, tag + "ota    : " + e.getMessage() + ", using espota");
+      } finally {
+        job.detach(ota);
+      }
+    }
+    // other flags , "-d", "-r", "-t", "50"
+    return listenOnProcess(job, PHASE_OTA, concat(espota, new String[]{"-i", target, "-p", "" + port, "-s", "-f", image.getAbsolutePath()}), null, tag) == 0 ? UPLOAD_DONE : UPLOAD_FAILED;
+  }
+
+  /**
+  * Uploads the same image to every target, at most parallel at a time.
+  * Serial ports go through uploadSerial, IP addresses through
+  * uploadNetwork. A failing target does not stop the others; a summary
+  * is printed at the end. Returns the number of failed targets.
+  */
+  private int uploadToTargets(final Job job, int parallel, final String[] espota, final String[] esptool, final String[] writeOptions, final File image, final boolean verify, final boolean delta) {
+    List<String> targets = job.targets;
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallel, targets.size())));
+    List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+    for (final String target : targets) {
+      results.add(pool.submit(new Callable<Integer>() {
+        public Integer call() {
+          String tag = "[" + target + "] ";
+          if (job.isCancelled()) return UPLOAD_FAILED;
+          long started = RunHistory.now();
+          int result;
+          if (isNetworkTarget(target)) {
+            result = uploadNetwork(job, espota, target, image, tag);
+          } else {
+            result = uploadSerial(job, concat(esptool, new String[]{"--port", target, "--before", "default_reset", "--after", "hard_reset"}), writeOptions, target, image, verify, delta, tag);
+          }
+          log(job, tag + "result : " + resultName(result) + " (" + (RunHistory.now() - started) / 1000000 + " ms)");
+          return result;
+        }
+      }));
+    }
+    pool.shutdown();
+    int failed = 0;
+    System.out.println();
+    for (int i = 0; i < targets.size(); i++) {
+      int result;
+      try {
+        result = results.get(i).get();
+      } catch (Exception e) {
+        result = UPLOAD_FAILED;
+      }
+      if (result == UPLOAD_FAILED) failed++;
+      log(job, "target : " + targets.get(i) + " " + resultName(result));
+    }
+    return failed;
+  }
+
+  static String resultName(int result) {
+    if (result == UPLOAD_SKIPPED) return "up to date";
+    return result == UPLOAD_DONE ? "OK" : "FAILED";
+  }
+
+  static boolean isNetworkTarget(String target) {
+    return target.split("\\.").length == 4;
+  }
+
+  /**
+  * Serial ports and IP addresses separated by commas or spaces.
+  */
+  static List<String> parseTargets(String data) {
+    List<String> targets = new ArrayList<String>();
+    if (data == null) return targets;
+    for (String target : data.split("[,\\s]+")) {
+      if (!target.isEmpty() && !targets.contains(target)) targets.add(target);
+    }
+    return targets;
+  }
+
+  /**
+  * esptool verify_flash asks the device for the MD5 of the flash region
+  * (SPI_FLASH_MD5) and compares it to the local image, no read-back.
+  */
+  private boolean isFlashVerified(Job job, String[] verifyArguments, String tag) {
+    StringBuffer output = new StringBuffer();
+    return listenOnProcess(job, PHASE_VERIFY, verifyArguments, output, tag) == 0 && output.indexOf("verify OK") >= 0;
+  }
+
+  static String[] concat(String[]... arrays) {
+    List<String> all = new ArrayList<String>();
+    for (String[] a : arrays) all.addAll(Arrays.asList(a));
+    return all.toArray(new String[all.size()]);
+  }
+
+  static String md5Hex(File file) throws IOException {
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buf = new byte[64 * 1024];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        md.update(buf, 0, n);
+      }
+    }
+    return DataManifest.toHex(md.digest());
+  }
+
+  private void log(Job job, String line) {
+    System.out.println("[" + job.typefs + "] " + job.tag + line);
+  }
+
+  boolean getBool(String name, boolean defaultValue) {
+    String data = prefs.get(name);
+    if (data == null || data.trim().isEmpty()) return defaultValue;
+    return data.trim().equalsIgnoreCase("true");
+  }
+
+  /**
+  * Positive number setting, defaultValue when unset or invalid.
+  */
+  int getInt(String name, int defaultValue) {
+    String data = prefs.get(name);
+    if (data == null || data.trim().isEmpty()) return defaultValue;
+    try {
+      return Math.max(1, Integer.decode(data.trim()));
+    } catch (NumberFormatException e) {
+      System.err.println(name + " is not a number, using " + defaultValue);
+      return defaultValue;
+    }
+  }
+}
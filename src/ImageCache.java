@@ -0,0 +1,144 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Persistent cache of filesystem images built from sketch data folders
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+* Images are stored under a key that covers everything the mk tool output
+* depends on: FS type, geometry, tool and the data folder manifest.
+*/
+class ImageCache {
+  private static final int MAX_ENTRIES = 8;
+
+  private final File folder;
+
+  ImageCache(File folder) {
+    this.folder = folder;
+  }
+
+  File getFolder() {
+    return folder;
+  }
+
+  /**
+  * Manifest index of a data folder, kept next to the cached images.
+  */
+  DataManifest manifestFor(File dataFolder) {
+    String id = DataManifest.toHex(digestOf(dataFolder.getAbsolutePath())).substring(0, 16);
+    return new DataManifest(new File(folder, "manifest-" + id + ".properties"));
+  }
+
+  /**
+  * Identifies a tool binary without running it: path, size and mtime.
+  */
+  static String toolStamp(File tool) {
+    return tool.getAbsolutePath() + ":" + tool.length() + ":" + tool.lastModified();
+  }
+
+  static String key(String typefs, long spiSize, long spiPage, long spiBlock, long spiOffset, String tool, String manifest) {
+    String s = typefs + "|" + spiSize + "|" + spiPage + "|" + spiBlock + "|" + spiOffset + "|" + tool + "|" + manifest;
+    return DataManifest.toHex(digestOf(s));
+  }
+
+  /**
+  * Puts the cached image for key at imageFile. Returns false on a miss.
+  */
+  boolean restore(String key, File imageFile) throws IOException {
+    File cached = entry(key);
+    if (!cached.isFile()) return false;
+    File stamp = stampFor(imageFile);
+    if (!(imageFile.isFile() && imageFile.length() == cached.length() && key.equals(readStamp(stamp)))) {
+      File parent = imageFile.getParentFile();
+      if (parent != null) parent.mkdirs();
+      Files.copy(cached.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      writeStamp(stamp, key);
+    }
+    // keep recently used entries from being pruned
+    cached.setLastModified(System.currentTimeMillis());
+    return true;
+  }
+
+  void store(String key, File imageFile) throws IOException {
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("Cannot create " + folder);
+    }
+    // a name of its own, another build of the same key may be storing too
+    Path tmp = Files.createTempFile(folder.toPath(), key, ".tmp");
+    try {
+      Files.copy(imageFile.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+      Files.move(tmp, entry(key).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    writeStamp(stampFor(imageFile), key);
+    prune();
+  }
+
+  private File entry(String key) {
+    return new File(folder, key + ".bin");
+  }
+
+  private static File stampFor(File imageFile) {
+    return new File(imageFile.getPath() + ".key");
+  }
+
+  private static String readStamp(File stamp) {
+    if (!stamp.isFile()) return null;
+    try {
+      return new String(Files.readAllBytes(stamp.toPath()), "UTF-8").trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void writeStamp(File stamp, String key) throws IOException {
+    Files.write(stamp.toPath(), key.getBytes("UTF-8"));
+  }
+
+  private void prune() {
+    File[] entries = folder.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".bin");
+      }
+    });
+    if (entries == null || entries.length <= MAX_ENTRIES) return;
+    Arrays.sort(entries, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return Long.compare(b.lastModified(), a.lastModified());
+      }
+    });
+    for (int i = MAX_ENTRIES; i < entries.length; i++) {
+      entries[i].delete();
+    }
+  }
+
+  private static byte[] digestOf(String s) {
+    MessageDigest md = DataManifest.newDigest();
+    DataManifest.update(md, s);
+    return md.digest();
+  }
+}
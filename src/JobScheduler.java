@@ -0,0 +1,190 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Runs uploads and erases one at a time per port
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+* Device operations of the IDE session run on one pool. A job holds the
+* lock of every serial port and IP address it targets, taken in name
+* order so two multi-target jobs cannot deadlock; a job for a busy port
+* waits in line, jobs for other ports run alongside. Cancelling a job
+* kills its tool processes and closes its connections, whether it is
+* running or still waiting.
+*/
+class JobScheduler {
+  static final int QUEUED = 0;
+  static final int RUNNING = 1;
+  static final int DONE = 2;
+  static final int FAILED = 3;
+  static final int CANCELLED = 4;
+
+  private static final String[] STATE_NAMES = { "queued", "running", "done", "failed", "cancelled" };
+  private static JobScheduler shared;
+
+  private final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "esp32fs job " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  private final Map<String, ReentrantLock> locks = new HashMap<String, ReentrantLock>();
+  private final List<Ticket> tickets = new ArrayList<Ticket>();
+
+  /**
+  * Scheduler of the IDE session.
+  */
+  static synchronized JobScheduler get() {
+    if (shared == null) shared = new JobScheduler();
+    return shared;
+  }
+
+  static String stateName(int state) {
+    return STATE_NAMES[state];
+  }
+
+  /**
+  * A submitted job and its state.
+  */
+  class Ticket {
+    final String name;
+    final FsEngine.Job job;
+    final List<String> ports;
+    private volatile int state = QUEUED;
+    private Thread worker;
+
+    Ticket(String name, FsEngine.Job job) {
+      this.name = name;
+      this.job = job;
+      this.ports = new ArrayList<String>(new TreeSet<String>(job.targets));
+    }
+
+    int getState() {
+      return state;
+    }
+
+    void cancel() {
+      job.cancel();
+      // wakes a job waiting for its ports
+      synchronized (this) {
+        if (worker != null) worker.interrupt();
+      }
+    }
+
+    public String toString() {
+      return name + " " + ports + " (" + stateName(state) + ")";
+    }
+  }
+
+  /**
+  * Queues work for the ports of job. work returns false when it failed
+  * and has reported why on status itself; the scheduler reports waiting
+  * and cancelled jobs.
+  */
+  Ticket submit(String name, FsEngine.Job job, final FsEngine.Status status, final Callable<Boolean> work) {
+    final Ticket ticket = new Ticket(name, job);
+    synchronized (tickets) {
+      tickets.add(ticket);
+    }
+    pool.execute(new Runnable() {
+      public void run() {
+        execute(ticket, status, work);
+      }
+    });
+    return ticket;
+  }
+
+  /**
+  * Jobs queued or running, oldest first.
+  */
+  List<Ticket> getActive() {
+    synchronized (tickets) {
+      return new ArrayList<Ticket>(tickets);
+    }
+  }
+
+  private void execute(Ticket ticket, FsEngine.Status status, Callable<Boolean> work) {
+    List<ReentrantLock> held = new ArrayList<ReentrantLock>();
+    synchronized (ticket) {
+      ticket.worker = Thread.currentThread();
+    }
+    try {
+      for (String port : ticket.ports) {
+        if (ticket.job.isCancelled()) break;
+        ReentrantLock lock = lockFor(port);
+        if (!lock.tryLock()) {
+          System.out.println(ticket.name + ": " + port + " is busy, waiting");
+          status.notice(ticket.name + " waiting for " + port);
+          long waiting = RunHistory.now();
+          try {
+            lock.lockInterruptibly();
+          } finally {
+            ticket.job.record.waited(waiting);
+          }
+        }
+        held.add(lock);
+      }
+      if (ticket.job.isCancelled()) {
+        ticket.state = CANCELLED;
+      } else {
+        ticket.state = RUNNING;
+        boolean ok = work.call();
+        ticket.state = ticket.job.isCancelled() ? CANCELLED : ok ? DONE : FAILED;
+      }
+    } catch (InterruptedException e) {
+      ticket.state = CANCELLED;
+    } catch (Exception e) {
+      ticket.state = ticket.job.isCancelled() ? CANCELLED : FAILED;
+      if (ticket.state == FAILED) status.error(ticket.name + " failed: " + e);
+    } finally {
+      synchronized (ticket) {
+        ticket.worker = null;
+      }
+      // a pending interrupt must not leak into the next job of the thread
+      Thread.interrupted();
+      for (int i = held.size() - 1; i >= 0; i--) held.get(i).unlock();
+      synchronized (tickets) {
+        tickets.remove(ticket);
+      }
+    }
+    if (ticket.state == CANCELLED) {
+      System.err.println(ticket.name + ": cancelled");
+      status.error(ticket.name + " cancelled");
+    }
+  }
+
+  private ReentrantLock lockFor(String port) {
+    synchronized (locks) {
+      ReentrantLock lock = locks.get(port);
+      if (lock == null) {
+        lock = new ReentrantLock(true);
+        locks.put(port, lock);
+      }
+      return lock;
+    }
+  }
+}
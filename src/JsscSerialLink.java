@@ -0,0 +1,112 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  SerialLink on top of the jssc library shipped with the Arduino IDE
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+class JsscSerialLink implements SerialLink {
+  private final SerialPort port;
+  private boolean dtr = false;
+  private boolean rts = false;
+
+  public JsscSerialLink(String name, int baud) throws IOException {
+    port = new SerialPort(name);
+    try {
+      port.openPort();
+      // opening must not reset the board, the loader does that on purpose
+      port.setParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, false, false);
+    } catch (SerialPortException e) {
+      try {
+        port.closePort();
+      } catch (SerialPortException ignored) {
+        // not opened
+      }
+      throw new IOException(name + ": " + e.getMessage(), e);
+    }
+  }
+
+  public void setBaud(int baud) throws IOException {
+    try {
+      port.setParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, rts, dtr);
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public void setSignals(boolean dtr, boolean rts) throws IOException {
+    this.dtr = dtr;
+    this.rts = rts;
+    try {
+      port.setDTR(dtr);
+      port.setRTS(rts);
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public void write(byte[] data) throws IOException {
+    try {
+      if (!port.writeBytes(data)) throw new IOException("write failed");
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public int read(byte[] buf, int timeoutMs) throws IOException {
+    try {
+      byte[] data;
+      int available = port.getInputBufferBytesCount();
+      if (available > 0) {
+        data = port.readBytes(Math.min(available, buf.length));
+      } else {
+        try {
+          data = port.readBytes(1, timeoutMs);
+        } catch (SerialPortTimeoutException e) {
+          return 0;
+        }
+      }
+      if (data == null) return 0;
+      System.arraycopy(data, 0, buf, 0, data.length);
+      return data.length;
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public void purge() throws IOException {
+    try {
+      port.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  public void close() throws IOException {
+    try {
+      port.closePort();
+    } catch (SerialPortException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+}
@@ -0,0 +1,493 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  LittleFS v2 image writer, replaces the external mklittlefs tool
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Writes a LittleFS (disk version 2.0) image the way a freshly compacted
+* filesystem looks: the root and every directory are metadata pairs with a
+* single commit in their first block, threaded by tail pointers in
+* depth-first order. Small files are stored inline, larger ones as CTZ
+* skip-lists.
+*
+* Blocks are planned up front from file sizes. Worker threads then read
+* the files and render whole units (a metadata block with its commit CRC,
+* or all blocks of one file) while a single writer puts the units into the
+* image in block order.
+*/
+class LittleFsImageBuilder implements FsImageBuilder {
+  static final int DISK_VERSION = 0x00020000;
+  static final int NAME_MAX = 32;           // LFS_NAME_MAX of mklittlefs and the ESP32 cores
+  static final int FILE_MAX = 0x7fffffff;
+  static final int ATTR_MAX = 0x3fe;
+
+  static final int TYPE_REG = 0x001;
+  static final int TYPE_DIR = 0x002;
+  static final int TYPE_SUPERBLOCK = 0x0ff;
+  static final int TYPE_DIRSTRUCT = 0x200;
+  static final int TYPE_INLINESTRUCT = 0x201;
+  static final int TYPE_CTZSTRUCT = 0x202;
+  static final int TYPE_CRC = 0x500;
+  static final int TYPE_SOFTTAIL = 0x600;
+  static final int TYPE_HARDTAIL = 0x601;
+
+  // revision, tail, crc of a commit, and the superblock entry of the root
+  static final int PAIR_FIXED = 4 + 12 + 8;
+  static final int SUPERBLOCK_ENTRY = 4 + 8 + 4 + 24;
+
+  static final int ID_NONE = 0x3ff;
+
+  /**
+  * Order of littlefs directory entries: UTF-8 names compared as unsigned
+  * bytes, a prefix first.
+  */
+  static final Comparator<byte[]> NAME_ORDER = new Comparator<byte[]>() {
+    public int compare(byte[] a, byte[] b) {
+      int len = Math.min(a.length, b.length);
+      for (int i = 0; i < len; i++) {
+        int d = (a[i] & 0xff) - (b[i] & 0xff);
+        if (d != 0) return d;
+      }
+      return a.length - b.length;
+    }
+  };
+
+  private final int blockSize;
+  private final int progSize;
+  private final int blockCount;
+  private final int inlineMax;
+  private final int threads;
+
+  LittleFsImageBuilder(long page, long block, long size) {
+    this(page, block, size, Runtime.getRuntime().availableProcessors());
+  }
+
+  LittleFsImageBuilder(long page, long block, long size, int threads) {
+    this.blockSize = (int) block;
+    this.progSize = (int) page;
+    this.blockCount = (int) (size / block);
+    this.inlineMax = Math.min(ATTR_MAX, Math.min(progSize, blockSize / 8));
+    this.threads = Math.max(1, threads);
+    if (block < 128 || page <= 0 || block % page != 0 || blockCount < 2) {
+      throw new IllegalArgumentException("Invalid LittleFS geometry: page " + page + ", block " + block + ", size " + size);
+    }
+  }
+
+  public String getId() {
+    return "java-littlefs-1";
+  }
+
+  private static class Node {
+    final String name;
+    final byte[] nameBytes;
+    final File file;
+    final boolean dir;
+    final long size;
+    final List<Node> children = new ArrayList<Node>();
+    // directories: metadata pairs, the first is the one the parent points to
+    final List<Chunk> chunks = new ArrayList<Chunk>();
+    // regular files stored as CTZ skip-lists
+    int firstBlock = -1;
+    int blocks = 0;
+
+    Node(String name, File file, boolean dir) throws UnsupportedEncodingException {
+      this.name = name;
+      this.nameBytes = name.getBytes("UTF-8");
+      this.file = file;
+      this.dir = dir;
+      this.size = dir ? 0 : file.length();
+    }
+  }
+
+  /**
+  * One metadata pair: a slice of a directory's entries.
+  */
+  private static class Chunk {
+    final List<Node> entries = new ArrayList<Node>();
+    boolean superblock;
+    int block;
+    int tailType;
+    int tailBlock = -1;
+  }
+
+  public void build(File dataFolder, File imageFile) throws IOException {
+    Node root = new Node("", dataFolder, true);
+    scan(root);
+
+    // metadata pairs first, root is always {0, 1}
+    List<Node> dirs = new ArrayList<Node>();
+    listDirs(root, dirs);
+    int next = 0;
+    List<Chunk> order = new ArrayList<Chunk>();
+    for (Node d : dirs) {
+      split(d, d == root);
+      for (Chunk c : d.chunks) {
+        c.block = next;
+        next += 2;
+        order.add(c);
+      }
+    }
+    // every pair is on the tail list, hard tails continue a directory
+    for (int i = 0; i < dirs.size(); i++) {
+      List<Chunk> chunks = dirs.get(i).chunks;
+      for (int k = 0; k + 1 < chunks.size(); k++) {
+        chunks.get(k).tailType = TYPE_HARDTAIL;
+        chunks.get(k).tailBlock = chunks.get(k + 1).block;
+      }
+      if (i + 1 < dirs.size()) {
+        Chunk last = chunks.get(chunks.size() - 1);
+        last.tailType = TYPE_SOFTTAIL;
+        last.tailBlock = dirs.get(i + 1).chunks.get(0).block;
+      }
+    }
+    List<Node> files = new ArrayList<Node>();
+    for (Node d : dirs) {
+      for (Node f : d.children) {
+        if (!f.dir && f.size > inlineMax) {
+          f.firstBlock = next;
+          f.blocks = ctzBlocks(f.size);
+          next += f.blocks;
+          files.add(f);
+        }
+      }
+    }
+    if (next > blockCount) {
+      throw new IOException("LittleFS image full: " + next + " blocks needed, " + blockCount + " available");
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    FileChannel out = FileChannel.open(imageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+      Deque<Integer> positions = new ArrayDeque<Integer>();
+      int window = threads * 4;
+      for (final Chunk c : order) {
+        pending.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            return renderChunk(c);
+          }
+        }));
+        positions.add(c.block);
+        while (pending.size() >= window) drain(out, pending, positions);
+      }
+      for (final Node f : files) {
+        pending.add(pool.submit(new Callable<byte[]>() {
+          public byte[] call() throws IOException {
+            return renderCtz(f);
+          }
+        }));
+        positions.add(f.firstBlock);
+        while (pending.size() >= window) drain(out, pending, positions);
+      }
+      while (!pending.isEmpty()) drain(out, pending, positions);
+      // the second block of each pair and everything after the data is erased
+      byte[] erased = new byte[blockSize];
+      Arrays.fill(erased, (byte) 0xff);
+      for (Chunk c : order) write(out, erased, c.block + 1);
+      for (int b = next; b < blockCount; b++) write(out, erased, b);
+    } finally {
+      pool.shutdownNow();
+      out.close();
+    }
+  }
+
+  private void drain(FileChannel out, Deque<Future<byte[]>> pending, Deque<Integer> positions) throws IOException {
+    byte[] data;
+    try {
+      data = pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("LittleFS image build interrupted");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException(cause);
+    }
+    write(out, data, positions.removeFirst());
+  }
+
+  private void write(FileChannel out, byte[] data, int block) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    long pos = (long) block * blockSize;
+    while (buf.hasRemaining()) {
+      pos += out.write(buf, pos);
+    }
+  }
+
+  private void scan(Node dir) throws IOException {
+    File[] entries = dir.file.listFiles();
+    if (entries == null) return;
+    for (File f : entries) {
+      if (f.getName().startsWith(".")) continue;
+      if (!f.isDirectory() && !f.isFile()) continue;
+      Node n = new Node(f.getName(), f, f.isDirectory());
+      if (n.nameBytes.length > NAME_MAX) {
+        throw new IOException("LittleFS file name too long (max " + NAME_MAX + "): " + f.getName());
+      }
+      dir.children.add(n);
+      if (n.dir) scan(n);
+    }
+    // littlefs keeps directory entries sorted by name
+    Collections.sort(dir.children, new Comparator<Node>() {
+      public int compare(Node a, Node b) {
+        return NAME_ORDER.compare(a.nameBytes, b.nameBytes);
+      }
+    });
+  }
+
+  private void listDirs(Node dir, List<Node> dirs) {
+    dirs.add(dir);
+    for (Node n : dir.children) {
+      if (n.dir) listDirs(n, dirs);
+    }
+  }
+
+  private int entrySize(Node n) {
+    return entrySize(n.nameBytes.length, n.dir, n.size);
+  }
+
+  /**
+  * Bytes of the name and struct tags of one directory entry.
+  */
+  int entrySize(int nameLength, boolean dir, long size) {
+    int struct = dir || size > inlineMax ? 8 : (int) size;
+    return 4 + nameLength + 4 + struct;
+  }
+
+  int getInlineMax() {
+    return inlineMax;
+  }
+
+  int getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+  * Splits a directory into pairs whose commit stays within half a block,
+  * the size littlefs itself compacts to before splitting.
+  */
+  private void split(Node dir, boolean isRoot) {
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (Node n : dir.children) sizes.add(entrySize(n));
+    int next = 0;
+    for (int count : chunkSizes(sizes, isRoot)) {
+      Chunk c = new Chunk();
+      c.superblock = isRoot && next == 0;
+      c.entries.addAll(dir.children.subList(next, next + count));
+      dir.chunks.add(c);
+      next += count;
+    }
+  }
+
+  /**
+  * Number of metadata pairs split() makes of a directory whose entries
+  * have the given entrySize()s.
+  */
+  int pairsFor(List<Integer> entrySizes, boolean isRoot) {
+    return chunkSizes(entrySizes, isRoot).size();
+  }
+
+  /**
+  * Entries in each pair of a directory, the first pair of the root also
+  * holds the superblock.
+  */
+  private List<Integer> chunkSizes(List<Integer> entrySizes, boolean isRoot) {
+    List<Integer> counts = new ArrayList<Integer>();
+    int entries = 0;
+    int used = PAIR_FIXED + (isRoot ? SUPERBLOCK_ENTRY : 0);
+    for (int size : entrySizes) {
+      if (entries > 0 && alignUp(used + size, progSize) > pairLimit()) {
+        counts.add(entries);
+        entries = 0;
+        used = PAIR_FIXED;
+      }
+      entries++;
+      used += size;
+    }
+    counts.add(entries);
+    return counts;
+  }
+
+  private int pairLimit() {
+    return Math.min(blockSize - 36, alignUp(blockSize / 2, progSize));
+  }
+
+  int ctzBlocks(long size) {
+    int n = 0;
+    long left = size;
+    while (left > 0) {
+      left -= blockSize - (n == 0 ? 0 : 4 * (Integer.numberOfTrailingZeros(n) + 1));
+      n++;
+    }
+    return n;
+  }
+
+  private byte[] renderCtz(Node f) throws IOException {
+    byte[] data = new byte[f.blocks * blockSize];
+    Arrays.fill(data, (byte) 0xff);
+    InputStream in = new FileInputStream(f.file);
+    try {
+      long left = f.size;
+      for (int i = 0; i < f.blocks; i++) {
+        int off = i * blockSize;
+        int skips = i == 0 ? 0 : Integer.numberOfTrailingZeros(i) + 1;
+        for (int k = 0; k < skips; k++) {
+          putLe(data, off + 4 * k, f.firstBlock + i - (1 << k));
+        }
+        int pos = off + 4 * skips;
+        int end = pos + (int) Math.min(blockSize - 4 * skips, left);
+        left -= end - pos;
+        while (pos < end) {
+          int r = in.read(data, pos, end - pos);
+          if (r < 0) throw new EOFException("File changed while building image: " + f.file);
+          pos += r;
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private byte[] renderChunk(Chunk c) throws IOException {
+    Commit commit = new Commit(blockSize);
+    commit.putRevision(1);
+    if (c.superblock) {
+      commit.tag(TYPE_SUPERBLOCK, 0, "littlefs".getBytes("US-ASCII"));
+      byte[] sb = new byte[24];
+      putLe(sb, 0, DISK_VERSION);
+      putLe(sb, 4, blockSize);
+      putLe(sb, 8, blockCount);
+      putLe(sb, 12, NAME_MAX);
+      putLe(sb, 16, FILE_MAX);
+      putLe(sb, 20, ATTR_MAX);
+      commit.tag(TYPE_INLINESTRUCT, 0, sb);
+    }
+    int id = c.superblock ? 1 : 0;
+    for (Node n : c.entries) {
+      commit.tag(n.dir ? TYPE_DIR : TYPE_REG, id, n.nameBytes);
+      if (n.dir) {
+        int pair = n.chunks.get(0).block;
+        commit.tag(TYPE_DIRSTRUCT, id, pair(pair));
+      } else if (n.size > inlineMax) {
+        byte[] ctz = new byte[8];
+        putLe(ctz, 0, n.firstBlock + n.blocks - 1);
+        putLe(ctz, 4, (int) n.size);
+        commit.tag(TYPE_CTZSTRUCT, id, ctz);
+      } else {
+        commit.tag(TYPE_INLINESTRUCT, id, readSmall(n));
+      }
+      id++;
+    }
+    if (c.tailBlock >= 0) {
+      commit.tag(c.tailType, ID_NONE, pair(c.tailBlock));
+    }
+    commit.finish(progSize);
+    return commit.block;
+  }
+
+  private static byte[] pair(int first) {
+    byte[] p = new byte[8];
+    putLe(p, 0, first);
+    putLe(p, 4, first + 1);
+    return p;
+  }
+
+  private static byte[] readSmall(Node n) throws IOException {
+    byte[] data = new byte[(int) n.size];
+    DataInputStream in = new DataInputStream(new FileInputStream(n.file));
+    try {
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  /**
+  * A metadata commit: xored big-endian tags, data, and a closing CRC tag
+  * padded to the program size.
+  */
+  static class Commit {
+    final byte[] block;
+    private final CRC32 crc = new CRC32();
+    private int off = 0;
+    private int ptag = 0xffffffff;
+
+    Commit(int blockSize) {
+      block = new byte[blockSize];
+      Arrays.fill(block, (byte) 0xff);
+    }
+
+    void putRevision(int rev) {
+      putLe(block, off, rev);
+      crc.update(block, off, 4);
+      off += 4;
+    }
+
+    void tag(int type, int id, byte[] data) throws IOException {
+      if (off + 4 + data.length + 8 > block.length) {
+        throw new IOException("LittleFS metadata block overflow");
+      }
+      int tag = (type << 20) | (id << 10) | data.length;
+      putBe(block, off, tag ^ ptag);
+      ptag = tag & 0x7fffffff;
+      System.arraycopy(data, 0, block, off + 4, data.length);
+      crc.update(block, off, 4 + data.length);
+      off += 4 + data.length;
+    }
+
+    void finish(int progSize) {
+      int end = alignUp(off + 8, progSize);
+      int tag = (TYPE_CRC << 20) | (ID_NONE << 10) | (end - off - 4);
+      putBe(block, off, tag ^ ptag);
+      crc.update(block, off, 4);
+      // lfs_crc is the CRC-32 register without the final inversion
+      putLe(block, off + 4, (int) ~crc.getValue());
+      off = end;
+    }
+  }
+
+  static int alignUp(int v, int align) {
+    return (v + align - 1) / align * align;
+  }
+
+  static void putLe(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >> 8);
+    b[off + 2] = (byte) (v >> 16);
+    b[off + 3] = (byte) (v >> 24);
+  }
+
+  static void putBe(byte[] b, int off, int v) {
+    b[off] = (byte) (v >> 24);
+    b[off + 1] = (byte) (v >> 16);
+    b[off + 2] = (byte) (v >> 8);
+    b[off + 3] = (byte) v;
+  }
+}
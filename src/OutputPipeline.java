@@ -0,0 +1,174 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Reads the output of a child tool and follows esptool/espota progress
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* Drains stdout and stderr of a process. Lines are split on \r as well as
+* \n, so the overwritten progress lines of esptool and espota are seen one
+* by one, and are cut at MAX_LINE characters. Progress lines reach the
+* console only in 10 % steps and the listener at most every
+* PROGRESS_INTERVAL_MS; all other lines are printed with the stream
+* prefix. "Wrote ... in T seconds" lines are summed up as the throughput
+* of the upload.
+*/
+class OutputPipeline {
+  static final int MAX_LINE = 1024;
+  static final long PROGRESS_INTERVAL_MS = 250;
+
+  private static final Pattern ESPTOOL_PROGRESS = Pattern.compile("Writing at 0x([0-9a-fA-F]+)\\.*\\s*\\((\\d+)\\s*%\\)");
+  private static final Pattern ESPOTA_PROGRESS = Pattern.compile("Uploading:\\s*\\[[^\\]]*\\]\\s*(\\d+)%");
+  private static final Pattern ESPTOOL_WROTE = Pattern.compile("Wrote (\\d+) bytes.* in ([\\d.]+) seconds");
+
+  /**
+  * Receives upload progress, called from the reader threads.
+  */
+  interface Listener {
+    void progress(int percent);
+  }
+
+  private final Process process;
+  private final String tag;
+  private final StringBuffer capture;
+  private final Listener listener;
+
+  private Reader errorReader;
+  private Reader outputReader;
+  private int lastPercent = -1;
+  private int lastPrintedStep = -1;
+  private long lastNotified = 0;
+  private long bytesWritten = 0;
+  private double secondsWriting = 0;
+
+  /**
+  * capture and listener may be null.
+  */
+  OutputPipeline(Process process, String tag, StringBuffer capture, Listener listener) {
+    this.process = process;
+    this.tag = tag;
+    this.capture = capture;
+    this.listener = listener;
+  }
+
+  void start() {
+    errorReader = new Reader(process.getErrorStream(), tag + "_");
+    outputReader = new Reader(process.getInputStream(), tag + "-");
+    errorReader.start();
+    outputReader.start();
+  }
+
+  void join() throws InterruptedException {
+    errorReader.join();
+    outputReader.join();
+  }
+
+  /**
+  * Bytes reported by esptool "Wrote" lines, 0 for other tools.
+  */
+  synchronized long getBytesWritten() { return bytesWritten; }
+
+  synchronized double getSecondsWriting() { return secondsWriting; }
+
+  private class Reader extends Thread {
+    private final InputStream in;
+    private final String type;
+
+    Reader(InputStream in, String type) {
+      this.in = in;
+      this.type = type;
+      setDaemon(true);
+    }
+
+    public void run() {
+      try {
+        InputStreamReader reader = new InputStreamReader(in);
+        char[] buf = new char[4096];
+        StringBuilder line = new StringBuilder();
+        boolean afterCr = false;
+        int n;
+        while ((n = reader.read(buf)) > 0) {
+          for (int i = 0; i < n; i++) {
+            char c = buf[i];
+            if (c == '\r' || c == '\n') {
+              // \r\n ends one line, not two
+              if (line.length() > 0 || (c == '\n' && !afterCr)) {
+                handle(type, line.toString());
+              }
+              line.setLength(0);
+              afterCr = c == '\r';
+            } else {
+              afterCr = false;
+              if (line.length() < MAX_LINE) line.append(c);
+            }
+          }
+        }
+        if (line.length() > 0) handle(type, line.toString());
+      } catch (IOException e) {
+        System.err.println(type + ">" + e.getMessage());
+      }
+    }
+  }
+
+  private void handle(String type, String line) {
+    if (capture != null) capture.append(line).append('\n');
+    int percent = -1;
+    Matcher m = ESPTOOL_PROGRESS.matcher(line);
+    if (m.find()) {
+      percent = Integer.parseInt(m.group(2));
+    } else {
+      m = ESPOTA_PROGRESS.matcher(line);
+      if (m.find()) percent = Integer.parseInt(m.group(1));
+    }
+    if (percent >= 0) {
+      progress(type, line, percent);
+      return;
+    }
+    m = ESPTOOL_WROTE.matcher(line);
+    if (m.find()) {
+      synchronized (this) {
+        bytesWritten += Long.parseLong(m.group(1));
+        secondsWriting += Double.parseDouble(m.group(2));
+      }
+    }
+    System.out.println(type + ">" + line);
+  }
+
+  private void progress(String type, String line, int percent) {
+    boolean print;
+    boolean notify;
+    synchronized (this) {
+      // a new esptool region starts again at 0 %
+      if (percent < lastPercent) lastPrintedStep = -1;
+      lastPercent = percent;
+      int step = percent / 10;
+      print = step != lastPrintedStep;
+      if (print) lastPrintedStep = step;
+      long now = System.currentTimeMillis();
+      notify = listener != null && (percent == 100 || now - lastNotified >= PROGRESS_INTERVAL_MS);
+      if (notify) lastNotified = now;
+    }
+    if (print) System.out.println(type + ">" + line.trim());
+    if (notify) listener.progress(percent);
+  }
+}
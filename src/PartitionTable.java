@@ -0,0 +1,291 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  ESP32 partition table, from a partitions.csv or a compiled partitions.bin
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.Files;
+
+/**
+* Partition table with the rules of ESP-IDF gen_esp32part.py: empty
+* offsets follow the previous entry, aligned to 64 KB for app partitions
+* and 4 KB for data partitions, starting after the table at 0x9000.
+* Parsed tables are cached by file path, length and mtime.
+*/
+class PartitionTable {
+  static final int TYPE_APP = 0x00;
+  static final int TYPE_DATA = 0x01;
+
+  static final int SUBTYPE_FACTORY = 0x00;
+  static final int SUBTYPE_OTA_0 = 0x10;
+  static final int SUBTYPE_TEST = 0x20;
+
+  static final int SUBTYPE_OTA = 0x00;
+  static final int SUBTYPE_PHY = 0x01;
+  static final int SUBTYPE_NVS = 0x02;
+  static final int SUBTYPE_COREDUMP = 0x03;
+  static final int SUBTYPE_NVS_KEYS = 0x04;
+  static final int SUBTYPE_EFUSE = 0x05;
+  static final int SUBTYPE_UNDEFINED = 0x06;
+  static final int SUBTYPE_ESPHTTPD = 0x80;
+  static final int SUBTYPE_FAT = 0x81;
+  static final int SUBTYPE_SPIFFS = 0x82;
+  static final int SUBTYPE_LITTLEFS = 0x83;
+
+  static final int FLAG_ENCRYPTED = 0x01;
+  static final int FLAG_READONLY = 0x02;
+
+  static final long TABLE_OFFSET = 0x8000;
+  static final int MAX_SIZE = 0xc00;
+  private static final int ENTRY_SIZE = 32;
+  private static final int MAGIC = 0x50aa;
+  private static final int MAGIC_MD5 = 0xebeb;
+
+  private static final Map<String, Integer> DATA_SUBTYPES = new HashMap<String, Integer>();
+  private static final Map<String, Integer> APP_SUBTYPES = new HashMap<String, Integer>();
+  static {
+    DATA_SUBTYPES.put("ota", SUBTYPE_OTA);
+    DATA_SUBTYPES.put("phy", SUBTYPE_PHY);
+    DATA_SUBTYPES.put("nvs", SUBTYPE_NVS);
+    DATA_SUBTYPES.put("coredump", SUBTYPE_COREDUMP);
+    DATA_SUBTYPES.put("nvs_keys", SUBTYPE_NVS_KEYS);
+    DATA_SUBTYPES.put("efuse", SUBTYPE_EFUSE);
+    DATA_SUBTYPES.put("undefined", SUBTYPE_UNDEFINED);
+    DATA_SUBTYPES.put("esphttpd", SUBTYPE_ESPHTTPD);
+    DATA_SUBTYPES.put("fat", SUBTYPE_FAT);
+    DATA_SUBTYPES.put("spiffs", SUBTYPE_SPIFFS);
+    DATA_SUBTYPES.put("littlefs", SUBTYPE_LITTLEFS);
+    APP_SUBTYPES.put("factory", SUBTYPE_FACTORY);
+    APP_SUBTYPES.put("test", SUBTYPE_TEST);
+    for (int i = 0; i < 16; i++) APP_SUBTYPES.put("ota_" + i, SUBTYPE_OTA_0 + i);
+  }
+
+  private static final Map<String, Object[]> cache = new HashMap<String, Object[]>();
+
+  static class Entry {
+    final String name;
+    final int type;
+    final int subtype;
+    final long offset;
+    final long size;
+    final int flags;
+
+    Entry(String name, int type, int subtype, long offset, long size, int flags) {
+      this.name = name;
+      this.type = type;
+      this.subtype = subtype;
+      this.offset = offset;
+      this.size = size;
+      this.flags = flags;
+    }
+
+    long getEnd() { return offset + size; }
+
+    public String toString() {
+      return String.format("%s (type 0x%02x, subtype 0x%02x) at 0x%x, 0x%x bytes", name, type, subtype, offset, size);
+    }
+  }
+
+  private final File file;
+  private final List<Entry> entries;
+
+  private PartitionTable(File file, List<Entry> entries) {
+    this.file = file;
+    this.entries = Collections.unmodifiableList(entries);
+  }
+
+  File getFile() { return file; }
+  List<Entry> getEntries() { return entries; }
+
+  /**
+  * Loads a .csv or a compiled .bin table, reusing the last result for an
+  * unchanged file.
+  */
+  static PartitionTable load(File file) throws IOException {
+    String path = file.getCanonicalPath();
+    long length = file.length();
+    long mtime = file.lastModified();
+    synchronized (cache) {
+      Object[] cached = cache.get(path);
+      if (cached != null && (Long) cached[0] == length && (Long) cached[1] == mtime) {
+        return (PartitionTable) cached[2];
+      }
+    }
+    PartitionTable table = file.getName().toLowerCase(Locale.ROOT).endsWith(".bin") ? parseBinary(file) : parseCsv(file);
+    synchronized (cache) {
+      cache.put(path, new Object[]{ length, mtime, table });
+    }
+    return table;
+  }
+
+  static PartitionTable parseCsv(File file) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    long nextOffset = TABLE_OFFSET + 0x1000;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      int lineNo = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNo++;
+        int hash = line.indexOf('#');
+        if (hash >= 0) line = line.substring(0, hash);
+        if (line.trim().isEmpty()) continue;
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < fields.length; i++) fields[i] = fields[i].trim();
+        if (fields.length < 5) {
+          throw new IOException(file.getName() + ":" + lineNo + ": expected name,type,subtype,offset,size[,flags]");
+        }
+        try {
+          int type = parseType(fields[1]);
+          int subtype = parseSubtype(type, fields[2]);
+          long align = type == TYPE_APP ? 0x10000 : 0x1000;
+          long offset;
+          if (fields[3].isEmpty()) {
+            offset = (nextOffset + align - 1) / align * align;
+          } else {
+            offset = parseSize(fields[3]);
+          }
+          if (offset % align != 0) {
+            throw new IOException("offset 0x" + Long.toHexString(offset) + " is not aligned to 0x" + Long.toHexString(align));
+          }
+          long size = parseSize(fields[4]);
+          int flags = fields.length > 5 ? parseFlags(fields[5]) : 0;
+          if (size <= 0) throw new IOException("size must be positive");
+          for (Entry e : entries) {
+            if (offset < e.getEnd() && e.offset < offset + size) {
+              throw new IOException("partition overlaps " + e.name);
+            }
+          }
+          entries.add(new Entry(fields[0], type, subtype, offset, size, flags));
+          nextOffset = offset + size;
+        } catch (NumberFormatException e) {
+          throw new IOException(file.getName() + ":" + lineNo + ": invalid number " + e.getMessage());
+        } catch (IOException e) {
+          throw new IOException(file.getName() + ":" + lineNo + ": " + e.getMessage());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return new PartitionTable(file, entries);
+  }
+
+  /**
+  * Reads the 32 byte entries of a compiled table until the MD5 entry or
+  * erased flash.
+  */
+  static PartitionTable parseBinary(File file) throws IOException {
+    byte[] data = Files.readAllBytes(file.toPath());
+    List<Entry> entries = new ArrayList<Entry>();
+    for (int pos = 0; pos + ENTRY_SIZE <= Math.min(data.length, MAX_SIZE); pos += ENTRY_SIZE) {
+      int magic = u16(data, pos);
+      if (magic == MAGIC_MD5 || magic == 0xffff) break;
+      if (magic != MAGIC) {
+        throw new IOException(file.getName() + ": invalid entry magic 0x" + Integer.toHexString(magic) + " at " + pos);
+      }
+      int end = pos + 12;
+      while (end < pos + 28 && data[end] != 0) end++;
+      String name = new String(data, pos + 12, end - pos - 12, "UTF-8");
+      entries.add(new Entry(name, data[pos + 2] & 0xff, data[pos + 3] & 0xff, u32(data, pos + 4), u32(data, pos + 8), (int) u32(data, pos + 28)));
+    }
+    return new PartitionTable(file, entries);
+  }
+
+  Entry find(String name) {
+    for (Entry e : entries) {
+      if (e.name.equals(name)) return e;
+    }
+    return null;
+  }
+
+  Entry find(int type, int subtype) {
+    for (Entry e : entries) {
+      if (e.type == type && e.subtype == subtype) return e;
+    }
+    return null;
+  }
+
+  /**
+  * Data partition for a filesystem: fat for FatFS, spiffs for SPIFFS and
+  * littlefs or else spiffs for LittleFS, as arduino-esp32 mounts LittleFS
+  * on the spiffs subtype by default.
+  */
+  Entry findData(String typefs) {
+    if ("FatFS".equals(typefs)) return find(TYPE_DATA, SUBTYPE_FAT);
+    if ("LittleFS".equals(typefs)) {
+      Entry e = find(TYPE_DATA, SUBTYPE_LITTLEFS);
+      if (e != null) return e;
+    }
+    return find(TYPE_DATA, SUBTYPE_SPIFFS);
+  }
+
+  static int parseType(String value) throws IOException {
+    if (value.equals("app")) return TYPE_APP;
+    if (value.equals("data")) return TYPE_DATA;
+    int type = (int) parseSize(value);
+    if (type < 0 || type > 0xfe) throw new IOException("invalid type " + value);
+    return type;
+  }
+
+  static int parseSubtype(int type, String value) throws IOException {
+    if (value.isEmpty()) return 0;
+    Map<String, Integer> names = type == TYPE_APP ? APP_SUBTYPES : type == TYPE_DATA ? DATA_SUBTYPES : null;
+    if (names != null && names.containsKey(value)) return names.get(value);
+    int subtype = (int) parseSize(value);
+    if (subtype < 0 || subtype > 0xfe) throw new IOException("invalid subtype " + value);
+    return subtype;
+  }
+
+  static int parseFlags(String value) throws IOException {
+    int flags = 0;
+    for (String flag : value.split("[:\\s]+")) {
+      if (flag.isEmpty()) continue;
+      if (flag.equals("encrypted")) flags |= FLAG_ENCRYPTED;
+      else if (flag.equals("readonly")) flags |= FLAG_READONLY;
+      else throw new IOException("unknown flag " + flag);
+    }
+    return flags;
+  }
+
+  /**
+  * Decimal, 0x hex or octal, with an optional K or M suffix.
+  */
+  static long parseSize(String value) {
+    String v = value.trim();
+    long unit = 1;
+    if (v.endsWith("k") || v.endsWith("K")) {
+      unit = 1024;
+      v = v.substring(0, v.length() - 1);
+    } else if (v.endsWith("m") || v.endsWith("M")) {
+      unit = 1024 * 1024;
+      v = v.substring(0, v.length() - 1);
+    }
+    return Long.decode(v.trim()) * unit;
+  }
+
+  private static int u16(byte[] b, int pos) {
+    return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8;
+  }
+
+  private static long u32(byte[] b, int pos) {
+    return (b[pos] & 0xffL) | (b[pos + 1] & 0xffL) << 8 | (b[pos + 2] & 0xffL) << 16 | (b[pos + 3] & 0xffL) << 24;
+  }
+}
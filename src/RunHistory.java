@@ -0,0 +1,267 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Phase timings and figures of every build and upload, kept as JSON lines
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+* Every run appends one flat JSON object to FILE_NAME in the build folder:
+* what was built and where it went, the tool versions, the data and image
+* sizes, the bytes written and the time of each phase as ms_<phase>.
+* Phases are timed with System.nanoTime; ones that run concurrently are
+* recorded side by side. ms_total is the wall time from the start of the
+* work of the job, less what it then waited for other jobs; waits for a
+* busy port or other jobs add up to ms_wait.
+*
+* Flat records keep the file greppable and easy to load elsewhere; the
+* summary reads them back with a pattern instead of a JSON library.
+*/
+class RunHistory {
+  static final String FILE_NAME = "esp32fs-history.jsonl";
+  static final int SUMMARY_RUNS = 20;
+
+  private static final Pattern FIELD = Pattern.compile("\"([A-Za-z0-9_]+)\":(\"(?:[^\"\\\\]|\\\\.)*\"|[-0-9.]+|true|false|null)");
+  // phases in the order they happen, others are listed after them
+  private static final String[] PHASE_ORDER = { "build_folder", "tools", "partition", "builder", "connect", "build", "wait", "upload", "total" };
+
+  /**
+  * Times and figures of one run, filled in from several threads.
+  */
+  static class Record {
+    // 0 until the work of the job starts
+    private long started = 0;
+    private long waitedSinceStart = 0;
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private long writtenBytes = 0;
+    private long writeNanos = 0;
+
+    Record() {
+      fields.put("time", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+    }
+
+    /**
+    * Adds the time since start, a System.nanoTime value, to a phase.
+    */
+    synchronized void phase(String name, long start) {
+      Long before = phases.get(name);
+      phases.put(name, (before != null ? before : 0) + System.nanoTime() - start);
+    }
+
+    /**
+    * Starts the clock of ms_total, unless it runs already: time the job
+    * spent queued before does not count.
+    */
+    synchronized void start() {
+      if (started == 0) started = System.nanoTime();
+    }
+
+    /**
+    * Adds the time since start to the wait phase; a wait after the clock
+    * started is left out of ms_total.
+    */
+    synchronized void waited(long start) {
+      long now = System.nanoTime();
+      Long before = phases.get("wait");
+      phases.put("wait", (before != null ? before : 0) + now - start);
+      if (started != 0) waitedSinceStart += now - Math.max(start, started);
+    }
+
+    /**
+    * Ends the run: ms_total becomes the wall time since start(), less the
+    * waits in between. A job that never started has no ms_total.
+    */
+    synchronized void finish() {
+      phases.remove("total");
+      if (started != 0) phases.put("total", System.nanoTime() - started - waitedSinceStart);
+    }
+
+    /**
+    * The phases as "name 12 ms, ...", for the console.
+    */
+    synchronized String describePhases() {
+      StringBuilder text = new StringBuilder();
+      for (Map.Entry<String, Long> phase : phases.entrySet()) {
+        if (text.length() > 0) text.append(", ");
+        text.append(phase.getKey()).append(" ").append(phase.getValue() / 1000000).append(" ms");
+      }
+      return text.toString();
+    }
+
+    synchronized void put(String key, Object value) {
+      fields.put(key, value);
+    }
+
+    /**
+    * Bytes sent to a board and the time the transfer took.
+    */
+    synchronized void transfer(long bytes, long nanos) {
+      writtenBytes += bytes;
+      writeNanos += nanos;
+    }
+
+    synchronized String toJson() {
+      StringBuilder json = new StringBuilder("{");
+      for (Map.Entry<String, Object> field : fields.entrySet()) {
+        append(json, field.getKey(), field.getValue());
+      }
+      if (writtenBytes > 0) {
+        append(json, "written_bytes", writtenBytes);
+        append(json, "transfer_kbps", writeNanos > 0 ? Math.round(writtenBytes * 1e9 / writeNanos / 1024) : 0);
+      }
+      for (Map.Entry<String, Long> phase : phases.entrySet()) {
+        append(json, "ms_" + phase.getKey(), phase.getValue() / 1000000);
+      }
+      return json.append("}").toString();
+    }
+
+    private static void append(StringBuilder json, String key, Object value) {
+      if (json.length() > 1) json.append(",");
+      json.append("\"").append(key).append("\":");
+      if (value == null || value instanceof Number || value instanceof Boolean) {
+        json.append(value);
+      } else {
+        json.append("\"");
+        for (char c : value.toString().toCharArray()) {
+          if (c == '"' || c == '\\') json.append('\\').append(c);
+          else if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+          else json.append(c);
+        }
+        json.append("\"");
+      }
+    }
+  }
+
+  static long now() {
+    return System.nanoTime();
+  }
+
+  /**
+  * Appends record as one line; concurrent jobs of the session do not
+  * interleave.
+  */
+  static synchronized void append(File file, Record record) throws IOException {
+    File parent = file.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create " + parent);
+    }
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+      out.write(record.toJson());
+      out.write("\n");
+    }
+  }
+
+  /**
+  * Records of file, oldest first, as field name to raw value (strings
+  * without their quotes). Lines that do not parse are skipped.
+  */
+  static List<Map<String, String>> read(File file) throws IOException {
+    List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+    if (!file.isFile()) return records;
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        Map<String, String> record = new LinkedHashMap<String, String>();
+        Matcher m = FIELD.matcher(line);
+        while (m.find()) {
+          String value = m.group(2);
+          if (value.startsWith("\"")) value = unescape(value.substring(1, value.length() - 1));
+          record.put(m.group(1), value);
+        }
+        if (!record.isEmpty()) records.add(record);
+      }
+    }
+    return records;
+  }
+
+  /**
+  * Undoes the escapes of Record.toJson, the hex ones of control
+  * characters included.
+  */
+  private static String unescape(String text) {
+    StringBuilder plain = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\' && i + 1 < text.length()) {
+        c = text.charAt(++i);
+        if (c == 'u' && i + 4 < text.length()) {
+          c = (char) Integer.parseInt(text.substring(i + 1, i + 5), 16);
+          i += 4;
+        }
+      }
+      plain.append(c);
+    }
+    return plain.toString();
+  }
+
+  /**
+  * The last runs of file one per line, then the average and the slowest
+  * time of every phase over them.
+  */
+  static String summary(File file, int runs) throws IOException {
+    List<Map<String, String>> records = read(file);
+    if (records.isEmpty()) return "No runs recorded in " + file;
+    records = records.subList(Math.max(0, records.size() - runs), records.size());
+
+    List<String> phases = new ArrayList<String>();
+    for (String phase : PHASE_ORDER) phases.add("ms_" + phase);
+    for (Map<String, String> record : records) {
+      for (String key : record.keySet()) {
+        if (key.startsWith("ms_") && !phases.contains(key)) phases.add(phases.size() - 1, key);
+      }
+    }
+
+    StringBuilder text = new StringBuilder();
+    text.append(String.format("%-24s %-8s %-10s %9s %9s %9s %9s%n", "time", "fs", "result", "image KB", "KB/s", "build ms", "total ms"));
+    for (Map<String, String> record : records) {
+      text.append(String.format("%-24s %-8s %-10s %9s %9s %9s %9s%n", value(record, "time"), value(record, "fs"), value(record, "result"),
+        record.containsKey("image_bytes") ? "" + Long.parseLong(record.get("image_bytes")) / 1024 : "-",
+        value(record, "transfer_kbps"), value(record, "ms_build"), value(record, "ms_total")));
+    }
+    text.append(String.format("%nPhases over the last %d runs:%n", records.size()));
+    text.append(String.format("%-16s %9s %9s %6s%n", "phase", "avg ms", "max ms", "runs"));
+    for (String phase : phases) {
+      long sum = 0, max = 0;
+      int count = 0;
+      for (Map<String, String> record : records) {
+        if (!record.containsKey(phase)) continue;
+        long ms = (long) Double.parseDouble(record.get(phase));
+        sum += ms;
+        max = Math.max(max, ms);
+        count++;
+      }
+      if (count > 0) text.append(String.format("%-16s %9d %9d %6d%n", phase.substring(3), sum / count, max, count));
+    }
+    Map<String, String> last = records.get(records.size() - 1);
+    text.append(String.format("%nLast run: mk tool %s, esptool %s, %s bytes in %s files%n", value(last, "mktool"), value(last, "esptool"),
+      value(last, "data_bytes"), value(last, "data_files")));
+    return text.toString();
+  }
+
+  private static String value(Map<String, String> record, String key) {
+    String value = record.get(key);
+    return value != null && !value.equals("null") ? value : "-";
+  }
+}
@@ -0,0 +1,60 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Serial port used by the in-process ESP loader
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+
+/**
+* The few serial port operations EspLoader needs. The jssc implementation
+* is loaded by name, so the engine still runs (and falls back to esptool)
+* where the jssc library of the IDE is not on the class path.
+*/
+interface SerialLink extends Closeable {
+  String JSSC_LINK = "com.esp32.mkspiffs.JsscSerialLink";
+
+  void setBaud(int baud) throws IOException;
+
+  void setSignals(boolean dtr, boolean rts) throws IOException;
+
+  void write(byte[] data) throws IOException;
+
+  /**
+  * Reads what is available into buf, waiting up to timeoutMs for the
+  * first byte. Returns 0 on timeout.
+  */
+  int read(byte[] buf, int timeoutMs) throws IOException;
+
+  /**
+  * Drops pending input.
+  */
+  void purge() throws IOException;
+
+  static SerialLink open(String port, int baud) throws IOException {
+    try {
+      return (SerialLink) Class.forName(JSSC_LINK).getConstructor(String.class, int.class).newInstance(port, baud);
+    } catch (java.lang.reflect.InvocationTargetException e) {
+      Throwable cause = e.getCause();
+      throw cause instanceof IOException ? (IOException) cause : new IOException(cause.toString(), cause);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      throw new IOException("serial library not available (" + e + ")", e);
+    }
+  }
+}
@@ -0,0 +1,311 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  SPIFFS image writer, replaces the external mkspiffs tool
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+* Writes a SPIFFS image with the layout used by the arduino-esp32 build of
+* mkspiffs: 16 bit object/span/page ids, 32 byte names, 4 byte metadata,
+* magic with length. Files are laid out one after another, each as an
+* object index header, its data pages and further object index pages.
+* Only one block is kept in memory, file contents are streamed into it
+* page by page.
+*/
+class SpiffsImageBuilder implements FsImageBuilder {
+  static final int OBJ_NAME_LEN = 32;
+  static final int OBJ_META_LEN = 4;
+
+  static final int PAGE_HEADER_SIZE = 5;          // obj_id, span_ix, flags
+  static final int OBJ_IX_HEADER_SIZE = PAGE_HEADER_SIZE + 3 + 4 + 1 + OBJ_NAME_LEN + OBJ_META_LEN;
+  static final int OBJ_IX_PAGE_HEADER_SIZE = PAGE_HEADER_SIZE + 3;
+
+  static final int OBJ_ID_IX_FLAG = 0x8000;
+  static final int TYPE_FILE = 1;
+  static final int UNDEFINED_LEN = 0xffffffff;
+
+  static final int PH_FLAG_USED = 1 << 0;
+  static final int PH_FLAG_FINAL = 1 << 1;
+  static final int PH_FLAG_INDEX = 1 << 2;
+
+  private static final int DATA_FLAGS = 0xff & ~(PH_FLAG_USED | PH_FLAG_FINAL);
+  private static final int INDEX_FLAGS = 0xff & ~(PH_FLAG_USED | PH_FLAG_FINAL | PH_FLAG_INDEX);
+
+  private final int pageSize;
+  private final int blockSize;
+  private final int blockCount;
+  private final int pagesPerBlock;
+  private final int lookupPages;
+
+  private final byte[] block;
+  private FileChannel out;
+  private int currentBlock;
+  private int nextPage;
+  private int nextObjId;
+
+  SpiffsImageBuilder(long page, long block, long size) {
+    this.pageSize = (int) page;
+    this.blockSize = (int) block;
+    this.blockCount = (int) (size / block);
+    this.pagesPerBlock = blockSize / pageSize;
+    this.lookupPages = Math.max(1, (pagesPerBlock * 2) / pageSize);
+    if (page <= OBJ_IX_HEADER_SIZE || block % page != 0 || blockCount < 2) {
+      throw new IllegalArgumentException("Invalid SPIFFS geometry: page " + page + ", block " + block + ", size " + size);
+    }
+    if (lookupEntries() * 2 > lookupPages * pageSize - 4) {
+      throw new IllegalArgumentException("Invalid SPIFFS geometry: lookup table overlaps magic");
+    }
+    if ((long) blockCount * pagesPerBlock > 0xffff) {
+      throw new IllegalArgumentException("SPIFFS image has too many pages for 16 bit page indexes");
+    }
+    this.block = new byte[blockSize];
+  }
+
+  public String getId() {
+    return "java-spiffs-1";
+  }
+
+  int lookupEntries() {
+    return pagesPerBlock - lookupPages;
+  }
+
+  int dataPageSize() {
+    return pageSize - PAGE_HEADER_SIZE;
+  }
+
+  int headerIndexLength() {
+    return (pageSize - OBJ_IX_HEADER_SIZE) / 2;
+  }
+
+  int indexLength() {
+    return (pageSize - OBJ_IX_PAGE_HEADER_SIZE) / 2;
+  }
+
+  /**
+  * Number of data pages and object index pages one file takes.
+  */
+  int pagesFor(long size) {
+    int dataPages = (int) ((size + dataPageSize() - 1) / dataPageSize());
+    int extra = Math.max(0, dataPages - headerIndexLength());
+    return dataPages + 1 + (extra + indexLength() - 1) / indexLength();
+  }
+
+  /**
+  * Pages that can be allocated; SPIFFS refuses to start a new block when
+  * less than two blocks are free.
+  */
+  long usablePages() {
+    return (long) (blockCount - 1) * lookupEntries();
+  }
+
+  public void build(File dataFolder, File imageFile) throws IOException {
+    List<String> names = new ArrayList<String>();
+    List<File> files = new ArrayList<File>();
+    collect(dataFolder, "", names, files);
+
+    long needed = 0;
+    for (File f : files) needed += pagesFor(f.length());
+    if (needed > usablePages()) {
+      throw new IOException("SPIFFS image full: " + needed + " pages needed, " + usablePages() + " available");
+    }
+
+    out = FileChannel.open(imageFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      currentBlock = 0;
+      nextPage = lookupPages;
+      nextObjId = 1;
+      startBlock();
+      for (int i = 0; i < files.size(); i++) {
+        addFile(names.get(i), files.get(i));
+      }
+      // flush the partially used block and format the rest
+      while (currentBlock < blockCount) {
+        flushBlock();
+        if (currentBlock < blockCount) startBlock();
+      }
+    } finally {
+      out.close();
+      out = null;
+    }
+  }
+
+  private void collect(File dir, String prefix, List<String> names, List<File> files) throws IOException {
+    File[] entries = dir.listFiles();
+    if (entries == null) return;
+    Arrays.sort(entries, new Comparator<File>() {
+      public int compare(File a, File b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    for (File f : entries) {
+      if (f.getName().startsWith(".")) continue;
+      String name = prefix + "/" + f.getName();
+      if (f.isDirectory()) {
+        collect(f, name, names, files);
+      } else if (f.isFile()) {
+        if (name.getBytes("UTF-8").length > OBJ_NAME_LEN - 1) {
+          throw new IOException("SPIFFS file name too long (max " + (OBJ_NAME_LEN - 1) + "): " + name);
+        }
+        names.add(name);
+        files.add(f);
+      }
+    }
+  }
+
+  private void addFile(String name, File file) throws IOException {
+    long size = file.length();
+    int objId = nextObjId++;
+    int dataPages = (int) ((size + dataPageSize() - 1) / dataPageSize());
+
+    // plan the page numbers first, index pages point forward to data pages
+    int[] dataPix = new int[dataPages];
+    List<Integer> indexPix = new ArrayList<Integer>();
+    int[] plan = { nextPage };
+    indexPix.add(take(plan));
+    for (int span = 0; span < dataPages; span++) {
+      if (span >= headerIndexLength() && (span - headerIndexLength()) % indexLength() == 0) {
+        indexPix.add(take(plan));
+      }
+      dataPix[span] = take(plan);
+    }
+
+    InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+    try {
+      int ix = 0;
+      writeIndexHeader(indexPix.get(ix++), objId, name, size, dataPix);
+      for (int span = 0; span < dataPages; span++) {
+        if (span >= headerIndexLength() && (span - headerIndexLength()) % indexLength() == 0) {
+          writeIndexPage(indexPix.get(ix), objId, ix, dataPix);
+          ix++;
+        }
+        int len = (int) Math.min(dataPageSize(), size - (long) span * dataPageSize());
+        writeDataPage(dataPix[span], objId, span, in, len);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+  * Returns the next free page and advances past lookup pages.
+  */
+  private int take(int[] cursor) {
+    int pix = cursor[0];
+    int next = pix + 1;
+    if (next % pagesPerBlock == 0) next += lookupPages;
+    cursor[0] = next;
+    return pix;
+  }
+
+  private int pageOffset(int pix) throws IOException {
+    while (pix / pagesPerBlock != currentBlock) {
+      flushBlock();
+      startBlock();
+    }
+    nextPage = pix + 1;
+    if (nextPage % pagesPerBlock == 0) nextPage += lookupPages;
+    return (pix % pagesPerBlock) * pageSize;
+  }
+
+  private void setLookup(int pix, int objId) {
+    int entry = pix % pagesPerBlock - lookupPages;
+    putShort(entry * 2, objId);
+  }
+
+  private void writeIndexHeader(int pix, int objId, String name, long size, int[] dataPix) throws IOException {
+    int off = pageOffset(pix);
+    setLookup(pix, objId | OBJ_ID_IX_FLAG);
+    putShort(off, objId | OBJ_ID_IX_FLAG);
+    putShort(off + 2, 0);
+    block[off + 4] = (byte) INDEX_FLAGS;
+    putInt(off + 8, size == 0 ? UNDEFINED_LEN : (int) size);
+    block[off + 12] = (byte) TYPE_FILE;
+    byte[] n = name.getBytes("UTF-8");
+    Arrays.fill(block, off + 13, off + 13 + OBJ_NAME_LEN, (byte) 0);
+    System.arraycopy(n, 0, block, off + 13, n.length);
+    // metadata is left erased, as SPIFFS does without SPIFFS_OBJ_META_LEN data
+    int entries = off + OBJ_IX_HEADER_SIZE;
+    for (int i = 0; i < headerIndexLength() && i < dataPix.length; i++) {
+      putShort(entries + i * 2, dataPix[i]);
+    }
+  }
+
+  private void writeIndexPage(int pix, int objId, int ixSpan, int[] dataPix) throws IOException {
+    int off = pageOffset(pix);
+    setLookup(pix, objId | OBJ_ID_IX_FLAG);
+    putShort(off, objId | OBJ_ID_IX_FLAG);
+    putShort(off + 2, ixSpan);
+    block[off + 4] = (byte) INDEX_FLAGS;
+    int first = headerIndexLength() + (ixSpan - 1) * indexLength();
+    int entries = off + OBJ_IX_PAGE_HEADER_SIZE;
+    for (int i = 0; i < indexLength() && first + i < dataPix.length; i++) {
+      putShort(entries + i * 2, dataPix[first + i]);
+    }
+  }
+
+  private void writeDataPage(int pix, int objId, int span, InputStream in, int len) throws IOException {
+    int off = pageOffset(pix);
+    setLookup(pix, objId);
+    putShort(off, objId);
+    putShort(off + 2, span);
+    block[off + 4] = (byte) DATA_FLAGS;
+    int pos = off + PAGE_HEADER_SIZE;
+    int end = pos + len;
+    while (pos < end) {
+      int n = in.read(block, pos, end - pos);
+      if (n < 0) throw new EOFException("File changed while building image");
+      pos += n;
+    }
+  }
+
+  private void startBlock() {
+    Arrays.fill(block, (byte) 0xff);
+    // erase count and magic at the end of the lookup pages
+    int end = lookupPages * pageSize;
+    putShort(end - 4, 0);
+    putShort(end - 2, (0x20140529 ^ pageSize ^ (blockCount - currentBlock)) & 0xffff);
+  }
+
+  private void flushBlock() throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(block);
+    long pos = (long) currentBlock * blockSize;
+    while (buf.hasRemaining()) {
+      pos += out.write(buf, pos);
+    }
+    currentBlock++;
+  }
+
+  private void putShort(int off, int v) {
+    block[off] = (byte) v;
+    block[off + 1] = (byte) (v >> 8);
+  }
+
+  private void putInt(int off, int v) {
+    block[off] = (byte) v;
+    block[off + 1] = (byte) (v >> 8);
+    block[off + 2] = (byte) (v >> 16);
+    block[off + 3] = (byte) (v >> 24);
+  }
+}
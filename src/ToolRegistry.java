@@ -0,0 +1,174 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Resolves and remembers the helper tools of the esp32 core
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+* Finds esptool, espota and the mk tools once per platform folder and core
+* version, records their --version output and keeps the result in a
+* properties file. A remembered tool costs one stat to check: it is looked
+* up again when its length or mtime changed or it is gone.
+*/
+class ToolRegistry {
+  private static final long VERSION_TIMEOUT_MS = 5000;
+  private static final Map<String, ToolRegistry> registries = new HashMap<String, ToolRegistry>();
+
+  private final File platformFolder;
+  private final String scope;
+  private final File storeFile;
+  private final String[] extensions;
+  private final String python;
+  private final Properties store = new Properties();
+
+  private ToolRegistry(File platformFolder, String coreVersion, String os, File storeFile) {
+    this.platformFolder = platformFolder;
+    this.storeFile = storeFile;
+    MessageDigest md = DataManifest.newDigest();
+    DataManifest.update(md, platformFolder.getAbsolutePath() + "|" + coreVersion);
+    this.scope = DataManifest.toHex(md.digest()).substring(0, 16);
+    if ("windows".equals(os)) {
+      extensions = new String[]{ ".exe", ".py" };
+      python = "python.exe";
+    } else if ("macosx".equals(os)) {
+      extensions = new String[]{ "", ".py" };
+      python = "python3";
+    } else {
+      extensions = new String[]{ ".py", "" };
+      python = "python3";
+    }
+    if (storeFile.isFile()) {
+      try (InputStream in = new FileInputStream(storeFile)) {
+        store.load(in);
+      } catch (IOException e) {
+        store.clear();
+      }
+    }
+  }
+
+  /**
+  * Returns the registry of a platform, shared by all operations of the
+  * IDE session.
+  */
+  static ToolRegistry get(File platformFolder, String coreVersion, String os, File storeFile) {
+    String key = platformFolder.getAbsolutePath() + "|" + coreVersion + "|" + os;
+    synchronized (registries) {
+      ToolRegistry registry = registries.get(key);
+      if (registry == null) {
+        registry = new ToolRegistry(platformFolder, coreVersion, os, storeFile);
+        registries.put(key, registry);
+      }
+      return registry;
+    }
+  }
+
+  /**
+  * Finds name with one of the extensions of the OS in dirs, which are
+  * relative to the platform folder or absolute. Null dirs are skipped.
+  * Returns null when the tool is not found; misses are not remembered.
+  */
+  synchronized File find(String name, String... dirs) {
+    String key = scope + "." + name;
+    String path = store.getProperty(key + ".path");
+    if (path != null) {
+      File file = new File(path);
+      if (file.isFile() && stamp(file).equals(store.getProperty(key + ".stamp"))) {
+        return file;
+      }
+    }
+    for (String dir : dirs) {
+      if (dir == null || dir.isEmpty()) continue;
+      File folder = new File(dir).isAbsolute() ? new File(dir) : new File(platformFolder, dir);
+      for (String ext : extensions) {
+        File file = new File(folder, name + ext);
+        if (file.isFile()) {
+          store.setProperty(key + ".path", file.getAbsolutePath());
+          store.setProperty(key + ".stamp", stamp(file));
+          store.setProperty(key + ".version", probeVersion(file));
+          save();
+          return file;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+  * First line of the --version output recorded when the tool was found.
+  */
+  synchronized String getVersion(File tool) {
+    for (String name : store.stringPropertyNames()) {
+      if (name.startsWith(scope + ".") && name.endsWith(".path") && store.getProperty(name).equals(tool.getAbsolutePath())) {
+        return store.getProperty(name.substring(0, name.length() - ".path".length()) + ".version", "unknown");
+      }
+    }
+    return "unknown";
+  }
+
+  /**
+  * Command prefix to run a tool, with the python interpreter for scripts.
+  */
+  String[] command(File tool) {
+    if (tool.getName().endsWith(".py")) {
+      return new String[]{ python, tool.getAbsolutePath() };
+    }
+    return new String[]{ tool.getAbsolutePath() };
+  }
+
+  private String probeVersion(File tool) {
+    List<String> args = new ArrayList<String>(Arrays.asList(command(tool)));
+    args.add("--version");
+    try {
+      Process proc = new ProcessBuilder(args).redirectErrorStream(true).start();
+      proc.getOutputStream().close();
+      if (!proc.waitFor(VERSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        proc.destroy();
+        return "unknown";
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(proc.getInputStream()));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) return proc.exitValue() == 0 ? line : "unknown";
+      }
+    } catch (Exception e) {
+      // not every tool knows --version
+    }
+    return "unknown";
+  }
+
+  private static String stamp(File file) {
+    return file.length() + ":" + file.lastModified();
+  }
+
+  private void save() {
+    File parent = storeFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) return;
+    try (OutputStream out = new FileOutputStream(storeFile)) {
+      store.store(out, "esp32fs resolved tools");
+    } catch (IOException e) {
+      System.err.println("tools  : " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the serial loader client
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* EspLoader against FakeDevice, with the ROM and with a stub loaded from
+* a stub json file of the esptool layout.
+*/
+public class EspLoaderTest {
+  private static final int ADDRESS = 0x290000;
+  private static final int TEXT_START = 0x40080000;
+  private static final int DATA_START = 0x3ffb0000;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FakeDevice device;
+  private File image;
+  private File stubFile;
+  private byte[] text;
+
+  @Before
+  public void setUp() throws IOException {
+    device = new FakeDevice(4 << 20);
+    // random data has its share of 0xc0 and 0xdb to escape, the zeros
+    // inflate to a lot more than their block, the erased middle is left
+    // out of a sparse write
+    byte[] data = new byte[300 * 1024];
+    new Random(17).nextBytes(data);
+    Arrays.fill(data, 40 * 1024, 90 * 1024, (byte) 0);
+    Arrays.fill(data, 100 * 1024, 250 * 1024, (byte) 0xff);
+    image = file(tmp.getRoot(), "image.bin", data);
+
+    text = new byte[EspLoader.MEM_BLOCK_SIZE + 1000];
+    new Random(3).nextBytes(text);
+    byte[] stubData = new byte[300];
+    new Random(4).nextBytes(stubData);
+    stubFile = tmp.newFile("esp32.json");
+    PrintWriter w = new PrintWriter(stubFile, "UTF-8");
+    try {
+      w.print("{\n  \"entry\": " + (TEXT_START + 0x400L) + ",\n"
+        + "  \"text\": \"" + Base64.getEncoder().encodeToString(text) + "\",\n  \"text_start\": " + (TEXT_START & 0xffffffffL) + ",\n"
+        + "  \"data\": \"" + Base64.getEncoder().encodeToString(stubData) + "\",\n  \"data_start\": " + (DATA_START & 0xffffffffL) + "\n}\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  private List<Integer> ops(int... wanted) {
+    List<Integer> filter = new ArrayList<Integer>();
+    for (int op : wanted) filter.add(op);
+    List<Integer> found = new ArrayList<Integer>();
+    for (int op : device.ops) {
+      if (filter.contains(op)) found.add(op);
+    }
+    return found;
+  }
+
+  private byte[] flashed(int address, int length) {
+    return Arrays.copyOfRange(device.flash, address, address + length);
+  }
+
+  @Test
+  public void slipEscapesDelimiters() throws IOException {
+    byte[] framed = EspLoader.slip(new byte[]{ 1, (byte) 0xc0, (byte) 0xdb, 2 });
+    assertArrayEquals(new byte[]{ (byte) 0xc0, 1, (byte) 0xdb, (byte) 0xdc, (byte) 0xdb, (byte) 0xdd, 2, (byte) 0xc0 }, framed);
+    // and back: a register value made of both
+    device.registers.put(0x3ff5a000, 0xdbc0c0db);
+    EspLoader loader = EspLoader.connect(device, "esp32", null);
+    assertEquals(0xdbc0c0db, loader.readReg(0x3ff5a000));
+  }
+
+  @Test
+  public void syncRetriesUntilTheRomAnswers() throws IOException {
+    device.syncsToIgnore = 9;
+    EspLoader loader = EspLoader.connect(device, "esp32", null);
+    assertEquals("esp32", loader.getChip());
+    assertEquals(10, ops(EspLoader.SYNC).size());
+  }
+
+  @Test
+  public void noSyncFails() {
+    device.syncsToIgnore = Integer.MAX_VALUE;
+    try {
+      EspLoader.connect(device, "esp32", null);
+      fail("connected without SYNC");
+    } catch (IOException e) {
+      assertEquals("Failed to connect to esp32: no answer to SYNC", e.getMessage());
+    }
+    // three resets with seven tries each
+    assertEquals(21, ops(EspLoader.SYNC).size());
+  }
+
+  @Test
+  public void otherChipStopsAfterSync() throws IOException {
+    device.magic = 0x00000009;
+    EspLoader loader = EspLoader.connect(device, "esp32", stubFile);
+    assertEquals("esp32s3", loader.getChip());
+    assertFalse(loader.isChip("esp32"));
+    assertTrue(loader.isChip("esp32-s3"));
+    assertTrue(ops(EspLoader.MEM_BEGIN, EspLoader.SPI_ATTACH).isEmpty());
+  }
+
+  @Test
+  public void stubIsLoadedInBlocks() throws IOException {
+    EspLoader loader = EspLoader.connect(device, "esp32", stubFile);
+    assertTrue(loader.isStub());
+    assertEquals(Arrays.asList(EspLoader.MEM_BEGIN, EspLoader.MEM_DATA, EspLoader.MEM_DATA, EspLoader.MEM_BEGIN, EspLoader.MEM_DATA, EspLoader.MEM_END),
+      ops(EspLoader.MEM_BEGIN, EspLoader.MEM_DATA, EspLoader.MEM_END));
+    assertArrayEquals(text, device.memory.get(TEXT_START));
+    assertEquals(300, device.memory.get(DATA_START).length);
+    // the flash is attached through the stub
+    assertEquals(EspLoader.SPI_ATTACH, (int) device.ops.get(device.ops.size() - 2));
+  }
+
+  @Test
+  public void romWritesDeflatedSegments() throws IOException {
+    EspLoader loader = EspLoader.connect(device, "esp32", null);
+    loader.write(image, ADDRESS, null, null);
+    assertArrayEquals(read(image), flashed(ADDRESS, (int) image.length()));
+    assertEquals(FsEngine.md5Hex(image), DataManifest.toHex(loader.flashMd5(ADDRESS, image.length())));
+    // one BEGIN per 256 KB segment, a single END that stays in the loader
+    List<Integer> defl = ops(EspLoader.FLASH_DEFL_BEGIN, EspLoader.FLASH_DEFL_END);
+    assertEquals(Arrays.asList(EspLoader.FLASH_DEFL_BEGIN, EspLoader.FLASH_DEFL_BEGIN, EspLoader.FLASH_DEFL_END), defl);
+    int[] first = device.deflBegins.get(0);
+    assertEquals(4, first.length);
+    assertEquals(EspLoader.SEGMENT, first[0]);
+    assertEquals(EspLoader.ROM_WRITE_SIZE, first[2]);
+    assertEquals(ADDRESS, first[3]);
+    int[] second = device.deflBegins.get(1);
+    int rest = (int) image.length() - EspLoader.SEGMENT;
+    assertEquals((rest + EspLoader.ROM_WRITE_SIZE - 1) / EspLoader.ROM_WRITE_SIZE * EspLoader.ROM_WRITE_SIZE, second[0]);
+    assertEquals(ADDRESS + EspLoader.SEGMENT, second[3]);
+  }
+
+  @Test
+  public void newerRomsTakeTheEncryptedWord() throws IOException {
+    device.magic = 0x00000009;
+    EspLoader loader = EspLoader.connect(device, "esp32s3", null);
+    loader.write(image, ADDRESS, null, null);
+    assertEquals(5, device.deflBegins.get(0).length);
+    assertArrayEquals(read(image), flashed(ADDRESS, (int) image.length()));
+  }
+
+  @Test
+  public void stubWritesRunsAfterAnErase() throws IOException {
+    Arrays.fill(device.flash, ADDRESS, ADDRESS + (int) image.length(), (byte) 0x55);
+    EspLoader loader = EspLoader.connect(device, "esp32", stubFile);
+    loader.changeBaud(921600);
+    assertEquals(921600, device.baud);
+    List<FlashHistory.Run> runs = FlashHistory.populatedRuns(image);
+    long[] span = FsEngine.eraseSpan(runs, image.length());
+    loader.eraseRegion(ADDRESS + span[0], span[1] - span[0]);
+    final List<Long> progress = new ArrayList<Long>();
+    loader.write(image, ADDRESS, runs, new EspLoader.Progress() {
+      public void written(long done, long total) {
+        progress.add(done);
+      }
+    });
+    assertArrayEquals(read(image), flashed(ADDRESS, (int) image.length()));
+    assertEquals(FsEngine.md5Hex(image), DataManifest.toHex(loader.flashMd5(ADDRESS, image.length())));
+    // the stub gets the plain size and 16 KB blocks
+    int[] first = device.deflBegins.get(0);
+    assertEquals(runs.get(0).length < EspLoader.SEGMENT ? runs.get(0).length : EspLoader.SEGMENT, first[0]);
+    assertEquals(EspLoader.STUB_WRITE_SIZE, first[2]);
+    assertEquals(FlashHistory.totalLength(runs), (long) progress.get(progress.size() - 1));
+  }
+
+  /**
+  * A segment of zeros is one small block that the stub takes seconds to
+  * erase and write, the wait grows with what the block inflates to.
+  */
+  @Test
+  public void slowBlockGetsTimeForItsPlainSize() throws IOException {
+    File zeros = file(tmp.getRoot(), "zeros.bin", new byte[EspLoader.SEGMENT]);
+    EspLoader loader = EspLoader.connect(device, "esp32", stubFile);
+    device.writeMsPerMb = 16000;
+    loader.write(zeros, ADDRESS, null, null);
+    assertArrayEquals(read(zeros), flashed(ADDRESS, EspLoader.SEGMENT));
+    assertEquals(Arrays.asList(EspLoader.FLASH_DEFL_DATA), ops(EspLoader.FLASH_DEFL_DATA));
+  }
+
+  @Test
+  public void eraseRegionNeedsTheStub() throws IOException {
+    EspLoader loader = EspLoader.connect(device, "esp32", null);
+    try {
+      loader.eraseRegion(ADDRESS, 4096);
+      fail("ROM erase_region");
+    } catch (IOException e) {
+      assertEquals("erase_region needs the flasher stub", e.getMessage());
+    }
+  }
+
+  @Test
+  public void droppedBlockTimesOut() throws IOException {
+    EspLoader loader = EspLoader.connect(device, "esp32", stubFile);
+    device.dataBlocksToDrop = 1;
+    try {
+      loader.write(image, ADDRESS, null, null);
+      fail("no answer not noticed");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out waiting for"));
+    }
+    assertEquals(EspLoader.FLASH_DEFL_DATA, (int) device.ops.get(device.ops.size() - 1));
+  }
+}
@@ -0,0 +1,149 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the network upload
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* EspOta against FakeOtaBoard on the loopback interface.
+*/
+public class EspOtaTest {
+  private static final int TIMEOUT_MS = 1000;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private FakeOtaBoard board;
+  private File image;
+
+  @Before
+  public void setUp() throws IOException {
+    board = new FakeOtaBoard();
+    image = file(tmp.getRoot(), "image.bin", 1 << 20);
+  }
+
+  private void upload(String password, EspLoader.Progress progress) throws IOException {
+    board.start();
+    try {
+      new EspOta(board.getPort(), TIMEOUT_MS, 16 * 1024, 256 * 1024, 0, password).upload("127.0.0.1", image, EspOta.SPIFFS, progress);
+    } finally {
+      try {
+        board.join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void uploadFails(String password, String message) {
+    try {
+      upload(password, null);
+      fail("upload did not fail");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+
+  @Test
+  public void streamsTheImage() throws Exception {
+    final List<Long> progress = new ArrayList<Long>();
+    upload(null, new EspLoader.Progress() {
+      public void written(long done, long total) {
+        progress.add(done);
+      }
+    });
+    assertNull(board.failure);
+    assertArrayEquals(read(image), board.received.toByteArray());
+    assertEquals(image.length(), (long) progress.get(progress.size() - 1));
+    assertEquals(64, progress.size());
+  }
+
+  @Test
+  public void invitationCarriesSizeAndMd5() throws Exception {
+    upload(null, null);
+    assertEquals("" + EspOta.SPIFFS, board.invitation[0]);
+    assertEquals("" + image.length(), board.invitation[2]);
+    assertEquals(md5(image), board.invitation[3]);
+  }
+
+  @Test
+  public void answersTheAuthChallenge() throws Exception {
+    board.password = "secret";
+    upload("secret", null);
+    assertTrue(board.authenticated);
+    assertArrayEquals(read(image), board.received.toByteArray());
+  }
+
+  @Test
+  public void wrongPasswordFails() {
+    board.password = "secret";
+    uploadFails("guess", "authentication failed");
+    assertFalse(board.authenticated);
+  }
+
+  @Test
+  public void missingPasswordFails() {
+    board.password = "secret";
+    uploadFails(null, "the board asks for a password");
+  }
+
+  @Test
+  public void refusedInvitationFails() {
+    board.refusal = "ERR busy";
+    uploadFails(null, "invitation refused: ERR busy");
+  }
+
+  @Test
+  public void silentBoardFails() {
+    board.silent = true;
+    uploadFails(null, "no answer from 127.0.0.1:" + board.getPort());
+  }
+
+  @Test
+  public void boardErrorFails() {
+    board.error = "ERROR[5]: Update End Failed";
+    uploadFails(null, "the board reported an error: ERROR[5]: Update End Failed");
+  }
+
+  /**
+  * A board that stops reading half way is given up on, the writer does
+  * not hang on a full TCP window.
+  */
+  @Test
+  public void stalledTransferFails() {
+    board.stallMs = 3000;
+    long started = System.currentTimeMillis();
+    try {
+      upload(null, null);
+      fail("stall not noticed");
+    } catch (IOException e) {
+      String m = e.getMessage();
+      assertTrue(m, m.startsWith("no answer from the board within") || m.startsWith("connection closed before the board reported success"));
+    }
+    assertTrue(System.currentTimeMillis() - started < 8000);
+  }
+}
@@ -0,0 +1,270 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  In-memory ESP serial loader for the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+* A board in its serial loader, behind a SerialLink: decodes the SLIP
+* frames EspLoader writes, answers them the way the ROM and the flasher
+* stub do (four status bytes from the ROM, two from the stub, ROM MD5 in
+* hex) and keeps a flash array. Answers come back in small reads with
+* noise in front, so frames have to be put together again.
+*
+* Every command is recorded in ops, the words of each FLASH_DEFL_BEGIN in
+* deflBegins.
+*/
+class FakeDevice implements SerialLink {
+  final byte[] flash;
+  int magic = 0x00f01d83;
+  final Map<Integer, Integer> registers = new HashMap<Integer, Integer>();
+  // RAM the stub was loaded to, by address
+  final Map<Integer, byte[]> memory = new TreeMap<Integer, byte[]>();
+  final List<Integer> ops = new ArrayList<Integer>();
+  final List<int[]> deflBegins = new ArrayList<int[]>();
+  boolean stub = false;
+  int baud = EspLoader.ROM_BAUD;
+  int syncsToIgnore = 0;
+  int dataBlocksToDrop = 0;
+  // time the flash takes to erase and write, 0 answers at once
+  int writeMsPerMb = 0;
+
+  private final LinkedList<Byte> out = new LinkedList<Byte>();
+  private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+  private boolean inFrame;
+  private boolean escape;
+  private Inflater inflater;
+  private long writePos;
+  private int memAddress;
+  private ByteArrayOutputStream mem;
+
+  FakeDevice(int flashSize) {
+    flash = new byte[flashSize];
+    Arrays.fill(flash, (byte) 0xff);
+  }
+
+  public void setBaud(int baud) {
+    this.baud = baud;
+  }
+
+  public void setSignals(boolean dtr, boolean rts) {
+    // a reset into the loader leaves whatever the stub was
+    stub = false;
+  }
+
+  public void purge() {
+    synchronized (out) {
+      out.clear();
+    }
+  }
+
+  public void close() {
+  }
+
+  public int read(byte[] buf, int timeoutMs) {
+    synchronized (out) {
+      if (out.isEmpty()) {
+        try {
+          out.wait(Math.min(timeoutMs, 20));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      int n = 0;
+      while (!out.isEmpty() && n < Math.min(buf.length, 7)) buf[n++] = out.removeFirst();
+      return n;
+    }
+  }
+
+  public void write(byte[] data) throws IOException {
+    for (byte x : data) {
+      int b = x & 0xff;
+      if (!inFrame) {
+        if (b == 0xc0) {
+          inFrame = true;
+          frame.reset();
+        }
+      } else if (escape) {
+        if (b != 0xdc && b != 0xdd) throw new IOException("invalid SLIP escape from the host");
+        frame.write(b == 0xdc ? 0xc0 : 0xdb);
+        escape = false;
+      } else if (b == 0xdb) {
+        escape = true;
+      } else if (b == 0xc0) {
+        inFrame = false;
+        handle(frame.toByteArray());
+      } else {
+        frame.write(b);
+      }
+    }
+  }
+
+  private static int u32(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+  }
+
+  private void handle(byte[] p) throws IOException {
+    int op = p[1] & 0xff;
+    int size = (p[2] & 0xff) | (p[3] & 0xff) << 8;
+    int checksum = u32(p, 4);
+    byte[] d = Arrays.copyOfRange(p, 8, 8 + size);
+    if (p[0] != 0 || p.length != 8 + size) throw new IOException("malformed command 0x" + Integer.toHexString(op));
+    ops.add(op);
+    switch (op) {
+      case EspLoader.SYNC:
+        if (syncsToIgnore > 0) {
+          syncsToIgnore--;
+          return;
+        }
+        // the ROM answers every SYNC several times
+        for (int i = 0; i < 8; i++) respond(op, new byte[0], true, 0);
+        return;
+      case EspLoader.READ_REG: {
+        int address = u32(d, 0);
+        Integer value = address == EspLoader.CHIP_DETECT_MAGIC_REG ? Integer.valueOf(magic) : registers.get(address);
+        respond(op, new byte[0], value != null, value != null ? value : 0);
+        return;
+      }
+      case EspLoader.MEM_BEGIN:
+        if (mem != null) memory.put(memAddress, mem.toByteArray());
+        memAddress = u32(d, 12);
+        mem = new ByteArrayOutputStream();
+        respond(op, new byte[0], true, 0);
+        return;
+      case EspLoader.MEM_DATA: {
+        boolean ok = EspLoader.checksum(d, 16, d.length - 16) == checksum && u32(d, 0) == d.length - 16;
+        if (ok) mem.write(d, 16, d.length - 16);
+        respond(op, new byte[0], ok, 0);
+        return;
+      }
+      case EspLoader.MEM_END:
+        memory.put(memAddress, mem.toByteArray());
+        mem = null;
+        respond(op, new byte[0], true, 0);
+        stub = true;
+        raw(EspLoader.slip("OHAI".getBytes("US-ASCII")));
+        return;
+      case EspLoader.SPI_ATTACH:
+      case EspLoader.SPI_SET_PARAMS:
+      case EspLoader.CHANGE_BAUDRATE:
+      case EspLoader.FLASH_DEFL_END:
+        respond(op, new byte[0], true, 0);
+        return;
+      case EspLoader.FLASH_DEFL_BEGIN: {
+        int[] words = new int[d.length / 4];
+        for (int i = 0; i < words.length; i++) words[i] = u32(d, i * 4);
+        deflBegins.add(words);
+        writePos = words[3] & 0xffffffffL;
+        inflater = new Inflater();
+        // the ROM erases up front, the stub as it writes
+        if (!stub) Arrays.fill(flash, (int) writePos, (int) writePos + words[0], (byte) 0xff);
+        respond(op, new byte[0], true, 0);
+        return;
+      }
+      case EspLoader.FLASH_DEFL_DATA: {
+        if (dataBlocksToDrop > 0) {
+          dataBlocksToDrop--;
+          return;
+        }
+        if (EspLoader.checksum(d, 16, d.length - 16) != checksum) {
+          respond(op, new byte[0], false, 0);
+          return;
+        }
+        inflater.setInput(d, 16, d.length - 16);
+        byte[] buf = new byte[64 * 1024];
+        long written = 0;
+        try {
+          for (int n; (n = inflater.inflate(buf)) > 0; written += n) System.arraycopy(buf, 0, flash, (int) (writePos + written), n);
+        } catch (DataFormatException e) {
+          throw new IOException(e);
+        }
+        writePos += written;
+        respondLater(op, written * writeMsPerMb / (1024 * 1024));
+        return;
+      }
+      case EspLoader.SPI_FLASH_MD5: {
+        byte[] md5;
+        try {
+          MessageDigest md = MessageDigest.getInstance("MD5");
+          md.update(flash, u32(d, 0), u32(d, 4));
+          md5 = md.digest();
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+        respond(op, stub ? md5 : DataManifest.toHex(md5).getBytes("US-ASCII"), true, 0);
+        return;
+      }
+      case EspLoader.ERASE_REGION:
+        if (stub) Arrays.fill(flash, u32(d, 0), u32(d, 0) + u32(d, 4), (byte) 0xff);
+        respond(op, new byte[0], stub, 0);
+        return;
+      default:
+        respond(op, new byte[0], false, 0);
+    }
+  }
+
+  private void respondLater(final int op, final long delayMs) {
+    if (delayMs == 0) {
+      respond(op, new byte[0], true, 0);
+      return;
+    }
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          return;
+        }
+        respond(op, new byte[0], true, 0);
+      }
+    };
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void respond(int op, byte[] data, boolean ok, int value) {
+    int statusLength = stub ? 2 : 4;
+    int size = data.length + statusLength;
+    byte[] p = new byte[8 + size];
+    p[0] = 1;
+    p[1] = (byte) op;
+    p[2] = (byte) size;
+    p[3] = (byte) (size >> 8);
+    System.arraycopy(EspLoader.pack(value), 0, p, 4, 4);
+    System.arraycopy(data, 0, p, 8, data.length);
+    p[8 + data.length] = (byte) (ok ? 0 : 1);
+    p[9 + data.length] = (byte) (ok ? 0 : 0x05);
+    // boot messages and the like show up in front of answers
+    raw(new byte[]{ 'x', (byte) 0xdb, '\n' });
+    raw(EspLoader.slip(p));
+  }
+
+  private void raw(byte[] bytes) {
+    synchronized (out) {
+      for (byte b : bytes) out.add(b);
+      out.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Local ArduinoOTA stand-in for the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.net.*;
+import java.security.MessageDigest;
+
+/**
+* Answers one invitation on a local UDP port the way ArduinoOTA does:
+* OK, or AUTH with a nonce when it has a password, then checks the
+* digest response, connects back to the host and reads the image,
+* acknowledging every read with its byte count and ending with OK when
+* the MD5 of the invitation matches.
+*
+* Set the fields before start(); after join() the invitation and what
+* was received can be checked.
+*/
+class FakeOtaBoard extends Thread {
+  static final String NONCE = "0123456789abcdef0123456789abcdef";
+
+  String password;
+  // reply to the invitation instead of OK or AUTH
+  String refusal;
+  boolean silent;
+  // stop reading half way and hold the connection this long
+  int stallMs;
+  // sent instead of OK at the end
+  String error;
+
+  String[] invitation;
+  boolean authenticated;
+  final ByteArrayOutputStream received = new ByteArrayOutputStream();
+  Exception failure;
+
+  private final DatagramSocket udp;
+
+  FakeOtaBoard() throws IOException {
+    udp = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    udp.setSoTimeout(10000);
+    setDaemon(true);
+  }
+
+  int getPort() {
+    return udp.getLocalPort();
+  }
+
+  public void run() {
+    try {
+      byte[] buf = new byte[256];
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      udp.receive(packet);
+      invitation = text(packet).split(" ");
+      if (silent) return;
+      if (refusal != null) {
+        reply(packet, refusal);
+        return;
+      }
+      if (password != null) {
+        reply(packet, "AUTH " + NONCE);
+        packet = new DatagramPacket(buf, buf.length);
+        udp.receive(packet);
+        String[] auth = text(packet).split(" ");
+        String expected = EspOta.md5Hex(EspOta.md5Hex(password) + ":" + NONCE + ":" + auth[1]);
+        authenticated = auth[0].equals("" + EspOta.AUTH) && auth[2].equals(expected);
+        if (!authenticated) {
+          reply(packet, "Authentication Failed");
+          return;
+        }
+      }
+      reply(packet, "OK");
+      transfer(packet.getAddress(), Integer.parseInt(invitation[1]), Long.parseLong(invitation[2]));
+    } catch (Exception e) {
+      failure = e;
+    } finally {
+      udp.close();
+    }
+  }
+
+  private void transfer(InetAddress host, int port, long size) throws Exception {
+    Socket socket = new Socket(host, port);
+    try {
+      InputStream in = socket.getInputStream();
+      OutputStream out = socket.getOutputStream();
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      byte[] buf = new byte[1460];
+      long got = 0;
+      while (got < size) {
+        if (stallMs > 0 && got > size / 2) {
+          Thread.sleep(stallMs);
+          return;
+        }
+        int n = in.read(buf);
+        if (n < 0) return;
+        md.update(buf, 0, n);
+        received.write(buf, 0, n);
+        got += n;
+        out.write(Integer.toString(n).getBytes("US-ASCII"));
+      }
+      boolean ok = DataManifest.toHex(md.digest()).equals(invitation[3]);
+      String result = error != null ? error : ok ? "OK" : "ERROR[4]: MD5 Check Failed";
+      // an error message in two segments, the host has to put it together
+      int split = result.indexOf(':') + 1;
+      out.write(result.substring(0, split).getBytes("US-ASCII"));
+      out.flush();
+      Thread.sleep(50);
+      out.write(result.substring(split).getBytes("US-ASCII"));
+      out.flush();
+      // the host closes first
+      in.read(buf);
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static String text(DatagramPacket packet) throws UnsupportedEncodingException {
+    return new String(packet.getData(), 0, packet.getLength(), "US-ASCII").trim();
+  }
+
+  private void reply(DatagramPacket to, String message) throws IOException {
+    byte[] data = message.getBytes("US-ASCII");
+    udp.send(new DatagramPacket(data, data.length, to.getAddress(), to.getPort()));
+  }
+}
@@ -0,0 +1,231 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the FAT image writer
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Images are mounted with FatReader, which goes through wear levelling
+* the way wl_mount does before it reads the FAT volume. No mkfatfs build
+* is at hand for a reference image, the digest of a fixture image pins
+* the layout instead.
+*/
+public class FatImageBuilderTest {
+  private static final int SECTOR = 4096;
+  // image of sample() in 1 MB, UTC time stamps
+  private static final String GOLDEN_MD5 = "2054fb5abe7f9847d6d3bb94a5bdad96";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File data;
+  private File image;
+  private FatReader reader;
+
+  @Before
+  public void setUp() throws IOException {
+    data = tmp.newFolder("data");
+    image = new File(tmp.getRoot(), "image.bin");
+  }
+
+  private void sample() throws IOException {
+    file(data, "index.html", 1200);
+    file(data, "empty.txt", 0);
+    file(data, "README.TXT", 10);
+    file(data, "sector.bin", SECTOR);
+    file(data, "sector1.bin", SECTOR + 1);
+    file(data, "large.bin", 100 * 1024);
+    file(data, "A name with spaces and more than 26 characters.txt", 300);
+    file(data, "css/site.css", 3000);
+    file(data, "a/b/c/deep.json", 700);
+    touchFolders(data);
+  }
+
+  /**
+  * Folders carry their time stamp into "." and "..".
+  */
+  private static void touchFolders(File folder) {
+    for (File f : folder.listFiles()) {
+      if (f.isDirectory()) touchFolders(f);
+    }
+    folder.setLastModified(MTIME);
+  }
+
+  private Map<String, byte[]> build(long size) throws IOException {
+    new FatImageBuilder(size).build(data, image);
+    assertEquals(size, image.length());
+    reader = new FatReader(read(image));
+    return reader.read();
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    sample();
+    assertSameFiles(data, build(1 << 20));
+    assertTrue(reader.fat12);
+  }
+
+  @Test
+  public void roundTripFat16() throws IOException {
+    sample();
+    FatImageBuilder builder = new FatImageBuilder(20 << 20);
+    assertSameFiles(data, build(20 << 20));
+    assertFalse(reader.fat12);
+    assertEquals(builder.getClusterCount(), reader.clusters);
+  }
+
+  /**
+  * The volume starts after the dummy sector the WL state points at, and
+  * ends where the WL state copies start.
+  */
+  @Test
+  public void wearLevellingAroundTheVolume() throws IOException {
+    file(data, "a.txt", 10);
+    FatImageBuilder builder = new FatImageBuilder(256 * 1024);
+    build(256 * 1024);
+    assertEquals(0, reader.pos);
+    assertEquals(0, reader.moveCount);
+    assertEquals(0, reader.dummyOffset());
+    assertTrue(isErased(read(image), 0, SECTOR));
+    assertEquals(FatImageBuilder.volumeOffset(), reader.physical(0));
+    assertEquals(builder.getVolumeSize(), reader.flashSize);
+    assertEquals(SECTOR, reader.stateSize);
+  }
+
+  @Test
+  public void wearLevellingStateGrowsWithThePartition() throws IOException {
+    // 64 bytes and 16 per sector of the partition, rounded up to sectors
+    build(1 << 20);
+    assertEquals(2 * SECTOR, reader.stateSize);
+    build(20 << 20);
+    assertEquals(21 * SECTOR, reader.stateSize);
+  }
+
+  @Test
+  public void configCrcIsChecked() throws IOException {
+    build(1 << 20);
+    byte[] b = read(image);
+    assertEquals((int) u32(b, b.length - SECTOR + 32), FatReader.crc32le(b, b.length - SECTOR, 32));
+    b[b.length - SECTOR + 16]++;
+    try {
+      new FatReader(b).read();
+      fail("config CRC not checked");
+    } catch (IOException e) {
+      assertEquals("WL config CRC", e.getMessage());
+    }
+  }
+
+  /**
+  * Valid 8.3 names in one case per part take one entry with the NT case
+  * flags, anything else a long name with the checksum of its alias.
+  */
+  @Test
+  public void longNamesAndCaseFlags() throws IOException {
+    file(data, "lower.txt", 1);
+    file(data, "UPPER.TXT", 2);
+    file(data, "body.TXT", 3);
+    file(data, "MiXed.txt", 4);
+    file(data, "toolongname.txt", 5);
+    file(data, "x.html", 6);
+    file(data, "noext", 7);
+    file(data, "two.dots.txt", 8);
+    file(data, "a name of exactly 26 chars", 9);
+    assertSameFiles(data, build(1 << 20));
+    // MiXed.txt, toolongname.txt, x.html, two.dots.txt and the 26 chars
+    assertEquals(5, reader.longNames);
+  }
+
+  /**
+  * A name that only differs in case from one already taken falls back to
+  * a long name with a numbered alias.
+  */
+  @Test
+  public void caseCollisionGetsALongName() throws IOException {
+    file(data, "README.TXT", 1);
+    file(data, "readme.txt", 2);
+    file(data, "sub/Readme.Txt", 3);
+    touchFolders(data);
+    Assume.assumeTrue(data.list().length == 3);
+    assertSameFiles(data, build(1 << 20));
+    assertEquals(2, reader.longNames);
+    // the estimate counts the long name entries as well
+    assertEquals(1 + 2, FatImageBuilder.slotsFor(Arrays.asList("readme.txt", "README.TXT")));
+  }
+
+  /**
+  * Sub directories grow over several clusters, files over many.
+  */
+  @Test
+  public void chainsSpanClusters() throws IOException {
+    for (int i = 0; i < 150; i++) file(data, String.format("www/page-%03d-with-a-long-name.txt", i), 40 + i);
+    file(data, "big.bin", 37 * SECTOR + 5);
+    assertSameFiles(data, build(1 << 20));
+    // www: the dots and 150 names of 4 entries in 5 clusters, a cluster
+    // per page, 38 for big.bin
+    assertEquals(5 + 150 + 38, reader.getUsedClusters());
+  }
+
+  @Test
+  public void rootDirectoryFullFails() throws IOException {
+    for (int i = 0; i < 513; i++) file(data, String.format("F%03d.TXT", i), 0);
+    try {
+      build(1 << 20);
+      fail("root directory overflow not caught");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("FAT root directory full"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void fullImageFails() throws IOException {
+    file(data, "big.bin", 1 << 20);
+    build(1 << 20);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooSmallPartitionFails() {
+    new FatImageBuilder(8 * SECTOR);
+  }
+
+  /**
+  * Any layout change shows up here. Update the digest together with the
+  * id returned by getId(), so cached images are built again.
+  */
+  @Test
+  public void layoutIsStable() throws Exception {
+    sample();
+    TimeZone zone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    try {
+      build(1 << 20);
+    } finally {
+      TimeZone.setDefault(zone);
+    }
+    assertEquals("java-fatfs-wl2-1", new FatImageBuilder(1 << 20).getId());
+    assertEquals(GOLDEN_MD5, md5(image));
+  }
+}
@@ -0,0 +1,306 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  FAT and wear levelling image reader for the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Reads a whole FFat partition the way ESP-IDF mounts it, written from the
+* wear_levelling and FatFs sources rather than from FatImageBuilder:
+*
+* - WL_Flash::config and init: the config in the last sector with its
+*   crc32_le, two equal state copies with their CRC, the sizes derived
+*   from the config, and calcAddr mapping the volume around the dummy
+*   sector
+* - the FAT12/16 volume: boot sector, FAT type from the cluster count,
+*   cluster chains that end in an end mark and are not shared
+* - directories: "." and "..", NT case flags, and long file names whose
+*   entries are numbered down to 1 and carry the checksum of their 8.3
+*   entry
+*
+* Anything else fails with an IOException.
+*/
+class FatReader {
+  static final int WL_STATE_SIZE = 64;
+  static final int WL_CONFIG_SIZE = 36;
+
+  private static final int[] CRC_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      int c = i;
+      for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? (c >>> 1) ^ 0xedb88320 : c >>> 1;
+      CRC_TABLE[i] = c;
+    }
+  }
+
+  private final byte[] image;
+  // wl_config_t and wl_state_t
+  int pageSize;
+  int sectorSize;
+  long stateSize;
+  long flashSize;
+  int pos;
+  int moveCount;
+
+  // volume
+  int bytesPerSector;
+  int sectorsPerCluster;
+  int clusters;
+  boolean fat12;
+  private int fatStart;
+  private int rootStart;
+  private int rootEntries;
+  private int dataStart;
+  private final Set<Integer> usedClusters = new HashSet<Integer>();
+  // files and directories read from a long name
+  int longNames;
+
+  FatReader(byte[] image) {
+    this.image = image;
+  }
+
+  /**
+  * ROM crc32_le(UINT32_MAX, data, len) as wear levelling calls it.
+  */
+  static int crc32le(byte[] data, int off, int len) {
+    int crc = 0;
+    for (int i = off; i < off + len; i++) crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ data[i]) & 0xff];
+    return ~crc;
+  }
+
+  /**
+  * Files of the volume by path.
+  */
+  Map<String, byte[]> read() throws IOException {
+    readWearLevelling();
+    readBootSector();
+    Map<String, byte[]> files = new TreeMap<String, byte[]>();
+    readDir(volume(rootStart, rootEntries * 32), "", 0, 0, files);
+    return files;
+  }
+
+  private void readWearLevelling() throws IOException {
+    int cfg = image.length - 4096;
+    sectorSize = (int) u32(image, cfg + 12);
+    if (sectorSize != 4096 || cfg % sectorSize != 0) throw new IOException("WL sector size " + sectorSize);
+    if ((int) u32(image, cfg + 32) != crc32le(image, cfg, 32)) throw new IOException("WL config CRC");
+    if (u32(image, cfg) != 0 || u32(image, cfg + 4) != image.length) throw new IOException("WL config start or size");
+    if (u32(image, cfg + 24) != 2) throw new IOException("WL version " + u32(image, cfg + 24));
+    pageSize = (int) u32(image, cfg + 8);
+    long wrSize = u32(image, cfg + 20);
+
+    stateSize = sectorSize;
+    long needed = WL_STATE_SIZE + (long) image.length / sectorSize * wrSize;
+    if (stateSize < needed) stateSize = (needed + sectorSize - 1) / sectorSize * sectorSize;
+    long cfgSize = (WL_CONFIG_SIZE + sectorSize - 1) / sectorSize * sectorSize;
+    int state1 = (int) (image.length - 2 * stateSize - cfgSize);
+    int state2 = (int) (image.length - stateSize - cfgSize);
+    flashSize = ((image.length - 2 * stateSize - cfgSize) / pageSize - 1) * pageSize;
+
+    for (int state : new int[]{ state1, state2 }) {
+      if ((int) u32(image, state + 60) != crc32le(image, state, 60)) throw new IOException("WL state CRC at " + state);
+      if (u32(image, state + 4) != flashSize / pageSize + 1) throw new IOException("WL max_pos " + u32(image, state + 4));
+      if (u32(image, state + 20) != sectorSize) throw new IOException("WL state block size");
+      if (!isErased(image, state + WL_STATE_SIZE, (int) (stateSize - WL_STATE_SIZE))) throw new IOException("WL position records not erased");
+    }
+    if (!Arrays.equals(Arrays.copyOfRange(image, state1, state1 + 64), Arrays.copyOfRange(image, state2, state2 + 64))) {
+      throw new IOException("WL state copies differ");
+    }
+    pos = (int) u32(image, state1);
+    moveCount = (int) u32(image, state1 + 8);
+  }
+
+  /**
+  * WL_Flash::calcAddr: logical volume address to image offset.
+  */
+  long physical(long addr) {
+    long result = (flashSize - (long) moveCount * pageSize + addr) % flashSize;
+    long dummy = (long) pos * pageSize;
+    return result < dummy ? result : result + pageSize;
+  }
+
+  /**
+  * Dummy sector of the current WL state.
+  */
+  long dummyOffset() {
+    return (long) pos * pageSize;
+  }
+
+  private byte[] volume(long addr, int length) {
+    byte[] out = new byte[length];
+    for (int done = 0; done < length; ) {
+      long at = addr + done;
+      int n = (int) Math.min(length - done, pageSize - at % pageSize);
+      System.arraycopy(image, (int) physical(at), out, done, n);
+      done += n;
+    }
+    return out;
+  }
+
+  private void readBootSector() throws IOException {
+    byte[] bs = volume(0, 512);
+    if ((bs[510] & 0xff) != 0x55 || (bs[511] & 0xff) != 0xaa) throw new IOException("no boot sector signature");
+    bytesPerSector = u16(bs, 11);
+    sectorsPerCluster = bs[13] & 0xff;
+    int reserved = u16(bs, 14);
+    int fats = bs[16] & 0xff;
+    rootEntries = u16(bs, 17);
+    long total = u16(bs, 19) != 0 ? u16(bs, 19) : u32(bs, 32);
+    int fatSectors = u16(bs, 22);
+    if (bytesPerSector != sectorSize) throw new IOException("volume sector size " + bytesPerSector + " is not the WL sector size");
+    int rootSectors = (rootEntries * 32 + bytesPerSector - 1) / bytesPerSector;
+    fatStart = reserved * bytesPerSector;
+    rootStart = (reserved + fats * fatSectors) * bytesPerSector;
+    dataStart = rootStart + rootSectors * bytesPerSector;
+    clusters = (int) ((total - reserved - fats * fatSectors - rootSectors) / sectorsPerCluster);
+    if ((total * bytesPerSector) > flashSize) throw new IOException("volume larger than the WL flash size");
+    // FatFs: FAT12 below 4086 clusters, FAT16 below 65526
+    fat12 = clusters <= 0xff5;
+    if (clusters > 0xfff5) throw new IOException("FAT32 volume");
+    String type = new String(bs, 54, 8, "US-ASCII");
+    if (!type.equals(fat12 ? "FAT12   " : "FAT16   ")) throw new IOException("file system type " + type + " for " + clusters + " clusters");
+    if ((fatEntry(0) & 0xff) != (bs[21] & 0xff)) throw new IOException("FAT[0] is not the media byte");
+  }
+
+  int fatEntry(int cluster) throws IOException {
+    if (fat12) {
+      byte[] b = volume(fatStart + cluster + cluster / 2, 2);
+      int w = u16(b, 0);
+      return (cluster & 1) != 0 ? w >> 4 : w & 0xfff;
+    }
+    return u16(volume(fatStart + cluster * 2, 2), 0);
+  }
+
+  /**
+  * The clusters of a chain, none of them shared with another chain.
+  */
+  List<Integer> chain(int first) throws IOException {
+    List<Integer> chain = new ArrayList<Integer>();
+    int end = fat12 ? 0xff8 : 0xfff8;
+    int c = first;
+    while (c < end) {
+      if (c < 2 || c >= clusters + 2) throw new IOException("cluster " + c + " out of range in chain " + first);
+      if (!usedClusters.add(c)) throw new IOException("cluster " + c + " used twice");
+      chain.add(c);
+      c = fatEntry(c);
+    }
+    return chain;
+  }
+
+  private byte[] readChain(int first, long size) throws IOException {
+    int clusterBytes = bytesPerSector * sectorsPerCluster;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int c : chain(first)) out.write(volume(dataStart + (long) (c - 2) * clusterBytes, clusterBytes));
+    if (size >= 0) {
+      if ((size + clusterBytes - 1) / clusterBytes != out.size() / clusterBytes) throw new IOException("chain " + first + " does not match size " + size);
+      return Arrays.copyOf(out.toByteArray(), (int) size);
+    }
+    return out.toByteArray();
+  }
+
+  private void readDir(byte[] dir, String path, int self, int parent, Map<String, byte[]> files) throws IOException {
+    StringBuilder lfn = null;
+    int lfnSum = -1, nextOrd = 0;
+    for (int off = 0; off + 32 <= dir.length; off += 32) {
+      int first = dir[off] & 0xff;
+      if (first == 0) break;
+      if (first == 0xe5) throw new IOException(path + ": deleted entry in a fresh image");
+      int attr = dir[off + 11] & 0xff;
+      if (attr == 0x0f) {
+        int ord = first & 0x3f;
+        if ((first & 0x40) != 0) {
+          if (lfn != null) throw new IOException(path + ": long name interrupted");
+          lfn = new StringBuilder();
+          lfnSum = dir[off + 13] & 0xff;
+        } else if (lfn == null || ord != nextOrd || (dir[off + 13] & 0xff) != lfnSum) {
+          throw new IOException(path + ": long name entry out of order");
+        }
+        nextOrd = ord - 1;
+        lfn.insert(0, lfnPart(dir, off));
+        continue;
+      }
+      byte[] sfn = Arrays.copyOfRange(dir, off, off + 11);
+      if (sfn[0] == 0x05) sfn[0] = (byte) 0xe5;
+      String name = new String(sfn, 0, 8, "ISO-8859-1").trim();
+      String ext = new String(sfn, 8, 3, "ISO-8859-1").trim();
+      int cluster = u16(dir, off + 26);
+      long size = u32(dir, off + 28);
+      if (name.equals(".") || name.equals("..")) {
+        if (lfn != null) throw new IOException(path + ": long name on a dot entry");
+        if (cluster != (name.equals(".") ? self : parent)) throw new IOException(path + ": \"" + name + "\" points to " + cluster);
+        continue;
+      }
+      if (lfn != null) {
+        if (nextOrd != 0) throw new IOException(path + ": long name incomplete");
+        if (checksum(Arrays.copyOfRange(dir, off, off + 11)) != lfnSum) throw new IOException(path + "/" + lfn + ": long name checksum");
+        name = lfn.toString();
+        longNames++;
+      } else {
+        int flags = dir[off + 12] & 0xff;
+        if ((flags & 0x08) != 0) name = name.toLowerCase(Locale.ROOT);
+        if ((flags & 0x10) != 0) ext = ext.toLowerCase(Locale.ROOT);
+        if (!ext.isEmpty()) name = name + "." + ext;
+      }
+      lfn = null;
+      String child = path + "/" + name;
+      if ((attr & 0x10) != 0) {
+        readDir(readChain(cluster, -1), child, cluster, self, files);
+      } else {
+        files.put(child, size == 0 ? new byte[0] : readChain(cluster, size));
+      }
+    }
+    if (lfn != null) throw new IOException(path + ": long name without its 8.3 entry");
+  }
+
+  private static final int[] LFN_OFFSETS = { 1, 3, 5, 7, 9, 14, 16, 18, 20, 22, 24, 28, 30 };
+
+  private static String lfnPart(byte[] dir, int off) throws IOException {
+    StringBuilder part = new StringBuilder();
+    boolean ended = false;
+    for (int o : LFN_OFFSETS) {
+      int ch = u16(dir, off + o);
+      if (ended) {
+        if (ch != 0xffff) throw new IOException("long name not padded with 0xffff");
+      } else if (ch == 0) {
+        ended = true;
+      } else {
+        part.append((char) ch);
+      }
+    }
+    return part.toString();
+  }
+
+  /**
+  * The 8.3 name checksum of the long name entries (FatFs sum_sfn).
+  */
+  static int checksum(byte[] sfn) {
+    int sum = 0;
+    for (int i = 0; i < 11; i++) sum = ((sum >> 1) | ((sum & 1) << 7)) + (sfn[i] & 0xff) & 0xff;
+    return sum;
+  }
+
+  int getUsedClusters() {
+    return usedClusters.size();
+  }
+}
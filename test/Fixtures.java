@@ -0,0 +1,114 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Data folders and checks shared by the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+* Content is random with a fixed seed per file, so images built from a
+* fixture are the same on every run.
+*/
+class Fixtures {
+  // fixed modification time, FAT stores it in the directory entries
+  static final long MTIME = 1600000000000L;
+
+  private Fixtures() {
+  }
+
+  /**
+  * Writes size bytes derived from path to folder/path, creating parent
+  * folders.
+  */
+  static File file(File folder, String path, int size) throws IOException {
+    byte[] data = new byte[size];
+    new Random(path.hashCode()).nextBytes(data);
+    return file(folder, path, data);
+  }
+
+  static File file(File folder, String path, byte[] data) throws IOException {
+    File file = new File(folder, path);
+    file.getParentFile().mkdirs();
+    try (OutputStream out = new FileOutputStream(file)) {
+      out.write(data);
+    }
+    file.setLastModified(MTIME);
+    return file;
+  }
+
+  /**
+  * Every file below folder as "/dir/name" to content, hidden files left
+  * out as the builders do.
+  */
+  static Map<String, byte[]> contents(File folder) throws IOException {
+    Map<String, byte[]> files = new TreeMap<String, byte[]>();
+    collect(folder, "", files);
+    return files;
+  }
+
+  private static void collect(File dir, String prefix, Map<String, byte[]> files) throws IOException {
+    File[] entries = dir.listFiles();
+    if (entries == null) return;
+    for (File f : entries) {
+      if (f.getName().startsWith(".")) continue;
+      if (f.isDirectory()) collect(f, prefix + "/" + f.getName(), files);
+      else files.put(prefix + "/" + f.getName(), Files.readAllBytes(f.toPath()));
+    }
+  }
+
+  /**
+  * Fails unless read holds exactly the files of folder.
+  */
+  static void assertSameFiles(File folder, Map<String, byte[]> read) throws IOException {
+    Map<String, byte[]> expected = contents(folder);
+    assertEquals(expected.keySet(), read.keySet());
+    for (Map.Entry<String, byte[]> e : expected.entrySet()) {
+      assertArrayEquals(e.getKey(), e.getValue(), read.get(e.getKey()));
+    }
+  }
+
+  static byte[] read(File file) throws IOException {
+    return Files.readAllBytes(file.toPath());
+  }
+
+  static String md5(File file) throws Exception {
+    return DataManifest.toHex(MessageDigest.getInstance("MD5").digest(read(file)));
+  }
+
+  static int u16(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+  }
+
+  static long u32(byte[] b, int off) {
+    return (u16(b, off) | (long) u16(b, off + 2) << 16) & 0xffffffffL;
+  }
+
+  static boolean isErased(byte[] b, int off, int length) {
+    for (int i = off; i < off + length; i++) {
+      if (b[i] != (byte) 0xff) return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,155 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the per port job queue
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+* Jobs are Callables that wait on latches, so the tests decide when one
+* holds its port and when it lets go. The Status counts the jobs that
+* reported waiting for a port and queues the errors.
+*/
+public class JobSchedulerTest {
+  private static final long TIMEOUT_S = 5;
+
+  private JobScheduler scheduler;
+  private final Semaphore waiting = new Semaphore(0);
+  private final BlockingQueue<String> errors = new LinkedBlockingQueue<String>();
+  private final FsEngine.Status status = new FsEngine.Status() {
+    public void notice(String message) {
+      if (message.contains(" waiting for ")) waiting.release();
+    }
+
+    public void error(String message) {
+      errors.add(message);
+    }
+  };
+
+  @Before
+  public void setUp() {
+    scheduler = new JobScheduler();
+  }
+
+  private static FsEngine.Job job(String... targets) {
+    FsEngine.Job job = new FsEngine.Job();
+    job.targets.addAll(Arrays.asList(targets));
+    return job;
+  }
+
+  /**
+  * Work that counts down started, then holds its ports until release.
+  */
+  private static Callable<Boolean> work(final CountDownLatch started, final CountDownLatch release) {
+    return new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        started.countDown();
+        return release.await(TIMEOUT_S, TimeUnit.SECONDS);
+      }
+    };
+  }
+
+  private static int await(JobScheduler.Ticket ticket) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_S);
+    while (ticket.getState() < JobScheduler.DONE) {
+      if (System.nanoTime() > deadline) fail(ticket + " did not end");
+      Thread.sleep(5);
+    }
+    return ticket.getState();
+  }
+
+  private void awaitWaiting() throws InterruptedException {
+    assertTrue("no job waited for its port", waiting.tryAcquire(TIMEOUT_S, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void samePortWaitsForTheFirstJob() throws Exception {
+    CountDownLatch firstStarted = new CountDownLatch(1);
+    CountDownLatch firstRelease = new CountDownLatch(1);
+    CountDownLatch secondStarted = new CountDownLatch(1);
+    JobScheduler.Ticket first = scheduler.submit("first", job("/dev/ttyUSB0"), status, work(firstStarted, firstRelease));
+    assertTrue(firstStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+    JobScheduler.Ticket second = scheduler.submit("second", job("/dev/ttyUSB0"), status, work(secondStarted, new CountDownLatch(0)));
+    awaitWaiting();
+    assertEquals(JobScheduler.QUEUED, second.getState());
+    assertEquals(1, secondStarted.getCount());
+    assertEquals(JobScheduler.RUNNING, first.getState());
+
+    firstRelease.countDown();
+    assertEquals(JobScheduler.DONE, await(first));
+    assertTrue(secondStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+    assertEquals(JobScheduler.DONE, await(second));
+    assertTrue(errors.isEmpty());
+  }
+
+  @Test
+  public void otherPortsRunAlongside() throws Exception {
+    // each job only ends once both have started
+    final CountDownLatch bothStarted = new CountDownLatch(2);
+    JobScheduler.Ticket a = scheduler.submit("a", job("/dev/ttyUSB0"), status, work(bothStarted, bothStarted));
+    JobScheduler.Ticket b = scheduler.submit("b", job("192.168.1.20"), status, work(bothStarted, bothStarted));
+    assertEquals(JobScheduler.DONE, await(a));
+    assertEquals(JobScheduler.DONE, await(b));
+    assertEquals(0, waiting.availablePermits());
+  }
+
+  /**
+  * The cancelled job never runs and leaves the port to the job holding
+  * it: a third job still waits until that one is done.
+  */
+  @Test
+  public void cancelledQueuedJobNeverRuns() throws Exception {
+    CountDownLatch firstStarted = new CountDownLatch(1);
+    CountDownLatch firstRelease = new CountDownLatch(1);
+    CountDownLatch queuedStarted = new CountDownLatch(1);
+    CountDownLatch thirdStarted = new CountDownLatch(1);
+    JobScheduler.Ticket first = scheduler.submit("first", job("/dev/ttyUSB0"), status, work(firstStarted, firstRelease));
+    assertTrue(firstStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+    JobScheduler.Ticket queued = scheduler.submit("queued", job("/dev/ttyUSB0", "/dev/ttyUSB1"), status, work(queuedStarted, new CountDownLatch(0)));
+    awaitWaiting();
+
+    queued.cancel();
+    assertEquals(JobScheduler.CANCELLED, await(queued));
+    // reported once the ticket is gone from the list
+    assertEquals("queued cancelled", errors.poll(TIMEOUT_S, TimeUnit.SECONDS));
+    assertFalse(scheduler.getActive().contains(queued));
+    assertEquals(1, queuedStarted.getCount());
+
+    // it never got to the second port
+    JobScheduler.Ticket other = scheduler.submit("other", job("/dev/ttyUSB1"), status, work(new CountDownLatch(1), new CountDownLatch(0)));
+    assertEquals(JobScheduler.DONE, await(other));
+    assertEquals(0, waiting.availablePermits());
+
+    JobScheduler.Ticket third = scheduler.submit("third", job("/dev/ttyUSB0"), status, work(thirdStarted, new CountDownLatch(0)));
+    awaitWaiting();
+    assertEquals(1, thirdStarted.getCount());
+    assertEquals(JobScheduler.RUNNING, first.getState());
+
+    firstRelease.countDown();
+    assertEquals(JobScheduler.DONE, await(first));
+    assertEquals(JobScheduler.DONE, await(third));
+    assertEquals(1, queuedStarted.getCount());
+    assertTrue(errors.isEmpty());
+  }
+}
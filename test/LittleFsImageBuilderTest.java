@@ -0,0 +1,170 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the LittleFS image writer
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Images are mounted with LittleFsReader. No littlefs build is at hand
+* for a reference mount, the reader follows lfs_dir_fetch and lfs_ctz_find
+* instead, and the digest of a fixture image pins the layout.
+*/
+public class LittleFsImageBuilderTest {
+  private static final int BLOCK = 4096;
+  // image of sample() in 1 MB with 256 byte pages and 4 KB blocks
+  private static final String GOLDEN_MD5 = "9afdb261580a1806fbdf1b08383e986c";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File data;
+  private File image;
+  private LittleFsReader reader;
+
+  @Before
+  public void setUp() throws IOException {
+    data = tmp.newFolder("data");
+    image = new File(tmp.getRoot(), "image.bin");
+  }
+
+  private void sample() throws IOException {
+    file(data, "index.html", 1200);
+    file(data, "empty.txt", 0);
+    file(data, "inline.txt", 256);
+    file(data, "ctz1.txt", 257);
+    file(data, "block.bin", BLOCK);
+    file(data, "block1.bin", BLOCK + 1);
+    file(data, "large.bin", 100 * 1024);
+    file(data, "css/site.css", 3000);
+    file(data, "a/b/c/deep.json", 700);
+  }
+
+  private Map<String, byte[]> build(int page, int block, long size) throws IOException {
+    new LittleFsImageBuilder(page, block, size).build(data, image);
+    assertEquals(size, image.length());
+    reader = new LittleFsReader(read(image), block);
+    return reader.read();
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    sample();
+    assertSameFiles(data, build(256, BLOCK, 1 << 20));
+  }
+
+  @Test
+  public void roundTripLargeBlocks() throws IOException {
+    sample();
+    assertSameFiles(data, build(512, 8192, 1 << 20));
+  }
+
+  @Test
+  public void superblockIsIdZeroOfTheRoot() throws IOException {
+    assertTrue(build(256, BLOCK, 64 * 1024).isEmpty());
+    assertEquals(LittleFsImageBuilder.DISK_VERSION, reader.version);
+    assertEquals(LittleFsImageBuilder.NAME_MAX, reader.nameMax);
+    LittleFsReader.Tag first = reader.fetch(new int[]{ 0, 1 }).tags.get(0);
+    assertEquals(LittleFsReader.TYPE_SUPERBLOCK, first.type);
+    assertEquals(0, first.id);
+  }
+
+  /**
+  * A CTZ list deep enough for skip pointers to 2, 4, 8 and 16 blocks
+  * back, and sizes around the block boundaries where the pointers eat
+  * into the data.
+  */
+  @Test
+  public void ctzSkipLists() throws IOException {
+    file(data, "skip17.bin", 17 * (BLOCK - 8));
+    for (int blocks = 2; blocks <= 5; blocks++) {
+      int size = ctzCapacity(blocks);
+      file(data, "fit" + blocks + ".bin", size);
+      file(data, "over" + blocks + ".bin", size + 1);
+    }
+    Map<String, byte[]> read = build(256, BLOCK, 1 << 20);
+    assertSameFiles(data, read);
+    LittleFsImageBuilder builder = new LittleFsImageBuilder(256, BLOCK, 1 << 20);
+    assertEquals(3, builder.ctzBlocks(ctzCapacity(3)));
+    assertEquals(4, builder.ctzBlocks(ctzCapacity(3) + 1));
+  }
+
+  /**
+  * Bytes the first n blocks of a CTZ list hold, block i > 0 starts with
+  * ctz(i) + 1 pointers.
+  */
+  static int ctzCapacity(int blocks) {
+    int size = 0;
+    for (int i = 0; i < blocks; i++) size += BLOCK - (i == 0 ? 0 : 4 * (Integer.numberOfTrailingZeros(i) + 1));
+    return size;
+  }
+
+  @Test
+  public void largeDirectorySpansSeveralPairs() throws IOException {
+    for (int i = 0; i < 300; i++) file(data, String.format("www/page-%03d-with-a-long-name.txt", i), 40 + i % 60);
+    file(data, "www/sub/one.txt", 10);
+    file(data, "zz.txt", 10);
+    assertSameFiles(data, build(256, BLOCK, 1 << 20));
+    // root, www in several pairs, sub
+    assertTrue("pairs " + reader.getPairsRead(), reader.getPairsRead() >= 5);
+  }
+
+  @Test
+  public void namesAreSortedByBytes() throws IOException {
+    file(data, "B.txt", 1);
+    file(data, "a.txt", 2);
+    file(data, "_x.txt", 4);
+    String accented = "\u00e9t\u00e9.txt";
+    file(data, accented, 3);
+    // needs a UTF-8 locale for the file name, sun.jnu.encoding
+    Assume.assumeTrue(Arrays.asList(data.list()).contains(accented));
+    assertSameFiles(data, build(256, BLOCK, 64 * 1024));
+  }
+
+  @Test(expected = IOException.class)
+  public void fullImageFails() throws IOException {
+    file(data, "big.bin", 64 * 1024);
+    build(256, BLOCK, 64 * 1024);
+  }
+
+  @Test(expected = IOException.class)
+  public void longNameFails() throws IOException {
+    file(data, "a-name-that-is-longer-than-32-bytes.txt", 10);
+    build(256, BLOCK, 64 * 1024);
+  }
+
+  /**
+  * Any layout change shows up here. Update the digest together with the
+  * id returned by getId(), so cached images are built again.
+  */
+  @Test
+  public void layoutIsStable() throws Exception {
+    sample();
+    build(256, BLOCK, 1 << 20);
+    assertEquals("java-littlefs-1", new LittleFsImageBuilder(256, BLOCK, 1 << 20).getId());
+    assertEquals(GOLDEN_MD5, md5(image));
+  }
+}
@@ -0,0 +1,309 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  LittleFS v2 image reader for the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Mounts an image the way lfs_mount and lfs_dir_fetch do, written from the
+* littlefs sources rather than from LittleFsImageBuilder:
+*
+* - of the two blocks of a pair, the one with the newer revision that holds
+*   a valid commit is used
+* - tags are big-endian, xored with the previous tag, and every commit ends
+*   in a CRC tag whose lfs_crc covers the revision or previous CRC onwards
+* - the superblock is id 0 of the root pair {0, 1}: "littlefs" and an
+*   inline struct with version, block size, block count and limits
+* - a hard tail continues a directory in another pair, the soft tails
+*   thread every pair of the filesystem so lfs_fs_traverse reaches them
+* - a CTZ file is read back from its head block, and every skip pointer
+*   must point to block index i - 2^k as lfs_ctz_find expects
+*
+* Anything else fails with an IOException, as do blocks used twice and
+* directory entries out of name order.
+*/
+class LittleFsReader {
+  static final int TYPE_REG = 0x001;
+  static final int TYPE_DIR = 0x002;
+  static final int TYPE_SUPERBLOCK = 0x0ff;
+  static final int TYPE_DIRSTRUCT = 0x200;
+  static final int TYPE_INLINESTRUCT = 0x201;
+  static final int TYPE_CTZSTRUCT = 0x202;
+  static final int TYPE_CRC = 0x500;
+  static final int TYPE_SOFTTAIL = 0x600;
+  static final int TYPE_HARDTAIL = 0x601;
+
+  private static final int[] CRC_TABLE = new int[256];
+  static {
+    for (int i = 0; i < 256; i++) {
+      int c = i;
+      for (int k = 0; k < 8; k++) c = (c & 1) != 0 ? (c >>> 1) ^ 0xedb88320 : c >>> 1;
+      CRC_TABLE[i] = c;
+    }
+  }
+
+  final int blockSize;
+  final int blockCount;
+  // superblock fields
+  int version;
+  int nameMax;
+
+  private final byte[] image;
+  private final Set<Integer> used = new HashSet<Integer>();
+  // first blocks of the pairs reached through directory entries
+  private final Set<Integer> directoryPairs = new HashSet<Integer>();
+  private int pairsRead = 0;
+
+  LittleFsReader(byte[] image, int blockSize) {
+    this.image = image;
+    this.blockSize = blockSize;
+    this.blockCount = image.length / blockSize;
+  }
+
+  /**
+  * A tag of a fetched commit and its data.
+  */
+  static class Tag {
+    final int type;
+    final int id;
+    final byte[] data;
+
+    Tag(int type, int id, byte[] data) {
+      this.type = type;
+      this.id = id;
+      this.data = data;
+    }
+  }
+
+  /**
+  * The tags of a pair with its tail, if any.
+  */
+  static class Pair {
+    final List<Tag> tags = new ArrayList<Tag>();
+    int tailType = -1;
+    int[] tail;
+  }
+
+  /**
+  * Files of the image by path, checking the superblock and the tail list.
+  */
+  Map<String, byte[]> read() throws IOException {
+    Map<String, byte[]> files = new TreeMap<String, byte[]>();
+    readDir(new int[]{ 0, 1 }, "", true, files);
+    // lfs_fs_traverse follows the tails from the root, it has to meet
+    // every pair the directories use and no other
+    Set<Integer> threaded = new HashSet<Integer>();
+    int[] pair = { 0, 1 };
+    while (pair != null) {
+      if (!threaded.add(pair[0])) throw new IOException("tail list loops at " + pair[0]);
+      Pair p = fetch(pair);
+      pair = p.tail;
+    }
+    if (!threaded.equals(directoryPairs)) throw new IOException("tail list " + threaded + " does not match the directories " + directoryPairs);
+    return files;
+  }
+
+  int getPairsRead() {
+    return pairsRead;
+  }
+
+  private void readDir(int[] pair, String path, boolean root, Map<String, byte[]> files) throws IOException {
+    byte[] last = null;
+    boolean first = true;
+    while (true) {
+      claim(pair[0]);
+      claim(pair[1]);
+      directoryPairs.add(pair[0]);
+      pairsRead++;
+      Pair p = fetch(pair);
+      Map<Integer, Tag> names = new TreeMap<Integer, Tag>();
+      Map<Integer, Tag> structs = new HashMap<Integer, Tag>();
+      for (Tag t : p.tags) {
+        if ((t.type & 0x700) == 0x000) names.put(t.id, t);
+        else if ((t.type & 0x700) == 0x200) structs.put(t.id, t);
+      }
+      int expectedId = 0;
+      for (Map.Entry<Integer, Tag> e : names.entrySet()) {
+        int id = e.getKey();
+        if (id != expectedId++) throw new IOException(path + ": ids of pair " + pair[0] + " are not contiguous");
+        Tag name = e.getValue();
+        Tag struct = structs.get(id);
+        if (struct == null) throw new IOException(path + ": id " + id + " has no struct");
+        if (name.type == TYPE_SUPERBLOCK) {
+          if (!root || !first || id != 0) throw new IOException("superblock outside id 0 of the root pair");
+          readSuperblock(name, struct);
+          continue;
+        }
+        if (root && first && id == 0) throw new IOException("no superblock at id 0 of the root pair");
+        if (last != null && compare(last, name.data) >= 0) throw new IOException(path + ": entries not sorted");
+        last = name.data;
+        String child = path + "/" + new String(name.data, "UTF-8");
+        if (name.data.length > nameMax) throw new IOException(child + ": name longer than name_max");
+        if (name.type == TYPE_DIR) {
+          if (struct.type != TYPE_DIRSTRUCT) throw new IOException(child + ": directory without a dir struct");
+          readDir(new int[]{ (int) u32(struct.data, 0), (int) u32(struct.data, 4) }, child, false, files);
+        } else if (name.type == TYPE_REG) {
+          files.put(child, readFile(child, struct));
+        } else {
+          throw new IOException(child + ": unknown type 0x" + Integer.toHexString(name.type));
+        }
+      }
+      if (root && first && names.isEmpty()) throw new IOException("no superblock");
+      first = false;
+      if (p.tailType != TYPE_HARDTAIL) return;
+      pair = p.tail;
+    }
+  }
+
+  private void readSuperblock(Tag name, Tag struct) throws IOException {
+    if (!"littlefs".equals(new String(name.data, "US-ASCII"))) throw new IOException("superblock magic " + new String(name.data, "US-ASCII"));
+    if (struct.type != TYPE_INLINESTRUCT || struct.data.length < 24) throw new IOException("superblock struct");
+    version = (int) u32(struct.data, 0);
+    if ((version >>> 16) != 2) throw new IOException("disk version 0x" + Integer.toHexString(version));
+    if (u32(struct.data, 4) != blockSize) throw new IOException("block size " + u32(struct.data, 4));
+    if (u32(struct.data, 8) != blockCount) throw new IOException("block count " + u32(struct.data, 8));
+    nameMax = (int) u32(struct.data, 12);
+  }
+
+  private byte[] readFile(String path, Tag struct) throws IOException {
+    if (struct.type == TYPE_INLINESTRUCT) return struct.data;
+    if (struct.type != TYPE_CTZSTRUCT) throw new IOException(path + ": struct 0x" + Integer.toHexString(struct.type));
+    int head = (int) u32(struct.data, 0);
+    long size = u32(struct.data, 4);
+    if (size == 0) return new byte[0];
+    // walk back from the head on pointer 0, then check the skip pointers
+    int count = ctzIndex(size - 1) + 1;
+    int[] blocks = new int[count];
+    blocks[count - 1] = head;
+    for (int i = count - 1; i > 0; i--) {
+      blocks[i - 1] = (int) u32(image, checkBlock(path, blocks[i]) * blockSize);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < count; i++) {
+      claim(checkBlock(path, blocks[i]));
+      int skips = i == 0 ? 0 : Integer.numberOfTrailingZeros(i) + 1;
+      for (int k = 0; k < skips; k++) {
+        if (u32(image, blocks[i] * blockSize + 4 * k) != blocks[i - (1 << k)]) {
+          throw new IOException(path + ": skip pointer " + k + " of block index " + i + " is wrong");
+        }
+      }
+      out.write(image, blocks[i] * blockSize + 4 * skips, (int) Math.min(blockSize - 4 * skips, size - out.size()));
+    }
+    return out.toByteArray();
+  }
+
+  /**
+  * lfs_ctz_index: the index of the block holding byte off.
+  */
+  private int ctzIndex(long off) {
+    long b = blockSize - 2 * 4;
+    long i = off / b;
+    if (i == 0) return 0;
+    return (int) ((off - 4 * (Long.bitCount(i - 1) + 2)) / b);
+  }
+
+  private int checkBlock(String path, int block) throws IOException {
+    if (block < 0 || block >= blockCount) throw new IOException(path + ": block " + block + " out of range");
+    return block;
+  }
+
+  private void claim(int block) throws IOException {
+    if (block < 0 || block >= blockCount) throw new IOException("block " + block + " out of range");
+    if (!used.add(block)) throw new IOException("block " + block + " used twice");
+  }
+
+  /**
+  * lfs_dir_fetch: the newer block of the pair with a valid commit.
+  */
+  Pair fetch(int[] pair) throws IOException {
+    long rev0 = u32(image, pair[0] * blockSize);
+    long rev1 = u32(image, pair[1] * blockSize);
+    int[] order = (int) (rev1 - rev0) > 0 ? new int[]{ pair[1], pair[0] } : new int[]{ pair[0], pair[1] };
+    for (int block : order) {
+      Pair p = fetchBlock(block);
+      if (p != null) return p;
+    }
+    throw new IOException("pair {" + pair[0] + ", " + pair[1] + "} has no valid commit");
+  }
+
+  private Pair fetchBlock(int block) {
+    int base = block * blockSize;
+    int off = 4;
+    int ptag = 0xffffffff;
+    int crc = crc(0xffffffff, base, 4);
+    List<Tag> pending = new ArrayList<Tag>();
+    Pair p = new Pair();
+    boolean committed = false;
+    int tailType = -1;
+    int[] tail = null;
+    while (off + 4 <= blockSize) {
+      int raw = (image[base + off] & 0xff) << 24 | (image[base + off + 1] & 0xff) << 16 | (image[base + off + 2] & 0xff) << 8 | (image[base + off + 3] & 0xff);
+      int tag = raw ^ ptag;
+      if (tag < 0) break;
+      int type = (tag >>> 20) & 0x7ff;
+      int id = (tag >>> 10) & 0x3ff;
+      int size = tag & 0x3ff;
+      if (off + 4 + size > blockSize) break;
+      crc = crc(crc, base + off, 4);
+      if ((type & 0x700) == TYPE_CRC) {
+        if ((int) u32(image, base + off + 4) != crc) break;
+        p.tags.addAll(pending);
+        pending.clear();
+        p.tailType = tailType;
+        p.tail = tail;
+        committed = true;
+        ptag = tag ^ ((type & 1) << 31);
+        crc = 0xffffffff;
+        off += 4 + size;
+        continue;
+      }
+      byte[] data = Arrays.copyOfRange(image, base + off + 4, base + off + 4 + size);
+      crc = crc(crc, base + off + 4, size);
+      if ((type & 0x700) == 0x600) {
+        tailType = type;
+        tail = new int[]{ (int) u32(data, 0), (int) u32(data, 4) };
+      } else {
+        pending.add(new Tag(type, id, data));
+      }
+      ptag = tag;
+      off += 4 + size;
+    }
+    return committed ? p : null;
+  }
+
+  private int crc(int crc, int off, int length) {
+    for (int i = off; i < off + length; i++) {
+      crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ image[i]) & 0xff];
+    }
+    return crc;
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      int d = (a[i] & 0xff) - (b[i] & 0xff);
+      if (d != 0) return d;
+    }
+    return a.length - b.length;
+  }
+}
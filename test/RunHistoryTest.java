@@ -0,0 +1,165 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the run records
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Records written with RunHistory.append and read back with the pattern
+* of RunHistory.read, and the summary of hand written history files.
+*/
+public class RunHistoryTest {
+  // quotes, backslashes and control characters in a sketch name
+  private static final String AWKWARD = "my \"web\" C:\\sketch\n\tend\u0001";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File history;
+
+  @Before
+  public void setUp() {
+    history = new File(tmp.getRoot(), RunHistory.FILE_NAME);
+  }
+
+  private void lines(String... lines) throws IOException {
+    file(tmp.getRoot(), RunHistory.FILE_NAME, (String.join("\n", lines) + "\n").getBytes("UTF-8"));
+  }
+
+  /**
+  * Phase names of the summary table, in their order.
+  */
+  private static List<String> summaryPhases(String summary) {
+    List<String> phases = new ArrayList<String>();
+    boolean table = false;
+    for (String line : summary.split("\n")) {
+      if (line.startsWith("phase ")) {
+        table = true;
+      } else if (table && line.trim().isEmpty()) {
+        break;
+      } else if (table) {
+        phases.add(line.split(" +")[0]);
+      }
+    }
+    return phases;
+  }
+
+  @Test
+  public void stringsAreEscaped() {
+    RunHistory.Record record = new RunHistory.Record();
+    record.put("sketch", AWKWARD);
+    String json = record.toJson();
+    assertTrue(json, json.contains("\"sketch\":\"my \\\"web\\\" C:\\\\sketch\\u000a\\u0009end\\u0001\""));
+    // one line per record
+    assertEquals(-1, json.indexOf('\n'));
+  }
+
+  @Test
+  public void recordsReadBack() throws IOException {
+    RunHistory.Record first = new RunHistory.Record();
+    first.put("sketch", AWKWARD);
+    first.put("image_bytes", 1507328L);
+    first.put("esptool", null);
+    first.put("delta", true);
+    first.transfer(1024 * 1024, 2000000000L);
+    RunHistory.append(history, first);
+    RunHistory.Record second = new RunHistory.Record();
+    second.put("sketch", "sensor");
+    RunHistory.append(history, second);
+
+    List<Map<String, String>> records = RunHistory.read(history);
+    assertEquals(2, records.size());
+    Map<String, String> read = records.get(0);
+    assertEquals(AWKWARD, read.get("sketch"));
+    assertEquals("1507328", read.get("image_bytes"));
+    assertEquals("null", read.get("esptool"));
+    assertEquals("true", read.get("delta"));
+    assertEquals("1048576", read.get("written_bytes"));
+    assertEquals("512", read.get("transfer_kbps"));
+    assertTrue(read.containsKey("time"));
+    assertEquals("sensor", records.get(1).get("sketch"));
+  }
+
+  @Test
+  public void unreadableLinesAreSkipped() throws IOException {
+    lines("{\"sketch\":\"web\",\"ms_total\":12}", "", "not json", "{\"sketch\":\"sensor\"}");
+    List<Map<String, String>> records = RunHistory.read(history);
+    assertEquals(2, records.size());
+    assertEquals("12", records.get(0).get("ms_total"));
+    assertEquals("sensor", records.get(1).get("sketch"));
+    assertTrue(RunHistory.read(new File(tmp.getRoot(), "missing.jsonl")).isEmpty());
+  }
+
+  /**
+  * Known phases come in the order they happen, whatever the order in the
+  * records; phases the summary does not know go before the total.
+  */
+  @Test
+  public void summaryOrdersPhases() throws IOException {
+    lines("{\"time\":\"2026-01-01T10:00:00+0000\",\"ms_total\":900,\"ms_upload\":500,\"ms_cache\":7,\"ms_build\":300}",
+      "{\"time\":\"2026-01-01T10:05:00+0000\",\"ms_verify\":40,\"ms_build\":100,\"ms_tools\":20,\"ms_total\":300}");
+    String summary = RunHistory.summary(history, RunHistory.SUMMARY_RUNS);
+    assertEquals(Arrays.asList("tools", "build", "upload", "cache", "verify", "total"), summaryPhases(summary));
+    assertTrue(summary, summary.contains(String.format("%-16s %9d %9d %6d", "build", 200, 300, 2)));
+    assertTrue(summary, summary.contains(String.format("%-16s %9d %9d %6d", "cache", 7, 7, 1)));
+  }
+
+  @Test
+  public void summaryTakesTheLastRuns() throws IOException {
+    lines("{\"ms_build\":1000}", "{\"ms_build\":10}", "{\"ms_build\":30}");
+    String summary = RunHistory.summary(history, 2);
+    assertTrue(summary, summary.contains("Phases over the last 2 runs"));
+    assertTrue(summary, summary.contains(String.format("%-16s %9d %9d %6d", "build", 20, 30, 2)));
+  }
+
+  /**
+  * Time queued before the work starts is ms_wait, not part of ms_total.
+  */
+  @Test
+  public void queuedTimeIsLeftOutOfTheTotal() {
+    RunHistory.Record record = new RunHistory.Record();
+    long queued = RunHistory.now() - 2000000000L;
+    record.start();
+    record.waited(queued);
+    record.finish();
+    Map<String, Long> ms = phases(record);
+    assertTrue(ms.toString(), ms.get("wait") >= 2000);
+    assertTrue(ms.toString(), ms.get("total") < 2000);
+
+    RunHistory.Record never = new RunHistory.Record();
+    never.finish();
+    assertFalse(phases(never).containsKey("total"));
+  }
+
+  private static Map<String, Long> phases(RunHistory.Record record) {
+    Map<String, Long> ms = new HashMap<String, Long>();
+    for (String field : record.toJson().replaceAll("[{}\"]", "").split(",")) {
+      if (field.startsWith("ms_")) ms.put(field.substring(3, field.indexOf(':')), Long.parseLong(field.substring(field.indexOf(':') + 1)));
+    }
+    return ms;
+  }
+}
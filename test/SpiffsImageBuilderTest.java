@@ -0,0 +1,144 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  Tests of the SPIFFS image writer
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Images are read back with SpiffsReader. mkspiffs does not produce byte
+* identical images (it leaves the pages its write cache moved), so the
+* layout is pinned by the lookup checks below and by the digest of a
+* fixture image instead of a mkspiffs golden file.
+*/
+public class SpiffsImageBuilderTest {
+  // with 256 byte pages: 251 bytes per data page, 103 data pages in the
+  // index header, 124 more per index page
+  private static final int HEADER_SPAN = 103 * 251;
+  // image of sample() in 1 MB with 256 byte pages and 4 KB blocks
+  private static final String GOLDEN_MD5 = "f41824d413b9d66d233b0df2a4501ab3";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File data;
+  private File image;
+
+  @Before
+  public void setUp() throws IOException {
+    data = tmp.newFolder("data");
+    image = new File(tmp.getRoot(), "image.bin");
+  }
+
+  private void sample() throws IOException {
+    file(data, "index.html", 1200);
+    file(data, "empty.txt", 0);
+    file(data, "one", 1);
+    file(data, "page.bin", 251);
+    file(data, "header.bin", HEADER_SPAN);
+    file(data, "index2.bin", HEADER_SPAN + 1);
+    file(data, "large.bin", HEADER_SPAN + 3 * 124 * 251 + 17);
+    file(data, "css/site.css", 3000);
+    file(data, "a/b/c/deep.json", 700);
+  }
+
+  private Map<String, byte[]> build(int page, int block, long size) throws IOException {
+    new SpiffsImageBuilder(page, block, size).build(data, image);
+    assertEquals(size, image.length());
+    return new SpiffsReader(read(image), page, block).read();
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    sample();
+    assertSameFiles(data, build(256, 4096, 1 << 20));
+  }
+
+  @Test
+  public void roundTripLargePages() throws IOException {
+    sample();
+    assertSameFiles(data, build(512, 8192, 1 << 20));
+  }
+
+  @Test
+  public void emptyFolderIsFormatted() throws IOException {
+    assertTrue(build(256, 4096, 64 * 1024).isEmpty());
+  }
+
+  @Test
+  public void filesStartAfterTheLookupPage() throws IOException {
+    file(data, "a.txt", 300);
+    build(256, 4096, 64 * 1024);
+    byte[] b = read(image);
+    // object 1: index header in page 1, data spans 0 and 1 in pages 2 and 3
+    assertEquals(1 | SpiffsReader.IX_FLAG, u16(b, 0));
+    assertEquals(1, u16(b, 2));
+    assertEquals(1, u16(b, 4));
+    assertEquals(SpiffsReader.FREE, u16(b, 6));
+    assertEquals(1 | SpiffsReader.IX_FLAG, u16(b, 256));
+    assertEquals(300, u32(b, 256 + 8));
+    assertEquals("/a.txt", new String(b, 256 + 13, 6, "US-ASCII"));
+    assertEquals(2, u16(b, 256 + 49));
+    assertEquals(3, u16(b, 256 + 51));
+    assertEquals(1, u16(b, 3 * 256 + 2));
+  }
+
+  @Test
+  public void dataCrossesBlocks() throws IOException {
+    // 15 pages per block: the file takes most of the first four blocks
+    file(data, "x.bin", 50 * 251);
+    assertSameFiles(data, build(256, 4096, 64 * 1024));
+  }
+
+  @Test(expected = IOException.class)
+  public void fullImageFails() throws IOException {
+    file(data, "big.bin", 64 * 1024);
+    build(256, 4096, 64 * 1024);
+  }
+
+  @Test(expected = IOException.class)
+  public void longNameFails() throws IOException {
+    file(data, "a-name-that-is-far-too-long-for-spiffs.txt", 10);
+    build(256, 4096, 64 * 1024);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidGeometryFails() {
+    new SpiffsImageBuilder(256, 4000, 64 * 1024);
+  }
+
+  /**
+  * Any layout change shows up here. Update the digest together with the
+  * id returned by getId(), so cached images are built again.
+  */
+  @Test
+  public void layoutIsStable() throws Exception {
+    sample();
+    build(256, 4096, 1 << 20);
+    assertEquals("java-spiffs-1", new SpiffsImageBuilder(256, 4096, 1 << 20).getId());
+    assertEquals(GOLDEN_MD5, md5(image));
+  }
+}
@@ -0,0 +1,156 @@
+/* -*- mode: java; c-basic-offset: 2; indent-tabs-mode: nil -*- */
+
+/*
+  SPIFFS image reader for the tests
+
+  This program is free software; you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation; either version 2 of the License, or
+  (at your option) any later version.
+
+  This program is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program; if not, write to the Free Software Foundation,
+  Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package com.esp32.mkspiffs;
+
+import java.io.*;
+import java.util.*;
+
+import static com.esp32.mkspiffs.Fixtures.*;
+
+/**
+* Reads an image the way spiffs_nucleus finds objects, written from the
+* SPIFFS sources rather than from SpiffsImageBuilder: block magic, then the
+* object lookup entries of every block, then each object from its index
+* header through its index pages to the data pages. Anything SPIFFS would
+* trip over fails with an IOException: a lookup entry that disagrees with
+* its page header, a free page that is not erased, a data page reached
+* twice or not at all, a wrong span index.
+*
+* The configuration is the one of the arduino-esp32 mkspiffs: 16 bit ids,
+* 32 byte names, 4 byte metadata, magic with length.
+*/
+class SpiffsReader {
+  static final int NAME_LEN = 32;
+  static final int META_LEN = 4;
+  static final int IX_FLAG = 0x8000;
+  static final int FREE = 0xffff;
+  static final int DELETED = 0;
+
+  // page header flags, a cleared bit is set
+  static final int FLAG_USED = 1 << 0;
+  static final int FLAG_FINAL = 1 << 1;
+  static final int FLAG_INDEX = 1 << 2;
+  static final int FLAG_IXDELE = 1 << 6;
+  static final int FLAG_DELET = 1 << 7;
+
+  final int pageSize;
+  final int blockSize;
+  final int blockCount;
+  final int pagesPerBlock;
+  final int lookupPages;
+
+  private final byte[] image;
+  // object id with IX_FLAG and span index to page
+  private final Map<Long, Integer> pages = new HashMap<Long, Integer>();
+
+  SpiffsReader(byte[] image, int pageSize, int blockSize) {
+    this.image = image;
+    this.pageSize = pageSize;
+    this.blockSize = blockSize;
+    this.blockCount = image.length / blockSize;
+    this.pagesPerBlock = blockSize / pageSize;
+    // SPIFFS_OBJ_LOOKUP_PAGES: one 16 bit entry per page of the block
+    this.lookupPages = Math.max(1, pagesPerBlock * 2 / pageSize);
+  }
+
+  /**
+  * Files of the image by name.
+  */
+  Map<String, byte[]> read() throws IOException {
+    for (int b = 0; b < blockCount; b++) readLookup(b);
+    Map<String, byte[]> files = new TreeMap<String, byte[]>();
+    Set<Integer> reached = new HashSet<Integer>();
+    for (Map.Entry<Long, Integer> e : pages.entrySet()) {
+      int id = (int) (e.getKey() >> 16);
+      if ((id & IX_FLAG) == 0 || (e.getKey() & 0xffff) != 0) continue;
+      readObject(id & ~IX_FLAG, e.getValue(), files, reached);
+    }
+    int data = 0;
+    for (Long key : pages.keySet()) {
+      if (((key >> 16) & IX_FLAG) == 0) data++;
+    }
+    if (reached.size() != data) {
+      throw new IOException((data - reached.size()) + " data pages belong to no object");
+    }
+    return files;
+  }
+
+  private void readLookup(int block) throws IOException {
+    int base = block * blockSize;
+    int end = base + lookupPages * pageSize;
+    // SPIFFS_MAGIC with SPIFFS_USE_MAGIC_LENGTH
+    int magic = (0x20140529 ^ pageSize ^ (blockCount - block)) & 0xffff;
+    if (u16(image, end - 2) != magic) throw new IOException("block " + block + ": bad magic");
+    if (u16(image, end - 4) == FREE) throw new IOException("block " + block + ": no erase count");
+    for (int entry = 0; entry < pagesPerBlock - lookupPages; entry++) {
+      int id = u16(image, base + entry * 2);
+      int pix = block * pagesPerBlock + lookupPages + entry;
+      int page = pix * pageSize;
+      if (id == FREE) {
+        if (!isErased(image, page, pageSize)) throw new IOException("page " + pix + ": free but not erased");
+        continue;
+      }
+      if (id == DELETED) throw new IOException("page " + pix + ": deleted page in a fresh image");
+      if (u16(image, page) != id) throw new IOException("page " + pix + ": lookup says " + id + ", header " + u16(image, page));
+      int flags = image[page + 4] & 0xff;
+      if ((flags & (FLAG_USED | FLAG_FINAL)) != 0) throw new IOException("page " + pix + ": not finalized");
+      if ((flags & (FLAG_DELET | FLAG_IXDELE)) != (FLAG_DELET | FLAG_IXDELE)) throw new IOException("page " + pix + ": marked deleted");
+      if (((flags & FLAG_INDEX) == 0) != ((id & IX_FLAG) != 0)) throw new IOException("page " + pix + ": index flag does not match the id");
+      long key = (long) id << 16 | u16(image, page + 2);
+      if (pages.put(key, pix) != null) throw new IOException("page " + pix + ": span " + u16(image, page + 2) + " of " + id + " twice");
+    }
+  }
+
+  private void readObject(int id, int headerPix, Map<String, byte[]> files, Set<Integer> reached) throws IOException {
+    int header = headerPix * pageSize;
+    // spiffs_page_object_ix_header: page header, align, size, type, name, meta
+    int fields = header + 5 + 3;
+    long size = u32(image, fields);
+    if (size == 0xffffffffL) size = 0;
+    if (image[fields + 4] != 1) throw new IOException("object " + id + ": not a file");
+    int nameEnd = fields + 5;
+    while (nameEnd < fields + 5 + NAME_LEN && image[nameEnd] != 0) nameEnd++;
+    String name = new String(image, fields + 5, nameEnd - fields - 5, "UTF-8");
+
+    int dataSize = pageSize - 5;
+    int spans = (int) ((size + dataSize - 1) / dataSize);
+    int headerEntries = (pageSize - (5 + 3 + 4 + 1 + NAME_LEN + META_LEN)) / 2;
+    int pageEntries = (pageSize - (5 + 3)) / 2;
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    for (int span = 0; span < spans; span++) {
+      int entry;
+      if (span < headerEntries) {
+        entry = header + 5 + 3 + 4 + 1 + NAME_LEN + META_LEN + span * 2;
+      } else {
+        int ixSpan = 1 + (span - headerEntries) / pageEntries;
+        Integer ix = pages.get((long) (id | IX_FLAG) << 16 | ixSpan);
+        if (ix == null) throw new IOException(name + ": index page " + ixSpan + " missing");
+        entry = ix * pageSize + 5 + 3 + (span - headerEntries) % pageEntries * 2;
+      }
+      int pix = u16(image, entry);
+      Integer listed = pages.get((long) id << 16 | span);
+      if (listed == null || listed != pix) throw new IOException(name + ": span " + span + " points to page " + pix + ", lookup has " + listed);
+      if (!reached.add(pix)) throw new IOException(name + ": page " + pix + " reached twice");
+      content.write(image, pix * pageSize + 5, (int) Math.min(dataSize, size - (long) span * dataSize));
+    }
+    if (files.put(name, content.toByteArray()) != null) throw new IOException(name + ": twice in the image");
+  }
+}